@@ -0,0 +1,172 @@
+package com.yellowbkpk.osm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import com.yellowbkpk.osm.util.ConversionEvents;
+
+/**
+ * Emits the {@link ConversionEvents} as JDK Flight Recorder events, so a
+ * recording of a run shows them in JMC next to GC and allocation data.
+ * Nothing is created unless the event type is enabled in the recording.
+ * <p>
+ * Features are only recorded when they take longer than 20 ms by default;
+ * lower the threshold of <code>shptoosm.Feature</code> in the recording
+ * settings to see more.
+ */
+public class FlightRecorderEvents extends ConversionEvents {
+
+    private static final String CATEGORY = "shp-to-osm";
+
+    @Name("shptoosm.Feature")
+    @Label("Feature Conversion")
+    @Description("Reprojecting, splitting, tagging and filtering one shapefile feature.")
+    @Category(CATEGORY)
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static class FeatureEvent extends Event {
+        @Label("Feature ID")
+        String featureId;
+
+        @Label("Vertices")
+        int vertices;
+
+        @Label("Transform Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long transformTime;
+    }
+
+    @Name("shptoosm.ChunkWrite")
+    @Label("Chunk Write")
+    @Description("Writing the staged elements out to the next file.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ChunkWriteEvent extends Event {
+        @Label("Elements")
+        int elements;
+    }
+
+    @Name("shptoosm.Rules")
+    @Label("Rule Batch")
+    @Description("Applying a rule list to the primitives of one feature.")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class RulesEvent extends Event {
+        @Label("Geometry Type")
+        String geometryType;
+
+        @Label("Rules")
+        int rules;
+
+        @Label("Primitives")
+        int primitives;
+    }
+
+    @Name("shptoosm.GlomPhase")
+    @Label("Glom Phase")
+    @Description("One phase of connecting ways that share a glom value.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class GlomPhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Ways")
+        int ways;
+    }
+
+    public FlightRecorderEvents() {
+    }
+
+    @Override
+    public Object beginFeature() {
+        return begin(new FeatureEvent());
+    }
+
+    @Override
+    public void endFeature(Object token, String featureId, int vertices, long transformNanos) {
+        if (token != null) {
+            FeatureEvent event = (FeatureEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.featureId = featureId;
+                event.vertices = vertices;
+                event.transformTime = transformNanos;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object beginChunkWrite() {
+        return begin(new ChunkWriteEvent());
+    }
+
+    @Override
+    public void endChunkWrite(Object token, int elements) {
+        if (token != null) {
+            ChunkWriteEvent event = (ChunkWriteEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.elements = elements;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object beginRules() {
+        return begin(new RulesEvent());
+    }
+
+    @Override
+    public void endRules(Object token, String geometryType, int rules, int primitives) {
+        if (token != null) {
+            RulesEvent event = (RulesEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.geometryType = geometryType;
+                event.rules = rules;
+                event.primitives = primitives;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public Object beginGlomPhase() {
+        return begin(new GlomPhaseEvent());
+    }
+
+    @Override
+    public void endGlomPhase(Object token, String phase, int ways) {
+        if (token != null) {
+            GlomPhaseEvent event = (GlomPhaseEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase;
+                event.ways = ways;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @return The started event, or null when its type isn't being recorded.
+     */
+    private static Event begin(Event event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+}
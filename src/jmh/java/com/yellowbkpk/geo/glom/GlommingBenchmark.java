@@ -0,0 +1,45 @@
+package com.yellowbkpk.geo.glom;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.yellowbkpk.osm.BenchmarkData;
+import com.yellowbkpk.osm.OSMFile;
+
+/**
+ * Glomming the street grid from {@link BenchmarkData}, single-threaded and
+ * in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GlommingBenchmark {
+
+    @Param({ "200" })
+    public int side;
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private OSMFile network;
+
+    @Setup
+    public void setUp() {
+        network = BenchmarkData.streetGrid(side, 4, new Random(42));
+    }
+
+    @Benchmark
+    public OSMFile glom() {
+        return new ParallelGlommer("name", threads).glom(network);
+    }
+
+}
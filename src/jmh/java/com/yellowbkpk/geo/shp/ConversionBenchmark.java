@@ -0,0 +1,103 @@
+package com.yellowbkpk.geo.shp;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.yellowbkpk.osm.primitive.way.Way;
+
+/**
+ * Turning single features' geometries into OSM primitives: a batch of
+ * points, one long line and one polygon with holes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConversionBenchmark {
+
+    @Param({ "10000" })
+    public int lineVertices;
+
+    @Param({ "20" })
+    public int holes;
+
+    private Point[] points;
+    private LineString line;
+    private Polygon polygon;
+
+    @Setup
+    public void setUp() {
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(42);
+
+        points = new Point[1000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = factory.createPoint(new Coordinate(random.nextDouble() - 93, random.nextDouble() + 44));
+        }
+
+        Coordinate[] walk = new Coordinate[lineVertices];
+        double x = -93;
+        double y = 44;
+        for (int i = 0; i < walk.length; i++) {
+            x += random.nextDouble() * 0.0001;
+            y += (random.nextDouble() - 0.5) * 0.0001;
+            walk[i] = new Coordinate(x, y);
+        }
+        line = factory.createLineString(walk);
+
+        LinearRing shell = ring(factory, -93, 44, 0.1, 5000);
+        LinearRing[] inner = new LinearRing[holes];
+        for (int i = 0; i < holes; i++) {
+            double angle = 2 * Math.PI * i / holes;
+            inner[i] = ring(factory, -93 + 0.05 * Math.cos(angle), 44 + 0.05 * Math.sin(angle), 0.005, 200);
+        }
+        polygon = factory.createPolygon(shell, inner);
+    }
+
+    @Benchmark
+    public void points(Blackhole blackhole) {
+        for (Point point : points) {
+            blackhole.consume(ShpToOsmConverter.pointToNode(point));
+        }
+    }
+
+    @Benchmark
+    public List<Way> longLine() {
+        return ShpToOsmConverter.linestringToWays(line);
+    }
+
+    @Benchmark
+    public void holedPolygon(Blackhole blackhole) throws ShpToOsmException {
+        blackhole.consume(ShpToOsmConverter.polygonToWays(polygon.getExteriorRing()));
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            blackhole.consume(ShpToOsmConverter.polygonToWays(polygon.getInteriorRingN(i)));
+        }
+    }
+
+    private static LinearRing ring(GeometryFactory factory, double x, double y, double radius, int vertices) {
+        Coordinate[] coordinates = new Coordinate[vertices + 1];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            coordinates[i] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+        }
+        coordinates[vertices] = new Coordinate(coordinates[0]);
+        return factory.createLinearRing(coordinates);
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.yellowbkpk.geo.shp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.way.Way;
+
+/**
+ * Applying line rules and exclude filters to one feature, with a rules file
+ * the size of a hand-written one and one the size of a generated one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RuleSetBenchmark {
+
+    private static final int ATTRIBUTES = 12;
+    private static final int VALUES_PER_ATTRIBUTE = 20;
+
+    @Param({ "8", "800" })
+    public int ruleCount;
+
+    private RuleSet rules;
+    private SimpleFeature feature;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("roads");
+        typeBuilder.add("the_geom", MultiLineString.class);
+        for (int a = 0; a < ATTRIBUTES; a++) {
+            typeBuilder.add("ATTR" + a, String.class);
+        }
+        SimpleFeatureType type = typeBuilder.buildFeatureType();
+
+        GeometryFactory factory = new GeometryFactory();
+        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
+        featureBuilder.add(factory.createMultiLineString(new LineString[] { factory.createLineString(
+                new Coordinate[] { new Coordinate(-93, 44), new Coordinate(-93.001, 44.001) }) }));
+        for (int a = 0; a < ATTRIBUTES; a++) {
+            featureBuilder.add("value" + random.nextInt(VALUES_PER_ATTRIBUTE));
+        }
+        feature = featureBuilder.buildFeature(null);
+
+        // Mostly value-specific rules, the way a rules file maps codes to
+        // tags, with every tenth one copying the original value.
+        rules = new RuleSet();
+        for (int i = 0; i < ruleCount; i++) {
+            String srcKey = "ATTR" + (i % ATTRIBUTES);
+            if (i % 10 == 0) {
+                rules.addLineRule(new Rule("line", srcKey, null, "copy" + i));
+            } else {
+                rules.addLineRule(new Rule("line", srcKey, "value" + (i / ATTRIBUTES) % VALUES_PER_ATTRIBUTE,
+                        "key" + i, "tag" + i));
+            }
+        }
+        rules.addFilter(new ExcludeRule(PrimitiveTypeEnum.way, "-", null));
+        rules.addFilter(new ExcludeRule(PrimitiveTypeEnum.way, "key7", "*"));
+    }
+
+    @Benchmark
+    public boolean applyLineRules() {
+        List<Way> ways = Arrays.asList(new Way());
+        rules.applyLineRules(feature, "MultiLineString", ways);
+        return rules.includes(ways.get(0));
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.yellowbkpk.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+
+/**
+ * Fixed, converter-shaped data for the benchmarks.
+ */
+public class BenchmarkData {
+
+    /**
+     * @return Tagged ways of random walks, a tagged node for every tenth way
+     *         and a multipolygon relation for every hundredth.
+     */
+    public static OSMFile network(int wayCount, int nodesPerWay, Random random) {
+        OSMFile file = new OSMFile();
+        Relation relation = null;
+
+        for (int w = 0; w < wayCount; w++) {
+            Way way = new Way();
+            way.addTag(new Tag("highway", "residential"));
+            way.addTag(new Tag("name", "Street &amp; Avenue " + random.nextInt(1000)));
+            way.addTag(new Tag("tiger:cfcc", "A4" + random.nextInt(10)));
+
+            double lat = random.nextDouble() * 10 + 40;
+            double lon = random.nextDouble() * 10 - 100;
+            for (int n = 0; n < nodesPerWay; n++) {
+                lat += (random.nextDouble() - 0.5) * 0.001;
+                lon += (random.nextDouble() - 0.5) * 0.001;
+                way.addNode(new Node(lat, lon));
+            }
+            file.addWay(way);
+
+            if (w % 10 == 0) {
+                Node poi = new Node(lat, lon);
+                poi.addTag(new Tag("amenity", "school"));
+                file.addNode(poi);
+            }
+
+            if (w % 100 == 0) {
+                if (relation != null) {
+                    file.addRelation(relation);
+                }
+                relation = new Relation();
+                relation.addTag(new Tag("type", "multipolygon"));
+                relation.addMember(new Member(way, "outer"));
+            } else if (w % 100 < 4) {
+                relation.addMember(new Member(way, "inner"));
+            }
+        }
+        if (relation != null) {
+            file.addRelation(relation);
+        }
+
+        return file;
+    }
+
+    /**
+     * A square grid of streets where every block is its own way, the way a
+     * street centerline shapefile comes out of the converter. Every row and
+     * every column is one named street, so a correct glom turns the blocks
+     * back into one way per street.
+     *
+     * @param side The number of blocks along each side of the grid.
+     * @param verticesPerBlock The number of shape points inside each block.
+     */
+    public static OSMFile streetGrid(int side, int verticesPerBlock, Random random) {
+        double spacing = 0.001;
+        OSMFile file = new OSMFile();
+
+        for (int street = 0; street <= side; street++) {
+            for (int block = 0; block < side; block++) {
+                // The row street runs east-west, the column street north-south.
+                file.addWay(block(street * spacing, block * spacing, 0, spacing,
+                        verticesPerBlock, "Row " + street, random));
+                file.addWay(block(block * spacing, street * spacing, spacing, 0,
+                        verticesPerBlock, "Column " + street, random));
+            }
+        }
+
+        return file;
+    }
+
+    private static Way block(double lat, double lon, double dLat, double dLon, int vertices, String name,
+            Random random) {
+        Way way = new Way();
+        way.addTag(new Tag("highway", "residential"));
+        way.addTag(new Tag("name", name));
+
+        // Each block has its own end nodes, just like converter output.
+        way.addNode(new Node(lat, lon));
+        for (int i = 1; i <= vertices; i++) {
+            double t = i / (double) (vertices + 1);
+            double jitter = (random.nextDouble() - 0.5) * 0.00001;
+            way.addNode(new Node(lat + t * dLat + (dLat == 0 ? jitter : 0), lon + t * dLon
+                    + (dLon == 0 ? jitter : 0)));
+        }
+        way.addNode(new Node(lat + dLat, lon + dLon));
+
+        return way;
+    }
+
+    public static File tempDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create temporary directory " + dir);
+        }
+        return dir;
+    }
+
+    public static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.yellowbkpk.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yellowbkpk.osm.output.OSMChangeOutputter;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
+
+/**
+ * Reading converter output back in, as the glomifier does: one big file, or
+ * the same data split into chunk files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadingBenchmark {
+
+    @Param({ "1", "8" })
+    public int chunks;
+
+    private File dir;
+    private List<File> files;
+
+    @Setup
+    public void setUp() throws IOException {
+        OSMFile data = BenchmarkData.network(20000, 20, new Random(42));
+        dir = BenchmarkData.tempDirectory("load");
+
+        OSMChangeOutputter outputter = new OSMChangeOutputter(dir, "chunk", "benchmark");
+        outputter.setMaxElementsPerFile(data.getChangeCount() / chunks + 1);
+        outputter.start();
+        for (Iterator<Node> it = data.getNodeIterator(); it.hasNext();) {
+            outputter.addNode(it.next());
+        }
+        for (Iterator<Way> it = data.getWayIterator(); it.hasNext();) {
+            outputter.addWay(it.next());
+        }
+        for (Iterator<Relation> it = data.getRelationIterator(); it.hasNext();) {
+            outputter.addRelation(it.next());
+        }
+        outputter.finish();
+
+        files = Arrays.asList(dir.listFiles());
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public OSMFile fromFiles() {
+        return OSMFile.fromFiles(files);
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.yellowbkpk.osm.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yellowbkpk.osm.BenchmarkData;
+import com.yellowbkpk.osm.OSMFile;
+
+/**
+ * Writing a fixed {@link OSMFile} out as XML with each output format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializationBenchmark {
+
+    @Param({ "osm", "osmc" })
+    public String format;
+
+    private OSMFile data;
+    private File dir;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = BenchmarkData.network(20000, 20, new Random(42));
+        dir = BenchmarkData.tempDirectory("serialize");
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void write() {
+        // A new outputter every time so the same file gets overwritten.
+        OSMOutputter outputter;
+        if ("osmc".equals(format)) {
+            outputter = new OSMChangeOutputter(dir, "out", "benchmark");
+        } else {
+            outputter = new OSMOldOutputter(dir, "out", "benchmark");
+        }
+        outputter.write(data);
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.yellowbkpk.geo.gen;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Command line front end for {@link ShapefileGenerator}.
+ */
+public class Main {
+
+    public static void main(String[] args) {
+        CommandLineParser parser = new GnuParser();
+        Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("out")
+                .withDescription("Path of the shapefile to write, without the .shp.")
+                .withArgName("PATH")
+                .hasArg()
+                .isRequired()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("shape")
+                .withDescription("point, line or polygon. Default polygon.")
+                .withArgName("SHAPE")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("features")
+                .withDescription("Number of features. Default 1000.")
+                .withArgName("COUNT")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("vertices")
+                .withDescription("Mean vertices per line or polygon ring. Default 16.")
+                .withArgName("COUNT")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("distribution")
+                .withDescription("How vertex counts vary: fixed, uniform or exponential. Default fixed.")
+                .withArgName("DIST")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("holes")
+                .withDescription("Maximum holes per polygon. Default 0.")
+                .withArgName("COUNT")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("shared")
+                .withDescription("Share of polygons that tessellate with their neighbours, or of lines "
+                        + "that continue the previous line, from 0 to 1. Default 0.")
+                .withArgName("FRACTION")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("attributes")
+                .withDescription("Number of text attributes besides the ID. Default 4.")
+                .withArgName("COUNT")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("cardinality")
+                .withDescription("Distinct values per attribute. Default 100.")
+                .withArgName("COUNT")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("crs")
+                .withDescription("4326 or 3857. Default 4326.")
+                .withArgName("EPSG")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("seed")
+                .withDescription("Random seed. Default 42.")
+                .withArgName("SEED")
+                .hasArg()
+                .create());
+
+        try {
+            CommandLine line = parser.parse(options, args, false);
+
+            ShapefileGenerator generator = new ShapefileGenerator();
+            if (line.hasOption("shape")) {
+                generator.setShape(ShapefileGenerator.Shape.valueOf(line.getOptionValue("shape")));
+            }
+            if (line.hasOption("features")) {
+                generator.setFeatureCount(Integer.parseInt(line.getOptionValue("features")));
+            }
+            if (line.hasOption("vertices")) {
+                generator.setMeanVertices(Integer.parseInt(line.getOptionValue("vertices")));
+            }
+            if (line.hasOption("distribution")) {
+                generator.setDistribution(ShapefileGenerator.Distribution.valueOf(line
+                        .getOptionValue("distribution")));
+            }
+            if (line.hasOption("holes")) {
+                generator.setMaxHoles(Integer.parseInt(line.getOptionValue("holes")));
+            }
+            if (line.hasOption("shared")) {
+                generator.setSharedFraction(Double.parseDouble(line.getOptionValue("shared")));
+            }
+            if (line.hasOption("attributes")) {
+                generator.setAttributeCount(Integer.parseInt(line.getOptionValue("attributes")));
+            }
+            if (line.hasOption("cardinality")) {
+                generator.setCardinality(Integer.parseInt(line.getOptionValue("cardinality")));
+            }
+            if (line.hasOption("crs")) {
+                generator.setCrs(line.getOptionValue("crs"));
+            }
+            if (line.hasOption("seed")) {
+                generator.setSeed(Long.parseLong(line.getOptionValue("seed")));
+            }
+
+            File base = new File(line.getOptionValue("out"));
+            long start = System.currentTimeMillis();
+            generator.generate(base);
+            System.out.println("Wrote " + generator.getTotalVertices() + " vertices to " + base.getPath()
+                    + ".shp in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("java -cp shp-to-osm.jar com.yellowbkpk.geo.gen.Main", options, true);
+            System.exit(-1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        } catch (IOException e) {
+            System.err.println("Could not write the shapefile: " + e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+}
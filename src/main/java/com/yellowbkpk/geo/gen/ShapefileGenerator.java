@@ -0,0 +1,371 @@
+package com.yellowbkpk.geo.gen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates synthetic shapefiles of a given size and shape, so that
+ * performance runs have inputs that can be reproduced and shared. The same
+ * settings and seed always give the same files.
+ * <p>
+ * Features are laid out on a square grid of cells about 100m across:
+ * <ul>
+ * <li>Points are scattered one per cell.</li>
+ * <li>Lines are random walks starting in their cell. With a shared fraction,
+ * that share of lines continue from the end of the line before and copy its
+ * attributes, making chains for the glommer.</li>
+ * <li>Polygons fill their cell. With a shared fraction, that share of cells
+ * are full-size and have exactly the same vertices as their full-size
+ * neighbours along the edges they share (a tessellation); the rest are inset
+ * and share nothing.</li>
+ * </ul>
+ * Nothing but the current feature is held in memory, so the output can be as
+ * large as the shapefile format allows.
+ */
+public class ShapefileGenerator {
+
+    public enum Shape {
+        point, line, polygon
+    }
+
+    /**
+     * How the vertex count of each line or polygon edge is picked around the
+     * mean.
+     */
+    public enum Distribution {
+        fixed, uniform, exponential
+    }
+
+    private static final double ORIGIN_LON = -93.5;
+    private static final double ORIGIN_LAT = 44.5;
+    private static final double CELL_DEGREES = 0.001;
+    private static final double INSET = 0.1;
+    private static final double JITTER = 0.05;
+    private static final int MAX_VERTICES = 1000000;
+    private static final double EARTH_RADIUS = 6378137.0;
+
+    static final String WGS84_WKT = "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563,"
+            + "AUTHORITY[\"EPSG\",\"7030\"]],AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,"
+            + "AUTHORITY[\"EPSG\",\"8901\"]],UNIT[\"degree\",0.01745329251994328,AUTHORITY[\"EPSG\",\"9122\"]],"
+            + "AUTHORITY[\"EPSG\",\"4326\"]]";
+
+    static final String MERCATOR_WKT = "PROJCS[\"Google Mercator\",GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\","
+            + "SPHEROID[\"WGS 84\",6378137.0,298.257223563]],PRIMEM[\"Greenwich\",0.0],"
+            + "UNIT[\"degree\",0.017453292519943295]],PROJECTION[\"Mercator_1SP\"],"
+            + "PARAMETER[\"semi_minor\",6378137.0],PARAMETER[\"latitude_of_origin\",0.0],"
+            + "PARAMETER[\"central_meridian\",0.0],PARAMETER[\"scale_factor\",1.0],"
+            + "PARAMETER[\"false_easting\",0.0],PARAMETER[\"false_northing\",0.0],UNIT[\"m\",1.0],"
+            + "AUTHORITY[\"EPSG\",\"900913\"]]";
+
+    private Shape shape = Shape.polygon;
+    private int featureCount = 1000;
+    private int meanVertices = 16;
+    private Distribution distribution = Distribution.fixed;
+    private int maxHoles = 0;
+    private double sharedFraction = 0;
+    private int attributeCount = 4;
+    private int cardinality = 100;
+    private boolean mercator = false;
+    private long seed = 42;
+
+    // The current feature
+    private double[] xs = new double[1024];
+    private double[] ys = new double[1024];
+    private int vertexCount;
+    private int[] partStarts = new int[16];
+    private int partCount;
+    // Where the last line ended, in cells
+    private double lastX;
+    private double lastY;
+    private long totalVertices;
+
+    public void setShape(Shape shape) {
+        this.shape = shape;
+    }
+
+    public void setFeatureCount(int featureCount) {
+        this.featureCount = featureCount;
+    }
+
+    /**
+     * @param meanVertices The mean number of vertices of a line, or of the
+     *            outer ring of a polygon.
+     */
+    public void setMeanVertices(int meanVertices) {
+        this.meanVertices = Math.max(2, meanVertices);
+    }
+
+    public void setDistribution(Distribution distribution) {
+        this.distribution = distribution;
+    }
+
+    /**
+     * @param maxHoles Every polygon gets between 0 and this many holes.
+     */
+    public void setMaxHoles(int maxHoles) {
+        this.maxHoles = maxHoles;
+    }
+
+    /**
+     * @param sharedFraction Between 0 and 1: the share of polygons that are
+     *            part of the tessellation, or of lines that continue the line
+     *            before.
+     */
+    public void setSharedFraction(double sharedFraction) {
+        this.sharedFraction = sharedFraction;
+    }
+
+    /**
+     * @param attributeCount The number of text attributes besides the ID.
+     */
+    public void setAttributeCount(int attributeCount) {
+        this.attributeCount = attributeCount;
+    }
+
+    /**
+     * @param cardinality The number of distinct values of every attribute.
+     */
+    public void setCardinality(int cardinality) {
+        this.cardinality = Math.max(1, cardinality);
+    }
+
+    /**
+     * @param crs "4326" for WGS84 lat/lon or "3857" for spherical mercator.
+     */
+    public void setCrs(String crs) {
+        if ("4326".equals(crs)) {
+            mercator = false;
+        } else if ("3857".equals(crs) || "900913".equals(crs)) {
+            mercator = true;
+        } else {
+            throw new IllegalArgumentException("Unsupported CRS " + crs + ". Use 4326 or 3857.");
+        }
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return The total number of vertices written by the last run.
+     */
+    public long getTotalVertices() {
+        return totalVertices;
+    }
+
+    /**
+     * Writes the shapefile set.
+     *
+     * @param base The path of the output without an extension.
+     */
+    public void generate(File base) throws IOException {
+        ShapefileWriter.Field[] fields = new ShapefileWriter.Field[attributeCount + 1];
+        fields[0] = new ShapefileWriter.Field("ID", 'N', 10);
+        for (int a = 1; a <= attributeCount; a++) {
+            fields[a] = new ShapefileWriter.Field("ATTR" + a, 'C', 16);
+        }
+
+        int shapeType;
+        if (shape == Shape.point) {
+            shapeType = ShapefileWriter.SHAPE_POINT;
+        } else if (shape == Shape.line) {
+            shapeType = ShapefileWriter.SHAPE_POLYLINE;
+        } else {
+            shapeType = ShapefileWriter.SHAPE_POLYGON;
+        }
+
+        ShapefileWriter writer = new ShapefileWriter(base, shapeType, fields, mercator ? MERCATOR_WKT : WGS84_WKT);
+        try {
+            Random random = new Random(seed);
+            int side = (int) Math.ceil(Math.sqrt(featureCount));
+            String[] attributes = new String[fields.length];
+            totalVertices = 0;
+
+            for (int f = 0; f < featureCount; f++) {
+                int row = f / side;
+                int column = f % side;
+                boolean shared = random.nextDouble() < sharedFraction;
+
+                if (shape != Shape.line || !shared || f == 0) {
+                    for (int a = 1; a < attributes.length; a++) {
+                        attributes[a] = "v" + random.nextInt(cardinality);
+                    }
+                }
+                attributes[0] = Integer.toString(f + 1);
+
+                vertexCount = 0;
+                partCount = 0;
+                if (shape == Shape.point) {
+                    addVertex(column + random.nextDouble(), row + random.nextDouble());
+                    writer.write(xs[0], ys[0], attributes);
+                    totalVertices++;
+                    continue;
+                } else if (shape == Shape.line) {
+                    line(random, row, column, shared && f > 0);
+                } else {
+                    polygon(random, side, row, column, shared);
+                }
+                writer.write(xs, ys, vertexCount, partStarts, partCount, attributes);
+                totalVertices += vertexCount;
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * A random walk heading roughly east, about a cell long.
+     *
+     * @param continuation Whether to start where the last line ended.
+     */
+    private void line(Random random, int row, int column, boolean continuation) {
+        double x;
+        double y;
+        if (continuation) {
+            x = lastX;
+            y = lastY;
+        } else {
+            x = column + random.nextDouble() * 0.5;
+            y = row + random.nextDouble();
+        }
+
+        int n = Math.max(2, vertices(random, meanVertices));
+        double step = 1.0 / n;
+        startPart();
+        for (int i = 0; i < n; i++) {
+            addVertex(x, y);
+            lastX = x;
+            lastY = y;
+            x += step * random.nextDouble();
+            y += step * (random.nextDouble() - 0.5);
+        }
+    }
+
+    /**
+     * The outer ring goes clockwise and the holes counter-clockwise, as the
+     * shapefile spec wants.
+     */
+    private void polygon(Random random, int side, int row, int column, boolean full) {
+        double inset = full ? 0 : INSET;
+        double x0 = column + inset;
+        double x1 = column + 1 - inset;
+        double y0 = row + inset;
+        double y1 = row + 1 - inset;
+
+        // Edges are numbered so that both cells along an edge agree on it:
+        // vertical edges by the line they are on, horizontal ones likewise.
+        long left = edgeId(0, row, column, side);
+        long right = edgeId(0, row, column + 1, side);
+        long bottom = edgeId(1, row, column, side);
+        long top = edgeId(1, row + 1, column, side);
+
+        startPart();
+        edge(left, x0, y0, x0, y1, false);
+        edge(top, x0, y1, x1, y1, false);
+        edge(right, x1, y0, x1, y1, true);
+        edge(bottom, x0, y0, x1, y0, true);
+        addVertex(x0, y0);
+
+        int holes = maxHoles > 0 ? random.nextInt(maxHoles + 1) : 0;
+        if (holes > 0) {
+            int grid = (int) Math.ceil(Math.sqrt(holes));
+            double spacing = 0.5 / grid;
+            int holeVertices = Math.max(4, meanVertices / 4);
+            for (int h = 0; h < holes; h++) {
+                double cx = column + 0.25 + spacing * (h % grid + 0.5);
+                double cy = row + 0.25 + spacing * (h / grid + 0.5);
+                double radius = spacing * 0.3;
+
+                startPart();
+                for (int i = 0; i < holeVertices; i++) {
+                    double angle = 2 * Math.PI * i / holeVertices;
+                    addVertex(cx + radius * Math.cos(angle), cy + radius * Math.sin(angle));
+                }
+                addVertex(cx + radius, cy);
+            }
+        }
+    }
+
+    /**
+     * Adds the vertices of an edge, leaving off its last corner. The vertices
+     * in between only depend on the edge, so neighbours get the same ones.
+     *
+     * @param backwards Whether to go from (xb, yb) to (xa, ya) instead.
+     */
+    private void edge(long id, double xa, double ya, double xb, double yb, boolean backwards) {
+        Random random = new Random(seed * 31 + id);
+        int between = Math.max(0, vertices(random, meanVertices / 4) - 1);
+
+        // The jitter fades out towards the corners so that neighbouring
+        // edges can't cross each other.
+        double[] offsets = new double[between];
+        for (int i = 0; i < between; i++) {
+            double t = (i + 1) / (double) (between + 1);
+            offsets[i] = (random.nextDouble() - 0.5) * 2 * JITTER * 4 * t * (1 - t);
+        }
+
+        boolean vertical = xa == xb;
+        addVertex(backwards ? xb : xa, backwards ? yb : ya);
+        for (int j = 0; j < between; j++) {
+            int i = backwards ? between - 1 - j : j;
+            double t = (i + 1) / (double) (between + 1);
+            double x = xa + t * (xb - xa) + (vertical ? offsets[i] : 0);
+            double y = ya + t * (yb - ya) + (vertical ? 0 : offsets[i]);
+            addVertex(x, y);
+        }
+    }
+
+    private static long edgeId(int orientation, int row, int column, int side) {
+        return ((long) row * (side + 1) + column) * 2 + orientation;
+    }
+
+    private int vertices(Random random, int mean) {
+        mean = Math.max(1, mean);
+        int n;
+        if (distribution == Distribution.uniform) {
+            n = 1 + random.nextInt(2 * mean - 1);
+        } else if (distribution == Distribution.exponential) {
+            n = 1 + (int) Math.round(-Math.log(1 - random.nextDouble()) * (mean - 1));
+        } else {
+            n = mean;
+        }
+        return Math.min(n, MAX_VERTICES);
+    }
+
+    private void startPart() {
+        if (partCount == partStarts.length) {
+            int[] bigger = new int[partStarts.length * 2];
+            System.arraycopy(partStarts, 0, bigger, 0, partCount);
+            partStarts = bigger;
+        }
+        partStarts[partCount++] = vertexCount;
+    }
+
+    /**
+     * @param x The column, in cells.
+     * @param y The row, in cells.
+     */
+    private void addVertex(double x, double y) {
+        if (vertexCount == xs.length) {
+            double[] biggerX = new double[xs.length * 2];
+            double[] biggerY = new double[ys.length * 2];
+            System.arraycopy(xs, 0, biggerX, 0, vertexCount);
+            System.arraycopy(ys, 0, biggerY, 0, vertexCount);
+            xs = biggerX;
+            ys = biggerY;
+        }
+
+        double lon = ORIGIN_LON + x * CELL_DEGREES;
+        double lat = ORIGIN_LAT + y * CELL_DEGREES;
+        if (mercator) {
+            xs[vertexCount] = EARTH_RADIUS * Math.toRadians(lon);
+            ys[vertexCount] = EARTH_RADIUS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(lat) / 2));
+        } else {
+            xs[vertexCount] = lon;
+            ys[vertexCount] = lat;
+        }
+        vertexCount++;
+    }
+
+}
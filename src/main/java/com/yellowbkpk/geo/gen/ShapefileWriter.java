@@ -0,0 +1,315 @@
+package com.yellowbkpk.geo.gen;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a .shp/.shx/.dbf/.prj set one record at a time. Records go straight
+ * out to disk; the only things kept are the bounding box and the counts, and
+ * the headers that need them are rewritten in place by {@link #close()}. So
+ * the size of the output is only limited by the format (2GB per file).
+ */
+public class ShapefileWriter {
+
+    public static final int SHAPE_POINT = 1;
+    public static final int SHAPE_POLYLINE = 3;
+    public static final int SHAPE_POLYGON = 5;
+
+    private static final int HEADER_BYTES = 100;
+    private static final int FILE_CODE = 9994;
+    private static final int VERSION = 1000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /**
+     * The .dbf's last update date, as years since 1900, month and day. It's
+     * fixed so that the same records always make the same files.
+     */
+    private static final byte[] DBF_DATE = { 100, 1, 1 };
+
+    /**
+     * A .dbf column.
+     */
+    public static class Field {
+        final String name;
+        final char type;
+        final int length;
+
+        /**
+         * @param name Up to 10 characters.
+         * @param type 'C' for text, 'N' for integer numbers.
+         * @param length The width of the column in characters.
+         */
+        public Field(String name, char type, int length) {
+            if (name.length() > 10) {
+                throw new IllegalArgumentException("DBF field names can only be 10 characters: " + name);
+            }
+            this.name = name;
+            this.type = type;
+            this.length = length;
+        }
+    }
+
+    private final File shpFile;
+    private final File shxFile;
+    private final File dbfFile;
+    private final int shapeType;
+    private final Field[] fields;
+    private final int recordLength;
+
+    private final OutputStream shp;
+    private final OutputStream shx;
+    private final OutputStream dbf;
+
+    private int records = 0;
+    private long shpBytes = HEADER_BYTES;
+    private double minX = Double.POSITIVE_INFINITY;
+    private double minY = Double.POSITIVE_INFINITY;
+    private double maxX = Double.NEGATIVE_INFINITY;
+    private double maxY = Double.NEGATIVE_INFINITY;
+
+    private ByteBuffer record = ByteBuffer.allocate(1 << 16);
+    private final byte[] row;
+
+    /**
+     * @param base The path of the output without an extension.
+     * @param prjWkt The CRS to write to the .prj file.
+     */
+    public ShapefileWriter(File base, int shapeType, Field[] fields, String prjWkt) throws IOException {
+        this.shpFile = new File(base.getPath() + ".shp");
+        this.shxFile = new File(base.getPath() + ".shx");
+        this.dbfFile = new File(base.getPath() + ".dbf");
+        this.shapeType = shapeType;
+        this.fields = fields;
+
+        int length = 1;
+        for (Field field : fields) {
+            length += field.length;
+        }
+        this.recordLength = length;
+        this.row = new byte[recordLength];
+
+        Writer prj = new FileWriter(base.getPath() + ".prj");
+        try {
+            prj.write(prjWkt);
+        } finally {
+            prj.close();
+        }
+
+        shp = new BufferedOutputStream(new FileOutputStream(shpFile), 1 << 16);
+        shx = new BufferedOutputStream(new FileOutputStream(shxFile), 1 << 16);
+        dbf = new BufferedOutputStream(new FileOutputStream(dbfFile), 1 << 16);
+
+        // Placeholders until the counts and the bounds are known.
+        shp.write(new byte[HEADER_BYTES]);
+        shx.write(new byte[HEADER_BYTES]);
+        dbf.write(dbfHeader());
+    }
+
+    /**
+     * Writes a point record.
+     */
+    public void write(double x, double y, String[] attributes) throws IOException {
+        if (shapeType != SHAPE_POINT) {
+            throw new IllegalStateException("This is not a point shapefile.");
+        }
+
+        ByteBuffer content = content(20);
+        content.putInt(SHAPE_POINT);
+        content.putDouble(x);
+        content.putDouble(y);
+        extend(x, y);
+        finishRecord(content, attributes);
+    }
+
+    /**
+     * Writes a line or polygon record.
+     *
+     * @param partStarts The index in xs/ys of the first vertex of every part.
+     * @param vertexCount How many entries of xs/ys are used.
+     */
+    public void write(double[] xs, double[] ys, int vertexCount, int[] partStarts, int partCount,
+            String[] attributes) throws IOException {
+        if (shapeType == SHAPE_POINT) {
+            throw new IllegalStateException("This is a point shapefile.");
+        }
+
+        double boxMinX = Double.POSITIVE_INFINITY;
+        double boxMinY = Double.POSITIVE_INFINITY;
+        double boxMaxX = Double.NEGATIVE_INFINITY;
+        double boxMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < vertexCount; i++) {
+            boxMinX = Math.min(boxMinX, xs[i]);
+            boxMinY = Math.min(boxMinY, ys[i]);
+            boxMaxX = Math.max(boxMaxX, xs[i]);
+            boxMaxY = Math.max(boxMaxY, ys[i]);
+        }
+        extend(boxMinX, boxMinY);
+        extend(boxMaxX, boxMaxY);
+
+        ByteBuffer content = content(44 + 4 * partCount + 16 * vertexCount);
+        content.putInt(shapeType);
+        content.putDouble(boxMinX);
+        content.putDouble(boxMinY);
+        content.putDouble(boxMaxX);
+        content.putDouble(boxMaxY);
+        content.putInt(partCount);
+        content.putInt(vertexCount);
+        for (int p = 0; p < partCount; p++) {
+            content.putInt(partStarts[p]);
+        }
+        for (int i = 0; i < vertexCount; i++) {
+            content.putDouble(xs[i]);
+            content.putDouble(ys[i]);
+        }
+        finishRecord(content, attributes);
+    }
+
+    public int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Finishes the files and fills in their headers.
+     */
+    public void close() throws IOException {
+        shp.close();
+        shx.close();
+        dbf.write(0x1a);
+        dbf.close();
+
+        if (records == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        patch(shpFile, mainHeader(shpBytes));
+        patch(shxFile, mainHeader(HEADER_BYTES + 8L * records));
+        patch(dbfFile, dbfHeader());
+    }
+
+    /**
+     * @return A little-endian buffer with room for the record header and the
+     *         given content, positioned after the record header.
+     */
+    private ByteBuffer content(int contentBytes) {
+        if (record.capacity() < 8 + contentBytes) {
+            record = ByteBuffer.allocate(Math.max(8 + contentBytes, record.capacity() * 2));
+        }
+        record.clear();
+        record.order(ByteOrder.BIG_ENDIAN);
+        record.putInt(records + 1);
+        record.putInt(contentBytes / 2);
+        record.order(ByteOrder.LITTLE_ENDIAN);
+        return record;
+    }
+
+    private void finishRecord(ByteBuffer content, String[] attributes) throws IOException {
+        int length = content.position();
+        if (shpBytes + length > Integer.MAX_VALUE) {
+            throw new IOException("Shapefiles can't be bigger than 2GB.");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(8);
+        index.putInt((int) (shpBytes / 2));
+        index.putInt((length - 8) / 2);
+        shx.write(index.array());
+
+        shp.write(content.array(), 0, length);
+        shpBytes += length;
+
+        writeRow(attributes);
+        records++;
+    }
+
+    private void writeRow(String[] attributes) throws IOException {
+        row[0] = ' ';
+        int offset = 1;
+        for (int f = 0; f < fields.length; f++) {
+            Field field = fields[f];
+            byte[] value = attributes[f] == null ? new byte[0] : attributes[f].getBytes(ASCII);
+            int length = Math.min(value.length, field.length);
+            int pad = field.length - length;
+            if (field.type == 'N') {
+                // Numbers are right-aligned.
+                fill(row, offset, pad);
+                System.arraycopy(value, 0, row, offset + pad, length);
+            } else {
+                System.arraycopy(value, 0, row, offset, length);
+                fill(row, offset + length, pad);
+            }
+            offset += field.length;
+        }
+        dbf.write(row);
+    }
+
+    private static void fill(byte[] bytes, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            bytes[offset + i] = ' ';
+        }
+    }
+
+    private void extend(double x, double y) {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+    }
+
+    private byte[] mainHeader(long fileBytes) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(FILE_CODE);
+        header.position(24);
+        header.putInt((int) (fileBytes / 2));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(VERSION);
+        header.putInt(shapeType);
+        header.putDouble(minX);
+        header.putDouble(minY);
+        header.putDouble(maxX);
+        header.putDouble(maxY);
+        return header.array();
+    }
+
+    private byte[] dbfHeader() {
+        int headerLength = 32 + 32 * fields.length + 1;
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put((byte) 0x03);
+        header.put(DBF_DATE);
+        header.putInt(records);
+        header.putShort((short) headerLength);
+        header.putShort((short) recordLength);
+
+        for (int f = 0; f < fields.length; f++) {
+            header.position(32 + 32 * f);
+            header.put(fields[f].name.getBytes(ASCII));
+            header.position(32 + 32 * f + 11);
+            header.put((byte) fields[f].type);
+            header.position(32 + 32 * f + 16);
+            header.put((byte) fields[f].length);
+            header.put((byte) 0);
+        }
+        header.position(headerLength - 1);
+        header.put((byte) 0x0d);
+        return header.array();
+    }
+
+    private static void patch(File file, byte[] header) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(0);
+            out.write(header);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.yellowbkpk.geo.glom;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.io.PrimitiveCodec;
+import com.yellowbkpk.osm.io.SortedSpill;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.util.ConversionEvents;
+import com.yellowbkpk.osm.util.HilbertCurve;
+import com.yellowbkpk.osm.util.IDGenerator;
+
+/**
+ * A {@link Glommer} for more ways than fit in memory.
+ * <p>
+ * Ways are written to a {@link SortedSpill} keyed by the Hilbert key of
+ * their lower endpoint, and read back in that order to be glommed a
+ * partition at a time. Every way still to come has both of its ends at or
+ * past the current partition's boundary key, so a glommed chain with both
+ * ends before the boundary is done and goes straight to the outputter. The
+ * rest are carried into the next partition.
+ */
+public class ExternalGlommer {
+
+    private static Logger log = Logger.getLogger(ExternalGlommer.class.getName());
+
+    /**
+     * How much bigger a way is on the heap than serialized. Used to turn the
+     * memory budget into a partition size.
+     */
+    private static final int HEAP_EXPANSION = 4;
+
+    private final Glommer glommer;
+    private final long memoryBudget;
+    private final SortedSpill spill;
+
+    /**
+     * @param glomKey The key to glom on.
+     * @param memoryBudget The number of bytes of heap to use for buffering
+     *            and glomming.
+     * @param tempDir Where to put the spill files, or null for the default
+     *            temporary directory.
+     */
+    public ExternalGlommer(String glomKey, long memoryBudget, File tempDir) {
+        this.glommer = new ParallelGlommer(glomKey);
+        this.memoryBudget = memoryBudget;
+        this.spill = new SortedSpill("glom", memoryBudget / 2, tempDir);
+    }
+
+    /**
+     * @param way A way with a value for the glom key and at least two nodes.
+     */
+    public void add(Way way) throws IOException {
+        // Spilled ways are read back as new objects, so a node shared by two
+        // ways needs its ID now to stay one node afterwards.
+        if (way.getID() == 0) {
+            way.setID(IDGenerator.get().nextWayID());
+        }
+        for (Node node : way.getNodes()) {
+            if (node.getID() == 0) {
+                node.setID(IDGenerator.get().nextNodeID());
+            }
+        }
+
+        DataOutputStream out = spill.begin(sortKey(way));
+        PrimitiveCodec.writeWay(out, way);
+        spill.end();
+    }
+
+    /**
+     * Gloms everything added so far and adds the results to the outputter.
+     * Temporary files are removed afterwards.
+     */
+    public void finish(OSMOutputter outputter) throws IOException {
+        // If nothing was spilled, everything fits in memory and is glommed
+        // in one go.
+        long partitionLimit = spill.getRunCount() > 0 ? memoryBudget / HEAP_EXPANSION : Long.MAX_VALUE;
+        log.log(Level.INFO, "Glomming " + spill.size() + " ways from " + spill.getRunCount() + " sorted runs.");
+
+        ConversionEvents events = ConversionEvents.get();
+        Object event = events.beginGlomPhase();
+        SortedSpill.Reader reader = spill.sorted();
+        events.endGlomPhase(event, "sort", (int) spill.size());
+        try {
+            OSMFile partition = new OSMFile();
+            long partitionBytes = 0;
+            while (reader.next()) {
+                if (partitionBytes >= partitionLimit) {
+                    // This way is the first past the partition.
+                    List<Way> carried = glomPartition(partition, reader.key(), outputter);
+
+                    partition = new OSMFile();
+                    partitionBytes = 0;
+                    for (Way way : carried) {
+                        partition.addWay(way);
+                    }
+                }
+                partition.addWay(PrimitiveCodec.readWay(reader.record()));
+                partitionBytes += reader.length();
+            }
+            glomPartition(partition, Long.MAX_VALUE, outputter);
+        } finally {
+            reader.close();
+            spill.delete();
+        }
+    }
+
+    /**
+     * @return The glommed ways that might still connect to ways after the
+     *         boundary. Everything else is added to the outputter.
+     */
+    private List<Way> glomPartition(OSMFile partition, long boundary, OSMOutputter outputter) {
+        OSMFile glommed = glommer.glom(partition);
+        List<Way> carried = new ArrayList<Way>();
+
+        Iterator<Way> wayIterator = glommed.getWayIterator();
+        while (wayIterator.hasNext()) {
+            Way way = wayIterator.next();
+            List<Node> nodes = way.getNodes();
+            Node first = nodes.get(0);
+            Node last = nodes.get(nodes.size() - 1);
+            if (HilbertCurve.key(first.getLat(), first.getLon()) >= boundary
+                    || HilbertCurve.key(last.getLat(), last.getLon()) >= boundary) {
+                carried.add(way);
+            } else {
+                outputter.addWay(way);
+            }
+        }
+
+        log.log(Level.FINE, "Glommed a partition, carrying " + carried.size() + " ways forward.");
+        return carried;
+    }
+
+    private static long sortKey(Way way) {
+        List<Node> nodes = way.getNodes();
+        Node first = nodes.get(0);
+        Node last = nodes.get(nodes.size() - 1);
+        return Math.min(HilbertCurve.key(first.getLat(), first.getLon()),
+                HilbertCurve.key(last.getLat(), last.getLon()));
+    }
+
+}
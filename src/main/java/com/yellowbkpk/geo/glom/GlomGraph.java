@@ -0,0 +1,273 @@
+package com.yellowbkpk.geo.glom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.util.CoordinateKey;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * The endpoint graph of the ways being glommed. Every way has two ends,
+ * numbered <code>2 * way</code> and <code>2 * way + 1</code>, and each end is
+ * linked to at most one end of another way with the same glom value at the
+ * same (quantized) location. Chains of linked ways are grouped with a
+ * union-find forest and then walked to build the merged ways.
+ * <p>
+ * Every decision here only depends on the ends at a single location and on
+ * the input order of the ways, so the same graph can be linked in any number
+ * of independent pieces and still assemble to the same output.
+ */
+class GlomGraph {
+
+    static final int MAX_NODES_IN_WAY = 2000;
+
+    private static final int NO_LINK = -1;
+
+    private final Way[] ways;
+    private final int[] valueIds;
+    private final int[] nodeCounts;
+    private final long[] endKeys;
+    private final int[] links;
+    private final int[] parents;
+
+    GlomGraph(List<Way> candidateWays, int[] candidateValueIds) {
+        int n = candidateWays.size();
+        ways = candidateWays.toArray(new Way[n]);
+        valueIds = candidateValueIds;
+        nodeCounts = new int[n];
+        endKeys = new long[2 * n];
+        links = new int[2 * n];
+        parents = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            List<Node> nodes = ways[i].getNodes();
+            Node first = nodes.get(0);
+            Node last = nodes.get(nodes.size() - 1);
+            nodeCounts[i] = nodes.size();
+            endKeys[2 * i] = CoordinateKey.of(first.getLat(), first.getLon());
+            endKeys[2 * i + 1] = CoordinateKey.of(last.getLat(), last.getLon());
+            links[2 * i] = NO_LINK;
+            links[2 * i + 1] = NO_LINK;
+            parents[i] = i;
+        }
+    }
+
+    int wayCount() {
+        return ways.length;
+    }
+
+    long endKey(int end) {
+        return endKeys[end];
+    }
+
+    /**
+     * Pairs up ends at the same location that have the same glom value. Ends
+     * at one location are paired in ascending end order, so a junction of
+     * three ways joins the first two and leaves the third alone.
+     *
+     * @param ends The ends to link, in ascending order. Every end at a given
+     *            location has to be in the same call.
+     * @param from The first entry of <code>ends</code> to use.
+     * @param to One past the last entry of <code>ends</code> to use.
+     */
+    void link(int[] ends, int from, int to) {
+        // Location -> position in ends of the first pending end there.
+        // Pending ends at the same location but with other values hang off
+        // of pendingNext.
+        LongIntHashMap pendingAt = new LongIntHashMap(to - from, NO_LINK);
+        int[] pendingNext = new int[to - from];
+
+        for (int i = from; i < to; i++) {
+            int end = ends[i];
+            long location = endKeys[end];
+            int value = valueIds[end >> 1];
+
+            int previous = NO_LINK;
+            int pending = pendingAt.get(location);
+            while (pending != NO_LINK && valueIds[ends[pending] >> 1] != value) {
+                previous = pending;
+                pending = pendingNext[pending - from];
+            }
+
+            if (pending == NO_LINK) {
+                // First end with this value here; wait for a partner.
+                pendingNext[i - from] = pendingAt.get(location);
+                pendingAt.put(location, i);
+            } else {
+                links[ends[pending]] = end;
+                links[end] = ends[pending];
+                if (previous == NO_LINK) {
+                    pendingAt.put(location, pendingNext[pending - from]);
+                } else {
+                    pendingNext[previous - from] = pendingNext[pending - from];
+                }
+            }
+        }
+    }
+
+    /**
+     * Links every end in the graph.
+     */
+    void linkAll() {
+        int[] ends = new int[links.length];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = i;
+        }
+        link(ends, 0, ends.length);
+    }
+
+    /**
+     * @return The end linked to the given one, or a negative number.
+     */
+    int partner(int end) {
+        return links[end];
+    }
+
+    int find(int way) {
+        while (parents[way] != way) {
+            parents[way] = parents[parents[way]];
+            way = parents[way];
+        }
+        return way;
+    }
+
+    /**
+     * Joins the components of the two ways, keeping the smaller index as the
+     * root so that a root is always the first way of its chain.
+     */
+    void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) {
+            parents[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parents[rootA] = rootB;
+        }
+    }
+
+    /**
+     * Unions the way with every way it is linked to.
+     */
+    void unionLinks(int way) {
+        int partner = links[2 * way];
+        if (partner >= 0) {
+            union(way, partner >> 1);
+        }
+        partner = links[2 * way + 1];
+        if (partner >= 0) {
+            union(way, partner >> 1);
+        }
+    }
+
+    /**
+     * Builds the merged ways for the chain that the given way starts.
+     *
+     * @param first The lowest-indexed way of its chain.
+     * @return The ways to output in place of the chain, none of them longer
+     *         than {@link #MAX_NODES_IN_WAY} nodes.
+     */
+    List<Way> assemble(int first) {
+        // Walk out of the first way's start to find one end of the chain, or
+        // find out that the chain is a loop.
+        int terminal = 2 * first;
+        boolean loop = false;
+        while (links[terminal] >= 0) {
+            int entered = links[terminal];
+            if ((entered >> 1) == first) {
+                loop = true;
+                break;
+            }
+            terminal = entered ^ 1;
+        }
+
+        int start;
+        if (loop) {
+            // Cut the loop in front of the first way.
+            start = 2 * first;
+        } else {
+            int otherTerminal = 2 * first + 1;
+            while (links[otherTerminal] >= 0) {
+                otherTerminal = links[otherTerminal] ^ 1;
+            }
+
+            // Start from whichever end of the chain belongs to the earlier
+            // way. A lone way just keeps its direction.
+            if ((otherTerminal >> 1) < (terminal >> 1)) {
+                start = otherTerminal;
+            } else if ((otherTerminal >> 1) > (terminal >> 1)) {
+                start = terminal;
+            } else {
+                start = Math.min(terminal, otherTerminal);
+            }
+        }
+
+        List<Way> out = new ArrayList<Way>();
+        List<Way> piece = new ArrayList<Way>();
+        List<Boolean> reversed = new ArrayList<Boolean>();
+        int pieceNodes = 0;
+
+        int entered = start;
+        while (true) {
+            int way = entered >> 1;
+            if (!piece.isEmpty() && pieceNodes + nodeCounts[way] - 1 > MAX_NODES_IN_WAY) {
+                out.add(merge(piece, reversed, out.isEmpty() ? null : out.get(out.size() - 1)));
+                piece.clear();
+                reversed.clear();
+                pieceNodes = 1;
+            }
+            piece.add(ways[way]);
+            reversed.add((entered & 1) == 1);
+            pieceNodes += piece.size() == 1 && out.isEmpty() ? nodeCounts[way] : nodeCounts[way] - 1;
+
+            int next = links[entered ^ 1];
+            if (next < 0 || (loop && (next >> 1) == first)) {
+                break;
+            }
+            entered = next;
+        }
+        out.add(merge(piece, reversed, out.isEmpty() ? null : out.get(out.size() - 1)));
+
+        return out;
+    }
+
+    /**
+     * @param previous The piece before this one in the chain, whose last node
+     *            this piece has to start with, or null.
+     */
+    private static Way merge(List<Way> piece, List<Boolean> reversed, Way previous) {
+        if (piece.size() == 1 && previous == null && !reversed.get(0)) {
+            // Nothing to glom, so keep the original untouched.
+            return piece.get(0);
+        }
+
+        Way merged = new Way();
+        merged.copyTags(piece.get(0));
+        merged.setID(piece.get(0).getID());
+
+        Node last = null;
+        if (previous != null) {
+            last = previous.getNodes().get(previous.nodeCount() - 1);
+            merged.addNode(last);
+        }
+
+        for (int i = 0; i < piece.size(); i++) {
+            List<Node> nodes = piece.get(i).getNodes();
+            Node[] ordered = nodes.toArray(new Node[nodes.size()]);
+            boolean backwards = reversed.get(i);
+
+            // The first node of every way after the first is the same
+            // location as the last node already added, so drop it.
+            int skip = (last == null) ? 0 : 1;
+            for (int j = skip; j < ordered.length; j++) {
+                Node node = backwards ? ordered[ordered.length - 1 - j] : ordered[j];
+                merged.addNode(node);
+                last = node;
+            }
+        }
+
+        return merged;
+    }
+
+}
@@ -1,125 +1,159 @@
 package com.yellowbkpk.geo.glom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import com.yellowbkpk.osm.ElementStore;
 import com.yellowbkpk.osm.OSMFile;
-import com.yellowbkpk.osm.primitive.node.LatLon;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
 import com.yellowbkpk.osm.primitive.node.Node;
 import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.ConversionEvents;
+import com.yellowbkpk.osm.util.LongIntHashMap;
 
 
+/**
+ * Connects ways that share a value for the glom key and meet end to end.
+ * <p>
+ * Way ends are indexed by their quantized location, ends with the same value
+ * at the same location are linked in pairs and the resulting chains are
+ * joined into ways of at most 2000 nodes. Everything runs in time linear in
+ * the number of ways and nodes.
+ */
 public class Glommer {
-    
+
     private final String key;
 
     public Glommer(String keyToGlomOn) {
         key = keyToGlomOn;
     }
 
-    public OSMFile glom(OSMFile data) {
-        Map<LatLon, List<Node>> locToNodes = new HashMap<LatLon, List<Node>>();
-        Map<Node, List<Way>> nodeToWays = new HashMap<Node, List<Way>>();
+    public OSMFile glom(ElementStore data) {
+        ConversionEvents events = ConversionEvents.get();
         OSMFile out = new OSMFile();
-        
-        // Iterate over the entire file creating reverse mappings
+        Object event = events.beginGlomPhase();
+        Candidates candidates = collectCandidates(data, out);
+        events.endGlomPhase(event, "collect", data.getWayCount());
+
+        event = events.beginGlomPhase();
+        GlomGraph graph = new GlomGraph(candidates.ways, candidates.valueIds());
+        graph.linkAll();
+        events.endGlomPhase(event, "link", graph.wayCount());
+
+        event = events.beginGlomPhase();
+        for (int i = 0; i < graph.wayCount(); i++) {
+            graph.unionLinks(i);
+        }
+        events.endGlomPhase(event, "union", graph.wayCount());
+
+        event = events.beginGlomPhase();
+        for (int i = 0; i < graph.wayCount(); i++) {
+            // Roots are the first way of their chain, so each chain gets
+            // assembled exactly once and in input order.
+            if (graph.find(i) == i) {
+                for (Way way : graph.assemble(i)) {
+                    out.addWay(way);
+                }
+            }
+        }
+        events.endGlomPhase(event, "assemble", graph.wayCount());
+
+        candidates.finish(out);
+        return out;
+    }
+
+    /**
+     * Splits the input into ways that can be glommed and everything else.
+     * Everything else is added to <code>out</code> as-is, except for loose
+     * nodes, which are held back until {@link Candidates#finish(OSMFile)}.
+     */
+    Candidates collectCandidates(ElementStore data, OSMFile out) {
+        Candidates candidates = new Candidates();
+
+        // Ways that are part of a relation have to stay the way they are.
+        LongIntHashMap relationWays = new LongIntHashMap(0);
+        Iterator<Relation> relationIterator = data.getRelationIterator();
+        while (relationIterator.hasNext()) {
+            Relation relation = relationIterator.next();
+            for (Member member : relation.getMembers()) {
+                Primitive primitive = member.getMember();
+                if (PrimitiveTypeEnum.way.equals(primitive.getType())) {
+                    relationWays.put(primitive.getID(), 1);
+                }
+            }
+            candidates.relations.add(relation);
+        }
+
+        Map<String, Integer> valueIds = new HashMap<String, Integer>();
         Iterator<Way> wayIterator = data.getWayIterator();
         while (wayIterator.hasNext()) {
             Way way = wayIterator.next();
+            List<Node> nodes = way.getNodes();
+            for (Node node : nodes) {
+                candidates.wayNodes.put(node.getID(), 1);
+            }
+
             String value = way.getTagValue(key);
-            
-            if(value == null) {
+            if (value == null || nodes.size() < 2 || isClosed(nodes) || relationWays.containsKey(way.getID())) {
                 // No matching key, so just add it as-is to the file
                 out.addWay(way);
-                wayIterator.remove();
                 continue;
             }
 
-            List<Node> nodeList = way.getNodes();
-            for (int i = 0; i < nodeList.size(); i++) {
-                Node node = nodeList.get(i);
-                LatLon point = node.getPoint();
-
-                // Gather all the ways that share this node
-                List<Way> waysWithNode = nodeToWays.get(node);
-                if(waysWithNode == null) {
-                    waysWithNode = new LinkedList<Way>();
-                    nodeToWays.put(node, waysWithNode);
-                }
-                waysWithNode.add(way);
-
-                // Gather all the nodes that share this location
-                List<Node> nodesAtPoint = locToNodes.get(point);
-                if(nodesAtPoint == null) {
-                    nodesAtPoint = new LinkedList<Node>();
-                    locToNodes.put(point, nodesAtPoint);
-                }
-                nodesAtPoint.add(node);
+            Integer valueId = valueIds.get(value);
+            if (valueId == null) {
+                valueId = valueIds.size();
+                valueIds.put(value, valueId);
             }
+            candidates.ways.add(way);
+            candidates.values.add(valueId);
         }
-        
-        // Ditch the entries that only have one element lists
-        // TODO Maybe we don't need to do this
-        Iterator<List<Way>> iterator1 = nodeToWays.values().iterator();
-        while (iterator1.hasNext()) {
-            List<Way> ways = iterator1.next();
-            if(ways.size() < 2) {
-                iterator1.remove();
+
+        candidates.nodeIterator = data.getNodeIterator();
+        return candidates;
+    }
+
+    private static boolean isClosed(List<Node> nodes) {
+        Node first = nodes.get(0);
+        Node last = nodes.get(nodes.size() - 1);
+        return first.getLat() == last.getLat() && first.getLon() == last.getLon();
+    }
+
+    static class Candidates {
+        final List<Way> ways = new ArrayList<Way>();
+        final List<Integer> values = new ArrayList<Integer>();
+        final List<Relation> relations = new ArrayList<Relation>();
+        final LongIntHashMap wayNodes = new LongIntHashMap(0);
+        Iterator<Node> nodeIterator;
+
+        int[] valueIds() {
+            int[] ids = new int[values.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = values.get(i);
             }
+            return ids;
         }
-        
-        Iterator<List<Node>> iterator2 = locToNodes.values().iterator();
-        while (iterator2.hasNext()) {
-            List<Node> nodes = iterator2.next();
-            if(nodes.size() < 2) {
-                iterator2.remove();
+
+        /**
+         * Adds the relations and the nodes that don't belong to any way.
+         */
+        void finish(OSMFile out) {
+            for (Relation relation : relations) {
+                out.addRelation(relation);
             }
-        }
-        
-        // Iterate over the ways again, but this time remove duplicate nodes
-        // that are part of ways with matching key values.
-        wayIterator = data.getWayIterator();
-        while (wayIterator.hasNext()) {
-            Way originalWay = wayIterator.next();
-            String value = originalWay.getTagValue(key);
-            
-            Way newWay = new Way();
-            newWay.copyTags(originalWay);
-
-            Iterator<Node> originalNodeIterator = originalWay.getNodeIterator();
-            while(originalNodeIterator.hasNext()) {
-                Node node = originalNodeIterator.next();
-                LatLon point = node.getPoint();
-                
-                // Find other nodes that use this node's location
-                List<Node> suspectNodes = locToNodes.get(point);
-                if (suspectNodes != null) {
-                    Iterator<Node> suspectNodesIter = suspectNodes.iterator();
-                    while(suspectNodesIter.hasNext()) {
-                        Node suspectNode = suspectNodesIter.next();
-                        
-                        // Find the ways that use this other node
-                        List<Way> suspectWays = nodeToWays.get(suspectNode);
-                        if(suspectWays != null) {
-                            for (Way suspectWay : suspectWays) {
-                                if (!suspectWay.equals(originalWay) && suspectWay.getTagValue(key).equals(value)) {
-                                    // The suspect way has the same tag value as the
-                                    // way we're looking at, so the current way
-                                    // should have the suspect way's node added
-                                    // instead of the current way's.
-                                }
-                            }
-                        }
-                    }
+
+            while (nodeIterator.hasNext()) {
+                Node node = nodeIterator.next();
+                if (!wayNodes.containsKey(node.getID())) {
+                    out.addNode(node);
                 }
             }
-            
-            out.addWay(newWay);
         }
-
-        return out;
     }
 
 }
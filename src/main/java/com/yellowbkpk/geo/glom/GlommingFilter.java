@@ -1,26 +1,48 @@
 package com.yellowbkpk.geo.glom;
-import com.yellowbkpk.osm.OSMFile;
+import java.io.File;
+
+import com.yellowbkpk.osm.ElementStore;
+import com.yellowbkpk.osm.output.Features;
+import com.yellowbkpk.osm.output.OSMOutputter;
 import com.yellowbkpk.osm.output.OutputFilter;
 
 
+/**
+ * Gloms the ways of a whole dataset with a {@link GlommingOutputter}, so
+ * that the ways are spilled to disk rather than held on the heap.
+ */
 public class GlommingFilter implements OutputFilter {
 
-    private Glommer glommer;
+    private final String glomKey;
+    private final long memoryBudget;
+    private final File tempDir;
 
     /**
      * @param glomKey
      */
     public GlommingFilter(String glomKey) {
-        glommer = new Glommer(glomKey);
+        this(glomKey, Runtime.getRuntime().maxMemory() / 4, null);
+    }
+
+    /**
+     * @param memoryBudget The number of bytes of heap the glommer may use.
+     * @param tempDir Where to spill ways to, or null for the default
+     *            temporary directory.
+     */
+    public GlommingFilter(String glomKey, long memoryBudget, File tempDir) {
+        this.glomKey = glomKey;
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
     }
 
     /**
      * {@inheritDoc}
-     * @return 
      */
-    public OSMFile apply(OSMFile out) {
-        System.out.println("Glomming " + out.getWayCount() + " ways.");
-        return glommer.glom(out);
+    public void apply(ElementStore in, OSMOutputter out) {
+        System.err.println("Glomming " + in.getWayCount() + " ways.");
+        GlommingOutputter glommer = new GlommingOutputter(out, glomKey, memoryBudget, tempDir);
+        Features.addAll(in, glommer);
+        glommer.flush();
     }
 
 }
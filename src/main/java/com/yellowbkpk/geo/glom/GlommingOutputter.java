@@ -0,0 +1,103 @@
+package com.yellowbkpk.geo.glom;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.output.Features;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
+
+/**
+ * Gloms ways on their way to another outputter without holding the whole
+ * dataset in memory. Ways with a value for the glom key are handed to an
+ * {@link ExternalGlommer}, everything else goes straight through. The
+ * glommed ways are streamed to the final outputter when this one finishes.
+ */
+public class GlommingOutputter implements OSMOutputter {
+
+    private final String glomKey;
+    private final ExternalGlommer glommer;
+    private final OSMOutputter finalOutput;
+
+    /**
+     * @param memoryBudget The number of bytes of heap the glommer may use.
+     * @param tempDir Where to spill ways to, or null for the default
+     *            temporary directory.
+     */
+    public GlommingOutputter(OSMOutputter finalOutput, String glomKey, long memoryBudget, File tempDir) {
+        this.finalOutput = finalOutput;
+        this.glomKey = glomKey;
+        this.glommer = new ExternalGlommer(glomKey, memoryBudget, tempDir);
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+        finalOutput.setMaxElementsPerFile(maxPerFile);
+    }
+
+    public void start() {
+        finalOutput.start();
+    }
+
+    public void addWay(Way way) {
+        List<Node> nodes = way.getNodes();
+        if (way.getTagValue(glomKey) == null || nodes.size() < 2 || isClosed(nodes)) {
+            finalOutput.addWay(way);
+            return;
+        }
+
+        try {
+            glommer.add(way);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not spill ways to disk.", e);
+        }
+    }
+
+    /**
+     * Nodes from the converter don't have IDs yet, so a way is closed when
+     * its ends are in the same place, as in {@link Glommer}.
+     */
+    private static boolean isClosed(List<Node> nodes) {
+        Node first = nodes.get(0);
+        Node last = nodes.get(nodes.size() - 1);
+        return first.getLat() == last.getLat() && first.getLon() == last.getLon();
+    }
+
+    public void addRelation(Relation relation) {
+        finalOutput.addRelation(relation);
+    }
+
+    public void addNode(Node node) {
+        finalOutput.addNode(node);
+    }
+
+    public void finish() {
+        flush();
+        finalOutput.finish();
+    }
+
+    /**
+     * Gloms the ways added so far and adds them to the final outputter,
+     * without finishing it. Nothing can be added afterwards.
+     */
+    public void flush() {
+        try {
+            glommer.finish(finalOutput);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read spilled ways back from disk.", e);
+        }
+    }
+
+    /**
+     * Feeds a whole file through this outputter. Relations go out with their
+     * members, so ways that are part of a relation aren't glommed, as in
+     * {@link Glommer}, and aren't passed on a second time.
+     */
+    public void write(OSMFile out) {
+        Features.addAll(out, this);
+    }
+
+}
@@ -33,6 +33,11 @@ public class Main {
                 .hasArg()
                 .isRequired()
                 .create());
+        options.addOption(OptionBuilder.withLongOpt("memory")
+                .withDescription("Glom out of core using at most this many megabytes of heap.")
+                .withArgName("MB")
+                .hasArg()
+                .create());
         
         try {
             CommandLine line = parser.parse(options, args, false);
@@ -59,12 +64,26 @@ public class Main {
                 files.add(file);
             }
             
+            OSMOutputter outputter = new OSMOldOutputter(new File("."), "glommed", "glomifier 0.1");
+
+            if (line.hasOption("memory")) {
+                // Read one file at a time and let the glommer spill to disk.
+                long budget = Long.parseLong(line.getOptionValue("memory")) * 1024 * 1024;
+                outputter.setMaxElementsPerFile(50000);
+                GlommingOutputter glommer = new GlommingOutputter(outputter, keyToGlomOn, budget, null);
+                glommer.start();
+                for (File file : files) {
+                    glommer.write(OSMFile.fromFile(file));
+                }
+                glommer.finish();
+                return;
+            }
+            
             OSMFile aggregate = OSMFile.fromFiles(files);
             
-            Glommer g = new Glommer(keyToGlomOn);
+            Glommer g = new ParallelGlommer(keyToGlomOn);
             OSMFile out = g.glom(aggregate);
             
-            OSMOutputter outputter = new OSMOldOutputter(new File("."), "glommed", "glomifier 0.1");
             outputter.write(out);
         } catch (ParseException e) {
             e.printStackTrace();
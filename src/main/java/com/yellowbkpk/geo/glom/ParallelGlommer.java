@@ -0,0 +1,288 @@
+package com.yellowbkpk.geo.glom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.yellowbkpk.osm.ElementStore;
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.util.ConversionEvents;
+import com.yellowbkpk.osm.util.CoordinateKey;
+
+/**
+ * A {@link Glommer} that uses every core. Way ends are split up into a grid
+ * of cells by location, and each cell is linked, grouped and assembled on
+ * its own thread. Chains that cross from one cell into another are left for
+ * a single-threaded seam pass at the end.
+ * <p>
+ * Linking only ever looks at the ends at one location and the chains are
+ * put back in input order, so the output is exactly what {@link Glommer}
+ * produces.
+ */
+public class ParallelGlommer extends Glommer {
+
+    /**
+     * Cells per thread, so that a few crowded cells don't hold everyone up.
+     */
+    private static final int CELLS_PER_THREAD = 8;
+
+    private final int threads;
+
+    public ParallelGlommer(String keyToGlomOn) {
+        this(keyToGlomOn, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelGlommer(String keyToGlomOn, int threads) {
+        super(keyToGlomOn);
+        this.threads = threads;
+    }
+
+    public OSMFile glom(ElementStore data) {
+        if (threads < 2) {
+            return super.glom(data);
+        }
+
+        ConversionEvents events = ConversionEvents.get();
+        OSMFile out = new OSMFile();
+        Object event = events.beginGlomPhase();
+        Candidates candidates = collectCandidates(data, out);
+        final GlomGraph graph = new GlomGraph(candidates.ways, candidates.valueIds());
+        final Grid grid = new Grid(graph, (int) Math.ceil(Math.sqrt(threads * CELLS_PER_THREAD)));
+        events.endGlomPhase(event, "collect", data.getWayCount());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Chain> chains = new ArrayList<Chain>();
+        try {
+            event = events.beginGlomPhase();
+            List<Callable<Object>> linkTasks = new ArrayList<Callable<Object>>();
+            for (int c = 0; c < grid.cellCount(); c++) {
+                final int cell = c;
+                linkTasks.add(new Callable<Object>() {
+                    public Object call() {
+                        graph.link(grid.ends, grid.cellStart[cell], grid.cellStart[cell + 1]);
+                        return null;
+                    }
+                });
+            }
+            runAll(executor, linkTasks);
+            events.endGlomPhase(event, "link", graph.wayCount());
+
+            event = events.beginGlomPhase();
+            List<Callable<List<Chain>>> assembleTasks = new ArrayList<Callable<List<Chain>>>();
+            for (int c = 0; c < grid.cellCount(); c++) {
+                final int cell = c;
+                assembleTasks.add(new Callable<List<Chain>>() {
+                    public List<Chain> call() {
+                        return assembleCell(graph, grid, cell);
+                    }
+                });
+            }
+            for (List<Chain> cellChains : runAll(executor, assembleTasks)) {
+                chains.addAll(cellChains);
+            }
+            events.endGlomPhase(event, "assemble", graph.wayCount());
+        } finally {
+            executor.shutdown();
+        }
+
+        event = events.beginGlomPhase();
+        chains.addAll(assembleSeams(graph, grid));
+        events.endGlomPhase(event, "seams", graph.wayCount());
+
+        // Put the chains back in input order, the order Glommer makes them.
+        Collections.sort(chains, new Comparator<Chain>() {
+            public int compare(Chain a, Chain b) {
+                return a.first - b.first;
+            }
+        });
+        for (Chain chain : chains) {
+            for (Way way : chain.ways) {
+                out.addWay(way);
+            }
+        }
+
+        candidates.finish(out);
+        return out;
+    }
+
+    /**
+     * Groups the ways that start in the cell and assembles every chain that
+     * doesn't leave it. Only this cell's ways are changed, so cells can run
+     * side by side.
+     */
+    private static List<Chain> assembleCell(GlomGraph graph, Grid grid, int cell) {
+        List<Chain> chains = new ArrayList<Chain>();
+
+        // The cell's own ways are the ones whose first end is in it.
+        for (int i = grid.cellStart[cell]; i < grid.cellStart[cell + 1]; i++) {
+            int end = grid.ends[i];
+            if ((end & 1) == 0) {
+                int way = end >> 1;
+                for (int e = 0; e < 2; e++) {
+                    int partner = graph.partner(2 * way + e);
+                    if (partner < 0) {
+                        continue;
+                    }
+                    if (grid.ownerOf(partner >> 1) == cell) {
+                        graph.union(way, partner >> 1);
+                    } else {
+                        grid.crossesSeam[way] = true;
+                    }
+                }
+            }
+        }
+
+        for (int i = grid.cellStart[cell]; i < grid.cellStart[cell + 1]; i++) {
+            int end = grid.ends[i];
+            if ((end & 1) == 0 && grid.crossesSeam[end >> 1]) {
+                grid.seamRoot[graph.find(end >> 1)] = true;
+            }
+        }
+
+        for (int i = grid.cellStart[cell]; i < grid.cellStart[cell + 1]; i++) {
+            int end = grid.ends[i];
+            int way = end >> 1;
+            if ((end & 1) == 0 && graph.find(way) == way && !grid.seamRoot[way]) {
+                chains.add(new Chain(way, graph.assemble(way)));
+            }
+        }
+
+        return chains;
+    }
+
+    /**
+     * Joins up the chains that cross cell borders and assembles them.
+     */
+    private static List<Chain> assembleSeams(GlomGraph graph, Grid grid) {
+        List<Integer> seamWays = new ArrayList<Integer>();
+        for (int way = 0; way < graph.wayCount(); way++) {
+            if (grid.crossesSeam[way]) {
+                graph.unionLinks(way);
+                seamWays.add(way);
+            }
+        }
+
+        boolean[] done = new boolean[graph.wayCount()];
+        List<Chain> chains = new ArrayList<Chain>();
+        for (int way : seamWays) {
+            int root = graph.find(way);
+            if (!done[root]) {
+                done[root] = true;
+                chains.add(new Chain(root, graph.assemble(root)));
+            }
+        }
+        return chains;
+    }
+
+    private static <T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while glomming.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Glomming failed.", e.getCause());
+        }
+        return results;
+    }
+
+    private static class Chain {
+        final int first;
+        final List<Way> ways;
+
+        Chain(int first, List<Way> ways) {
+            this.first = first;
+            this.ways = ways;
+        }
+    }
+
+    /**
+     * A square grid over the bounding box of all the way ends. Every end
+     * belongs to the cell it's located in and every way to the cell of its
+     * first end.
+     */
+    private static class Grid {
+        private final int side;
+        private final int minLat;
+        private final int minLon;
+        private final long cellHeight;
+        private final long cellWidth;
+        private final int[] owners;
+
+        /** All ends, by cell and in ascending order within a cell. */
+        final int[] ends;
+        final int[] cellStart;
+        final boolean[] crossesSeam;
+        final boolean[] seamRoot;
+
+        Grid(GlomGraph graph, int side) {
+            this.side = side;
+            int endCount = 2 * graph.wayCount();
+
+            int minLat = Integer.MAX_VALUE;
+            int maxLat = Integer.MIN_VALUE;
+            int minLon = Integer.MAX_VALUE;
+            int maxLon = Integer.MIN_VALUE;
+            for (int end = 0; end < endCount; end++) {
+                long key = graph.endKey(end);
+                minLat = Math.min(minLat, CoordinateKey.fixedLat(key));
+                maxLat = Math.max(maxLat, CoordinateKey.fixedLat(key));
+                minLon = Math.min(minLon, CoordinateKey.fixedLon(key));
+                maxLon = Math.max(maxLon, CoordinateKey.fixedLon(key));
+            }
+            this.minLat = minLat;
+            this.minLon = minLon;
+            this.cellHeight = ((long) maxLat - minLat) / side + 1;
+            this.cellWidth = ((long) maxLon - minLon) / side + 1;
+
+            // Counting sort of the ends by cell keeps them ascending in each.
+            int[] cells = new int[endCount];
+            cellStart = new int[side * side + 1];
+            for (int end = 0; end < endCount; end++) {
+                cells[end] = cellOf(graph.endKey(end));
+                cellStart[cells[end] + 1]++;
+            }
+            for (int c = 0; c < side * side; c++) {
+                cellStart[c + 1] += cellStart[c];
+            }
+            int[] next = new int[side * side];
+            System.arraycopy(cellStart, 0, next, 0, side * side);
+            ends = new int[endCount];
+            for (int end = 0; end < endCount; end++) {
+                ends[next[cells[end]]++] = end;
+            }
+
+            owners = new int[graph.wayCount()];
+            for (int way = 0; way < owners.length; way++) {
+                owners[way] = cells[2 * way];
+            }
+            crossesSeam = new boolean[graph.wayCount()];
+            seamRoot = new boolean[graph.wayCount()];
+        }
+
+        int cellCount() {
+            return side * side;
+        }
+
+        int ownerOf(int way) {
+            return owners[way];
+        }
+
+        private int cellOf(long key) {
+            int row = (int) ((CoordinateKey.fixedLat(key) - (long) minLat) / cellHeight);
+            int column = (int) ((CoordinateKey.fixedLon(key) - (long) minLon) / cellWidth);
+            return row * side + column;
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import com.yellowbkpk.osm.util.SafeFiles;
+
+/**
+ * How far a conversion got: which features are in files that were completely
+ * written, and what the ID generators and the outputter's file count were at
+ * that point. Saved as a properties file next to the output files.
+ * <p>
+ * A file is usually closed in the middle of a feature, so the checkpoint
+ * names the feature that was being converted and how many of its elements
+ * had already gone out. That feature is converted again on resume, with the
+ * IDs it had the first time, and its first elements are dropped.
+ * <p>
+ * The checkpoint also records what the output was made from: the .shp's
+ * size and modification time, a hash of the .dbf and a hash of the rules
+ * and options. A run can only be resumed if they are all the same.
+ */
+public class Checkpoint {
+
+    private int typeIndex;
+    private int feature;
+    private int skippedElements;
+    private int nodeID;
+    private int wayID;
+    private int relationID;
+    private int fileCount;
+    private long shapefileLength;
+    private long shapefileModified;
+    private String attributesDigest;
+    private String settingsDigest;
+
+    /**
+     * @param typeIndex The position of the feature type in the shapefile.
+     * @param feature The position of the feature within its type.
+     * @param skippedElements How many of the feature's elements are already
+     *            in written files.
+     * @param nodeID The next node ID when the feature was started.
+     * @param wayID The next way ID when the feature was started.
+     * @param relationID The next relation ID when the feature was started.
+     * @param fileCount The number of files written.
+     * @param shapefile The shapefile being converted, to tell if it changed.
+     * @param attributesDigest A hash of the shapefile's .dbf.
+     * @param settingsDigest A hash of the rules and options.
+     */
+    public Checkpoint(int typeIndex, int feature, int skippedElements, int nodeID, int wayID, int relationID,
+            int fileCount, File shapefile, String attributesDigest, String settingsDigest) {
+        this.typeIndex = typeIndex;
+        this.feature = feature;
+        this.skippedElements = skippedElements;
+        this.nodeID = nodeID;
+        this.wayID = wayID;
+        this.relationID = relationID;
+        this.fileCount = fileCount;
+        this.shapefileLength = shapefile.length();
+        this.shapefileModified = shapefile.lastModified();
+        this.attributesDigest = attributesDigest;
+        this.settingsDigest = settingsDigest;
+    }
+
+    private Checkpoint() {
+    }
+
+    public int getTypeIndex() {
+        return typeIndex;
+    }
+
+    public int getFeature() {
+        return feature;
+    }
+
+    public int getSkippedElements() {
+        return skippedElements;
+    }
+
+    public int getNodeID() {
+        return nodeID;
+    }
+
+    public int getWayID() {
+        return wayID;
+    }
+
+    public int getRelationID() {
+        return relationID;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @param attributesDigest A hash of the shapefile's .dbf as it is now.
+     * @return True if the checkpoint was made for this shapefile as it is
+     *         now.
+     */
+    public boolean matches(File shapefile, String attributesDigest) {
+        return shapefile.length() == shapefileLength && shapefile.lastModified() == shapefileModified
+                && attributesDigest.equals(this.attributesDigest);
+    }
+
+    /**
+     * @return True if the checkpoint was made with these rules and options.
+     */
+    public boolean hasSettings(String settingsDigest) {
+        return settingsDigest.equals(this.settingsDigest);
+    }
+
+    /**
+     * @return True if the feature is in files that were completely written.
+     */
+    public boolean isDone(int typeIndex, int feature) {
+        return typeIndex < this.typeIndex || (typeIndex == this.typeIndex && feature < this.feature);
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and renames it over the old
+     * one, so that there is always a complete checkpoint on disk.
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("typeIndex", Integer.toString(typeIndex));
+        properties.setProperty("feature", Integer.toString(feature));
+        properties.setProperty("skippedElements", Integer.toString(skippedElements));
+        properties.setProperty("nodeID", Integer.toString(nodeID));
+        properties.setProperty("wayID", Integer.toString(wayID));
+        properties.setProperty("relationID", Integer.toString(relationID));
+        properties.setProperty("fileCount", Integer.toString(fileCount));
+        properties.setProperty("shapefileLength", Long.toString(shapefileLength));
+        properties.setProperty("shapefileModified", Long.toString(shapefileModified));
+        properties.setProperty("attributesDigest", attributesDigest);
+        properties.setProperty("settingsDigest", settingsDigest);
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, "shp-to-osm checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        SafeFiles.replace(temp, file);
+    }
+
+    /**
+     * @return The checkpoint in the file, or null if there isn't one.
+     */
+    public static Checkpoint load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        Checkpoint checkpoint = new Checkpoint();
+        try {
+            checkpoint.typeIndex = Integer.parseInt(properties.getProperty("typeIndex"));
+            checkpoint.feature = Integer.parseInt(properties.getProperty("feature"));
+            checkpoint.skippedElements = Integer.parseInt(properties.getProperty("skippedElements"));
+            checkpoint.nodeID = Integer.parseInt(properties.getProperty("nodeID"));
+            checkpoint.wayID = Integer.parseInt(properties.getProperty("wayID"));
+            checkpoint.relationID = Integer.parseInt(properties.getProperty("relationID"));
+            checkpoint.fileCount = Integer.parseInt(properties.getProperty("fileCount"));
+            checkpoint.shapefileLength = Long.parseLong(properties.getProperty("shapefileLength"));
+            checkpoint.shapefileModified = Long.parseLong(properties.getProperty("shapefileModified"));
+            // Older checkpoints don't have these, and so never match.
+            checkpoint.attributesDigest = properties.getProperty("attributesDigest");
+            checkpoint.settingsDigest = properties.getProperty("settingsDigest");
+        } catch (NumberFormatException e) {
+            throw new IOException("Checkpoint " + file + " is damaged: " + e.getMessage());
+        }
+        return checkpoint;
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.output.AbstractOutputter;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.IDGenerator;
+
+/**
+ * Sits between the converter and an outputter that writes files, and saves a
+ * {@link Checkpoint} every time a file has been written. When resuming, it
+ * tells the converter which features to skip and drops the elements of the
+ * first feature that are already in the old files, so the run carries on
+ * with the same output it would have produced the first time.
+ */
+public class CheckpointingOutputter implements OSMOutputter {
+
+    private static Logger log = Logger.getLogger(CheckpointingOutputter.class.getName());
+
+    private final AbstractOutputter outputter;
+    private final File checkpointFile;
+    private final File shapefile;
+    private final String attributesDigest;
+    private final String settingsDigest;
+    private Checkpoint resumeFrom;
+
+    private int typeIndex;
+    private int feature;
+    private int elements;
+    private int nodeID;
+    private int wayID;
+    private int relationID;
+
+    // Elements of the resumed feature that were written before
+    private int skipElements = 0;
+    private OSMFile skipped;
+
+    /**
+     * @param attributesDigest A hash of the shapefile's .dbf.
+     * @param settingsDigest A hash of the rules and options.
+     * @param resumeFrom Where to pick up from, or null to start over.
+     */
+    public CheckpointingOutputter(AbstractOutputter outputter, File checkpointFile, File shapefile,
+            String attributesDigest, String settingsDigest, Checkpoint resumeFrom) {
+        this.outputter = outputter;
+        this.checkpointFile = checkpointFile;
+        this.shapefile = shapefile;
+        this.attributesDigest = attributesDigest;
+        this.settingsDigest = settingsDigest;
+        this.resumeFrom = resumeFrom;
+        if (resumeFrom != null) {
+            outputter.setFileCount(resumeFrom.getFileCount());
+        }
+    }
+
+    /**
+     * Called before each feature is converted.
+     *
+     * @return False if the feature is already in written files and should be
+     *         skipped.
+     */
+    public boolean startFeature(int typeIndex, int feature) {
+        if (resumeFrom != null) {
+            if (resumeFrom.isDone(typeIndex, feature)) {
+                return false;
+            }
+
+            // The first feature that wasn't finished gets the IDs it had.
+            IDGenerator.get().restore(resumeFrom.getNodeID(), resumeFrom.getWayID(), resumeFrom.getRelationID());
+            skipElements = resumeFrom.getSkippedElements();
+            skipped = new OSMFile();
+            log.log(Level.INFO, "Resuming at feature " + feature + ", file " + resumeFrom.getFileCount() + ".");
+            resumeFrom = null;
+        }
+
+        this.typeIndex = typeIndex;
+        this.feature = feature;
+        this.elements = 0;
+        this.nodeID = IDGenerator.get().currentNodeID();
+        this.wayID = IDGenerator.get().currentWayID();
+        this.relationID = IDGenerator.get().currentRelationID();
+        return true;
+    }
+
+    public void addNode(Node node) {
+        if (skip()) {
+            skipped.addNode(node);
+            return;
+        }
+        int files = outputter.getFileCount();
+        outputter.addNode(node);
+        checkpointIfWritten(files);
+    }
+
+    public void addWay(Way way) {
+        if (skip()) {
+            skipped.addWay(way);
+            return;
+        }
+        int files = outputter.getFileCount();
+        outputter.addWay(way);
+        checkpointIfWritten(files);
+    }
+
+    public void addRelation(Relation relation) {
+        if (skip()) {
+            skipped.addRelation(relation);
+            return;
+        }
+        int files = outputter.getFileCount();
+        outputter.addRelation(relation);
+        checkpointIfWritten(files);
+    }
+
+    /**
+     * Finishes the last file and removes the checkpoint, since there's
+     * nothing left to resume.
+     */
+    public void finish() {
+        outputter.finish();
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            log.log(Level.WARNING, "Could not remove checkpoint " + checkpointFile + ".");
+        }
+    }
+
+    public void start() {
+        outputter.start();
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+        outputter.setMaxElementsPerFile(maxPerFile);
+    }
+
+    public void write(OSMFile out) {
+        outputter.write(out);
+    }
+
+    /**
+     * Counts the element and says whether it is one of those written before
+     * the run was interrupted. Those still go into a scratch file, so that
+     * they get the same IDs as the first time.
+     */
+    private boolean skip() {
+        elements++;
+        if (skipElements > 0) {
+            skipElements--;
+            return true;
+        }
+        skipped = null;
+        return false;
+    }
+
+    private void checkpointIfWritten(int filesBefore) {
+        if (outputter.getFileCount() == filesBefore) {
+            return;
+        }
+
+        // The file was written before the last element was added, so it
+        // holds all of this feature's elements up to that one.
+        Checkpoint checkpoint = new Checkpoint(typeIndex, feature, elements - 1, nodeID, wayID, relationID,
+                outputter.getFileCount(), shapefile, attributesDigest, settingsDigest);
+        try {
+            checkpoint.save(checkpointFile);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not save checkpoint " + checkpointFile + ".", e);
+        }
+    }
+
+}
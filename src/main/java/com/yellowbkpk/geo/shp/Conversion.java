@@ -0,0 +1,226 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.PipelineMetrics;
+
+/**
+ * Converts a shapefile in-process and hands the elements to an
+ * {@link ElementSink} as they are made, with no files written and nothing
+ * collected in between. For services that embed the converter:
+ * 
+ * <pre>
+ * Conversion conversion = Conversion.builder(shapefile, sink)
+ *         .rulesFile(rules)
+ *         .sourceCrs(&quot;EPSG:2263&quot;)
+ *         .build();
+ * conversion.run();
+ * </pre>
+ * 
+ * {@link #run()} converts on the calling thread, and {@link #cancel()} can
+ * stop it from another. Each conversion has its own ID sequences,
+ * {@link PipelineMetrics} and {@link ConversionMonitor} MBean, so several can
+ * run at the same time. Conversions whose elements go to the same consumer
+ * should be built with the same {@link Builder#ids(IDGenerator)}, so that
+ * their IDs don't clash.
+ */
+public class Conversion {
+
+    private static final AtomicInteger RUNS = new AtomicInteger();
+
+    private final ShpToOsmConverter converter;
+    private final PipelineMetrics metrics;
+
+    private Conversion(ShpToOsmConverter converter, PipelineMetrics metrics) {
+        this.converter = converter;
+        this.metrics = metrics;
+    }
+
+    public static Builder builder(File shapefile, ElementSink sink) {
+        return new Builder(shapefile, sink);
+    }
+
+    /**
+     * Converts every feature, passing the elements to the sink.
+     * 
+     * @throws CancellationException If the conversion was cancelled or the
+     *             thread was interrupted while the sink was waiting.
+     */
+    public void run() throws ShpToOsmException {
+        converter.convert();
+    }
+
+    /**
+     * @return The timings and counts of the last run.
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops the conversion before its next feature. Safe to call from any
+     * thread.
+     */
+    public void cancel() {
+        converter.cancel();
+    }
+
+    public static class Builder {
+
+        private final File shapefile;
+        private final ElementSink sink;
+        private RuleSet rules = new RuleSet();
+        private boolean onlyTagged = false;
+        private String sourceCrs;
+        private double simplify = -1;
+        private Set<String> ignoredAttributes;
+        private IDGenerator ids;
+        private PipelineMetrics metrics;
+        private String monitorName;
+
+        private Builder(File shapefile, ElementSink sink) {
+            this.shapefile = shapefile;
+            this.sink = sink;
+        }
+
+        /**
+         * Adds the rules in the given set.
+         */
+        public Builder rules(RuleSet rules) {
+            this.rules.appendRules(rules);
+            return this;
+        }
+
+        /**
+         * Adds the rules in a rules file, in the format the command line
+         * reads.
+         */
+        public Builder rulesFile(File file) throws IOException {
+            this.rules.appendRules(Main.readFileToRulesSet(file));
+            return this;
+        }
+
+        /**
+         * Copies every attribute to a tag, with the given prefix on its key.
+         */
+        public Builder copyTags(String prefix) {
+            this.rules.setUseAllTags(prefix);
+            return this;
+        }
+
+        /**
+         * Leaves out elements that no rule gave a tag.
+         */
+        public Builder onlyTagged(boolean onlyTagged) {
+            this.onlyTagged = onlyTagged;
+            return this;
+        }
+
+        /**
+         * Reads the shapefile as being in the given projection instead of
+         * the one in its .prj file.
+         * 
+         * @param crs An authority code such as <code>EPSG:2263</code>, or the
+         *            projection as WKT.
+         */
+        public Builder sourceCrs(String crs) {
+            this.sourceCrs = crs;
+            return this;
+        }
+
+        /**
+         * Quantizes lines and rings and simplifies them with the given
+         * tolerance, in metres.
+         * 
+         * @see GeometryReducer
+         */
+        public Builder simplify(double tolerance) {
+            this.simplify = tolerance;
+            return this;
+        }
+
+        /**
+         * Drops features that repeat an earlier one.
+         * 
+         * @see ShpToOsmConverter#setDeduplicate(Set)
+         */
+        public Builder dedup(Set<String> ignoredAttributes) {
+            this.ignoredAttributes = ignoredAttributes;
+            return this;
+        }
+
+        /**
+         * Numbers the new elements from the given sequences. By default each
+         * conversion starts its own from -1; conversions whose elements go
+         * to the same consumer should share one.
+         */
+        public Builder ids(IDGenerator ids) {
+            this.ids = ids;
+            return this;
+        }
+
+        /**
+         * Adds up the run's timings and counts in the given metrics, by
+         * default a new set for each conversion.
+         */
+        public Builder metrics(PipelineMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Registers the run's {@link ConversionMonitor} under the given JMX
+         * object name. By default each conversion gets its own, after
+         * {@link ConversionMonitor#DEFAULT_NAME}.
+         */
+        public Builder monitorName(String monitorName) {
+            this.monitorName = monitorName;
+            return this;
+        }
+
+        /**
+         * @throws ShpToOsmException If the projection can't be understood.
+         */
+        public Conversion build() throws ShpToOsmException {
+            ShpToOsmConverter converter = new ShpToOsmConverter(shapefile, rules, onlyTagged,
+                    new SinkOutputter(sink));
+            if (sourceCrs != null) {
+                converter.setSourceCRS(parseCrs(sourceCrs));
+            }
+            if (simplify >= 0) {
+                converter.setReducer(new GeometryReducer(simplify));
+            }
+            if (ignoredAttributes != null) {
+                converter.setDeduplicate(ignoredAttributes);
+            }
+            PipelineMetrics runMetrics = metrics != null ? metrics : new PipelineMetrics();
+            converter.setIDGenerator(ids != null ? ids : new IDGenerator());
+            converter.setMetrics(runMetrics);
+            converter.setMonitorName(monitorName != null ? monitorName
+                    : ConversionMonitor.DEFAULT_NAME + ",run=" + RUNS.incrementAndGet());
+            return new Conversion(converter, runMetrics);
+        }
+
+        private static CoordinateReferenceSystem parseCrs(String crs) throws ShpToOsmException {
+            try {
+                if (crs.trim().endsWith("]")) {
+                    return CRS.parseWKT(crs);
+                }
+                return CRS.decode(crs);
+            } catch (FactoryException e) {
+                throw new ShpToOsmException("Could not understand the projection \"" + crs + "\".", e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.yellowbkpk.osm.output.AbstractOutputter;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.util.PipelineMetrics;
+
+/**
+ * Publishes the progress of a {@link ShpToOsmConverter} run as an MBean,
+ * <code>com.yellowbkpk.geo.shp:type=ConversionMonitor</code> unless the
+ * converter is given another name, so that long conversions can be watched
+ * with jconsole or scraped by monitoring.
+ * <p>
+ * The converter thread updates the counters and the JMX threads read them,
+ * so everything the converter touches is volatile. Byte and file counts come
+ * from the run's {@link PipelineMetrics} and may lag slightly behind.
+ */
+public class ConversionMonitor implements ConversionMonitorMBean {
+
+    private static Logger log = Logger.getLogger(ConversionMonitor.class.getName());
+
+    /** The name the monitor is registered under unless told otherwise. */
+    public static final String DEFAULT_NAME = "com.yellowbkpk.geo.shp:type=ConversionMonitor";
+
+    /** How often the throughput is sampled. */
+    private static final long SAMPLE_NANOS = 1000000000L;
+
+    /** The time constant of the rolling throughput. */
+    private static final double WINDOW_SECONDS = 60;
+
+    private final OSMOutputter outputter;
+    private final PipelineMetrics metrics;
+    private final String objectName;
+    private final long featuresTotal;
+    private final long started = System.nanoTime();
+
+    private volatile String typeName;
+    private volatile long features = 0;
+    private volatile long vertices = 0;
+    private volatile double rate = -1;
+
+    private long lastSampleTime = started;
+    private long lastSampleFeatures = 0;
+
+    private ObjectName registeredName;
+
+    /**
+     * @param metrics The run's metrics, for the byte and file counts.
+     * @param objectName The name to register under. A monitor already
+     *            registered under it is replaced.
+     */
+    public ConversionMonitor(File shpFile, OSMOutputter outputter, PipelineMetrics metrics, String objectName) {
+        this.outputter = outputter;
+        this.metrics = metrics;
+        this.objectName = objectName;
+        this.featuresTotal = countRecords(shpFile);
+    }
+
+    /**
+     * Registers with the platform MBean server. Failing to do so only costs
+     * the monitoring, so it is logged and the conversion carries on.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Could not register the conversion monitor.", e);
+        }
+    }
+
+    public void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                log.log(Level.FINE, "Could not unregister the conversion monitor.", e);
+            }
+            registeredName = null;
+        }
+    }
+
+    void setTypeName(String typeName) {
+        this.typeName = typeName;
+    }
+
+    void featureProcessed(int featureVertices) {
+        long count = features + 1;
+        features = count;
+        vertices += featureVertices;
+
+        // Only look at the clock now and then.
+        if ((count & 0xff) == 0) {
+            long now = System.nanoTime();
+            long elapsed = now - lastSampleTime;
+            if (elapsed >= SAMPLE_NANOS) {
+                double seconds = elapsed / 1e9;
+                double current = (count - lastSampleFeatures) / seconds;
+                double weight = 1 - Math.exp(-seconds / WINDOW_SECONDS);
+                rate = rate < 0 ? current : rate + weight * (current - rate);
+                lastSampleTime = now;
+                lastSampleFeatures = count;
+            }
+        }
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public long getFeaturesProcessed() {
+        return features;
+    }
+
+    public long getFeaturesTotal() {
+        return featuresTotal;
+    }
+
+    public long getVerticesProcessed() {
+        return vertices;
+    }
+
+    public long getChunksWritten() {
+        return metrics.getFilesWritten();
+    }
+
+    public long getBytesWritten() {
+        return metrics.getBytesWritten();
+    }
+
+    public int getStagedElements() {
+        if (outputter instanceof AbstractOutputter) {
+            return ((AbstractOutputter) outputter).getStagedElementCount();
+        }
+        return -1;
+    }
+
+    public double getFeaturesPerSecond() {
+        double current = rate;
+        if (current < 0) {
+            // No sample yet, so use the average so far.
+            double seconds = (System.nanoTime() - started) / 1e9;
+            return seconds > 0 ? features / seconds : 0;
+        }
+        return current;
+    }
+
+    public long getElapsedSeconds() {
+        return (System.nanoTime() - started) / 1000000000L;
+    }
+
+    public long getEstimatedSecondsRemaining() {
+        double perSecond = getFeaturesPerSecond();
+        if (featuresTotal < 0 || perSecond <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, featuresTotal - features) / perSecond);
+    }
+
+    /**
+     * The .shx has a 100 byte header and then 8 bytes per record, so the
+     * feature count is known without reading any features.
+     */
+    private static long countRecords(File shpFile) {
+        String path = shpFile.getPath();
+        int dot = path.lastIndexOf('.');
+        String base = dot < 0 ? path : path.substring(0, dot);
+
+        File shx = new File(base + ".shx");
+        if (!shx.exists()) {
+            shx = new File(base + ".SHX");
+        }
+        if (!shx.exists() || shx.length() < 100) {
+            return -1;
+        }
+        return (shx.length() - 100) / 8;
+    }
+
+}
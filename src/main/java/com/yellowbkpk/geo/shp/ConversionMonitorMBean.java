@@ -0,0 +1,49 @@
+package com.yellowbkpk.geo.shp;
+
+/**
+ * The live state of a running conversion, as seen over JMX.
+ */
+public interface ConversionMonitorMBean {
+
+    /**
+     * @return The feature type being converted, or null before the first.
+     */
+    String getTypeName();
+
+    long getFeaturesProcessed();
+
+    /**
+     * @return The number of records in the shapefile's .shx, or -1 if it
+     *         couldn't be read.
+     */
+    long getFeaturesTotal();
+
+    long getVerticesProcessed();
+
+    /**
+     * @return The number of output files written so far.
+     */
+    long getChunksWritten();
+
+    long getBytesWritten();
+
+    /**
+     * @return The number of elements waiting in the outputter for the next
+     *         chunk, or -1 if the outputter doesn't stage them.
+     */
+    int getStagedElements();
+
+    /**
+     * @return Features per second over roughly the last minute.
+     */
+    double getFeaturesPerSecond();
+
+    long getElapsedSeconds();
+
+    /**
+     * @return Estimated seconds until every feature is processed, or -1 if
+     *         there's no estimate yet.
+     */
+    long getEstimatedSecondsRemaining();
+
+}
@@ -0,0 +1,36 @@
+package com.yellowbkpk.geo.shp;
+
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+
+/**
+ * Takes the elements of a {@link Conversion} as they are made. Each method
+ * is called on the converting thread, and the conversion waits for it to
+ * return, so a sink that can't keep up slows the conversion down rather
+ * than letting elements pile up. A sink that hands elements to another
+ * thread can block on a bounded queue; interrupting the converting thread
+ * while it waits cancels the conversion.
+ * <p>
+ * IDs are the negative placeholder IDs the files would have. Tags come as
+ * parallel arrays of keys and values, as they were in the shapefile, not
+ * escaped for XML. A way comes with the positions of its nodes, and nodes
+ * that are only part of ways aren't passed on their own. A relation comes
+ * after its members, and a way that two relations share comes before each
+ * of them.
+ */
+public interface ElementSink {
+
+    void node(int id, double lat, double lon, String[] keys, String[] values) throws InterruptedException;
+
+    /**
+     * @param nodeIds The IDs of the way's nodes, in order. A closed way ends
+     *            with the ID it starts with.
+     * @param lats The latitude of each node.
+     * @param lons The longitude of each node.
+     */
+    void way(int id, int[] nodeIds, double[] lats, double[] lons, String[] keys, String[] values)
+            throws InterruptedException;
+
+    void relation(int id, PrimitiveTypeEnum[] memberTypes, int[] memberIds, String[] roles, String[] keys,
+            String[] values) throws InterruptedException;
+
+}
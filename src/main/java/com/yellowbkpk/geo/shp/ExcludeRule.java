@@ -8,6 +8,9 @@ public class ExcludeRule {
     private PrimitiveTypeEnum type;
     private String key;
     private String value;
+    private int lineNumber;
+    private long evaluations;
+    private long rejections;
 
     public ExcludeRule(PrimitiveTypeEnum type, String key, String value) {
         this.type = type;
@@ -15,7 +18,46 @@ public class ExcludeRule {
         this.value = value;
     }
 
+    /**
+     * @param lineNumber The line of the rules file the rule came from.
+     */
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return How many primitives were checked against this rule.
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return How many primitives this rule excluded.
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    void resetStatistics() {
+        evaluations = 0;
+        rejections = 0;
+    }
+
     public boolean allows(Primitive w) {
+        evaluations++;
+        boolean allowed = check(w);
+        if (!allowed) {
+            rejections++;
+        }
+        return allowed;
+    }
+
+    private boolean check(Primitive w) {
         if (type != w.getType()) {
             // The rule should not exclude if the types are different
             return true;
@@ -0,0 +1,116 @@
+package com.yellowbkpk.geo.shp;
+
+import java.util.Collection;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The attributes of a feature, with their values already turned into the
+ * strings that tags are made of. Rules only need these, so they can work on
+ * a feature from the shapefile or from a {@link FeatureCache} alike.
+ */
+public class FeatureAttributes {
+
+    private final String[] names;
+    private final String[] values;
+    private String[] escaped;
+
+    /**
+     * @param names The attribute names.
+     * @param values The values as text, or null where a feature has none.
+     */
+    public FeatureAttributes(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Reads the attributes of a shapefile feature. The geometry is not an
+     * attribute.
+     */
+    public static FeatureAttributes from(SimpleFeature feature) {
+        Collection<Property> properties = feature.getProperties();
+        String[] names = new String[properties.size()];
+        String[] values = new String[properties.size()];
+        int count = 0;
+        for (Property property : properties) {
+            Object value = property.getValue();
+            if (value instanceof Geometry) {
+                continue;
+            }
+            names[count] = property.getType().getName().toString();
+            values[count] = value != null ? toText(value) : null;
+            count++;
+        }
+
+        if (count < names.length) {
+            String[] trimmedNames = new String[count];
+            String[] trimmedValues = new String[count];
+            System.arraycopy(names, 0, trimmedNames, 0, count);
+            System.arraycopy(values, 0, trimmedValues, 0, count);
+            return new FeatureAttributes(trimmedNames, trimmedValues);
+        }
+        return new FeatureAttributes(names, values);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public String getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return The value of the named attribute, or null.
+     */
+    public String getValue(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The value as it goes into a tag, or null if it is empty.
+     */
+    public String getEscapedValue(int i) {
+        if (escaped == null) {
+            escaped = new String[values.length];
+            for (int j = 0; j < values.length; j++) {
+                if (values[j] != null && values[j].length() > 0) {
+                    escaped[j] = StringEscapeUtils.escapeXml(values[j]);
+                }
+            }
+        }
+        return escaped[i];
+    }
+
+    /**
+     * Whole numbers lose their ".0" (the shapefile reader hands out doubles
+     * for most numbers), and text is trimmed.
+     */
+    private static String toText(Object value) {
+        if (value instanceof Double) {
+            double asDouble = (Double) value;
+            double floored = Math.floor(asDouble);
+            if(floored == asDouble) {
+                return Integer.toString((int) asDouble);
+            } else {
+                return Double.toString(asDouble);
+            }
+        }
+        return value.toString().trim();
+    }
+
+}
@@ -0,0 +1,583 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.yellowbkpk.osm.util.SafeFiles;
+
+/**
+ * A binary file holding a shapefile's features as the converter uses them:
+ * geometries already reprojected to lat/lon and attributes already turned
+ * into text. A later run over the same shapefile reads the cache instead,
+ * without GeoTools or any CRS work, which makes trying out changes to a
+ * rules file much quicker.
+ * <p>
+ * The cache's name is made from a SHA-1 hash of the .shp, .dbf and .prj
+ * files and the size of the .shp, so a changed shapefile gets a new cache.
+ * The file is read through memory mapping, and only a cache that was
+ * completely written is ever used.
+ */
+public class FeatureCache {
+
+    private static Logger log = Logger.getLogger(FeatureCache.class.getName());
+
+    private static final int MAGIC = 0x53464331;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int END = 0;
+    private static final int TYPE = 1;
+    private static final int NAMES = 2;
+    private static final int FEATURE = 3;
+
+    private static final int NO_GEOMETRY = 0;
+    private static final int POINT = 1;
+    private static final int LINE_STRING = 2;
+    private static final int LINEAR_RING = 3;
+    private static final int POLYGON = 4;
+    private static final int MULTI_POINT = 5;
+    private static final int MULTI_LINE_STRING = 6;
+    private static final int MULTI_POLYGON = 7;
+    private static final int COLLECTION = 8;
+
+    private static final String[] SIDECARS = { ".shp", ".dbf", ".prj" };
+
+    private final File file;
+
+    /**
+     * Works out which cache file belongs to the shapefile, which means
+     * reading the whole shapefile once.
+     *
+     * @param directory Where caches are kept.
+     */
+    public FeatureCache(File directory, File shapefile) throws IOException {
+        this.file = new File(directory, baseName(shapefile) + "-" + digest(shapefile, SIDECARS) + "-"
+                + shapefile.length() + ".features");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return True if there is a complete cache in a format this version
+     *         understands.
+     */
+    public boolean exists() {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            Reader reader = new Reader(file);
+            reader.close();
+            return true;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Ignoring feature cache " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public FeatureInput open() throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Starts a new cache. It only replaces any old one once
+     * {@link Writer#finish()} is called.
+     */
+    public Writer create(String[] typeNames, String[] attributeNames) throws IOException {
+        return new Writer(file, typeNames, attributeNames);
+    }
+
+    /**
+     * @param extensions The parts of the shapefile to read, such as
+     *            <code>".dbf"</code>. Parts that don't exist are skipped.
+     * @return A hash of the contents of the given parts of the shapefile.
+     */
+    static String digest(File shapefile, String... extensions) throws IOException {
+        String base = baseName(shapefile);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+
+        byte[] buffer = new byte[1 << 16];
+        for (String extension : extensions) {
+            File part = extension.equals(".shp") ? shapefile : findSidecar(shapefile, base, extension);
+            if (part == null) {
+                continue;
+            }
+            InputStream in = new FileInputStream(part);
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        byte[] hash = digest.digest();
+        for (int i = 0; i < 8; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static String baseName(File shapefile) {
+        String name = shapefile.getName();
+        return name.toLowerCase().endsWith(".shp") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    private static File findSidecar(File shapefile, String base, String extension) {
+        File parent = shapefile.getAbsoluteFile().getParentFile();
+        File lower = new File(parent, base + extension);
+        if (lower.exists()) {
+            return lower;
+        }
+        File upper = new File(parent, base + extension.toUpperCase());
+        return upper.exists() ? upper : null;
+    }
+
+    /**
+     * Writes a cache as features are read from the shapefile.
+     */
+    public static class Writer {
+
+        private final File file;
+        private final File temp;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream geometryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream geometryOut = new DataOutputStream(geometryBytes);
+        private String[] lastNames;
+
+        Writer(File file, String[] typeNames, String[] attributeNames) throws IOException {
+            this.file = file;
+            this.temp = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeStrings(out, typeNames);
+            writeStrings(out, attributeNames);
+        }
+
+        public void startType(String typeName) throws IOException {
+            out.writeByte(TYPE);
+            writeString(out, typeName);
+        }
+
+        /**
+         * Writes the current feature of the input, which must have been
+         * reprojected.
+         */
+        public void write(FeatureInput input) throws IOException, ShpToOsmException {
+            FeatureAttributes attributes = input.getAttributes();
+            String[] names = new String[attributes.size()];
+            String[] values = new String[attributes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = attributes.getName(i);
+                values[i] = attributes.getValue(i);
+            }
+            if (!Arrays.equals(names, lastNames)) {
+                out.writeByte(NAMES);
+                writeStrings(out, names);
+                lastNames = names;
+            }
+
+            out.writeByte(FEATURE);
+            writeString(out, input.getFeatureID());
+            writeString(out, input.getGeometryType());
+            out.writeInt(input.getVertexCount());
+            for (String value : values) {
+                writeString(out, value);
+            }
+
+            geometryBytes.reset();
+            writeGeometry(geometryOut, input.getGeometry());
+            geometryOut.flush();
+            out.writeInt(geometryBytes.size());
+            geometryBytes.writeTo(out);
+        }
+
+        /**
+         * Completes the cache and puts it in place.
+         */
+        public void finish() throws IOException {
+            out.writeByte(END);
+            // The magic number again, as a sign that the cache is complete.
+            out.writeInt(MAGIC);
+            out.close();
+            SafeFiles.replace(temp, file);
+            log.log(Level.INFO, "Wrote feature cache " + file + ".");
+        }
+
+        /**
+         * Throws away an unfinished cache.
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // It's going away anyway.
+            }
+            temp.delete();
+        }
+
+        private static void writeGeometry(DataOutputStream out, Geometry geometry) throws IOException {
+            if (geometry == null) {
+                out.writeByte(NO_GEOMETRY);
+                return;
+            }
+
+            String type = geometry.getGeometryType();
+            if ("Point".equals(type)) {
+                out.writeByte(POINT);
+                Coordinate coordinate = geometry.getCoordinate();
+                out.writeDouble(coordinate.x);
+                out.writeDouble(coordinate.y);
+            } else if ("LineString".equals(type) || "LinearRing".equals(type)) {
+                out.writeByte("LineString".equals(type) ? LINE_STRING : LINEAR_RING);
+                writeCoordinates(out, geometry.getCoordinates());
+            } else if ("Polygon".equals(type)) {
+                Polygon polygon = (Polygon) geometry;
+                out.writeByte(POLYGON);
+                writeCoordinates(out, polygon.getExteriorRing().getCoordinates());
+                out.writeInt(polygon.getNumInteriorRing());
+                for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                    writeCoordinates(out, polygon.getInteriorRingN(i).getCoordinates());
+                }
+            } else {
+                if ("MultiPoint".equals(type)) {
+                    out.writeByte(MULTI_POINT);
+                } else if ("MultiLineString".equals(type)) {
+                    out.writeByte(MULTI_LINE_STRING);
+                } else if ("MultiPolygon".equals(type)) {
+                    out.writeByte(MULTI_POLYGON);
+                } else {
+                    out.writeByte(COLLECTION);
+                }
+                out.writeInt(geometry.getNumGeometries());
+                for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                    writeGeometry(out, geometry.getGeometryN(i));
+                }
+            }
+        }
+
+        private static void writeCoordinates(DataOutputStream out, Coordinate[] coordinates) throws IOException {
+            out.writeInt(coordinates.length);
+            for (Coordinate coordinate : coordinates) {
+                out.writeDouble(coordinate.x);
+                out.writeDouble(coordinate.y);
+            }
+        }
+
+        private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                writeString(out, string);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String string) throws IOException {
+            if (string == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = string.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a cache back through a window of the file mapped into memory,
+     * which is moved along as the reading goes past it.
+     */
+    private static class Reader implements FeatureInput {
+
+        private static final int WINDOW_SIZE = 64 << 20;
+
+        private final GeometryFactory factory = new GeometryFactory();
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer window;
+        private long windowStart;
+        private long position = 0;
+
+        private final String[] typeNames;
+        private final String[] attributeNames;
+        private String[] names = new String[0];
+
+        private String featureID;
+        private String geometryType;
+        private int vertexCount;
+        private FeatureAttributes attributes;
+        private long geometryPosition;
+        private int geometryLength;
+        private Geometry geometry;
+
+        Reader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+            try {
+                if (readInt() != MAGIC) {
+                    throw new IOException("Not a feature cache.");
+                }
+                if (readInt() != FORMAT_VERSION) {
+                    throw new IOException("Written by another version.");
+                }
+                typeNames = readStrings();
+                attributeNames = readStrings();
+
+                // Make sure it was finished.
+                if (size < 5 || need(size - 5, 1).get() != END || need(size - 4, 4).getInt() != MAGIC) {
+                    throw new IOException("Not completely written.");
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        public String[] getTypeNames() {
+            return typeNames;
+        }
+
+        public String[] getAttributeNames() {
+            return attributeNames;
+        }
+
+        public void open(String typeName) throws IOException {
+            int kind = readByte();
+            String name = kind == TYPE ? readString() : null;
+            if (!typeName.equals(name)) {
+                throw new IOException("Expected features of " + typeName + " in the cache.");
+            }
+        }
+
+        public boolean hasNext() throws IOException {
+            while (peekByte() == NAMES) {
+                readByte();
+                names = readStrings();
+            }
+            return peekByte() == FEATURE;
+        }
+
+        public void next() throws IOException {
+            if (!hasNext()) {
+                throw new EOFException("No more features of this type in the cache.");
+            }
+            readByte();
+            featureID = readString();
+            geometryType = readString();
+            vertexCount = readInt();
+            String[] values = new String[names.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString();
+            }
+            attributes = new FeatureAttributes(names, values);
+
+            geometryLength = readInt();
+            geometryPosition = position;
+            position += geometryLength;
+            geometry = null;
+        }
+
+        public String getFeatureID() {
+            return featureID;
+        }
+
+        public FeatureAttributes getAttributes() {
+            return attributes;
+        }
+
+        public String getGeometryType() {
+            return geometryType;
+        }
+
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        public Geometry getGeometry() throws ShpToOsmException {
+            if (geometry == null) {
+                long next = position;
+                try {
+                    position = geometryPosition;
+                    geometry = readGeometry();
+                } catch (IOException e) {
+                    throw new ShpToOsmException("Could not read a geometry from the feature cache.", e);
+                } finally {
+                    position = next;
+                }
+            }
+            return geometry;
+        }
+
+        public long getTransformNanos() {
+            return 0;
+        }
+
+        public void closeType() {
+        }
+
+        public void close() {
+            window = null;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not close the feature cache.", e);
+            }
+        }
+
+        private Geometry readGeometry() throws IOException {
+            int kind = readByte();
+            switch (kind) {
+            case NO_GEOMETRY:
+                return null;
+            case POINT:
+                return factory.createPoint(new Coordinate(readDouble(), readDouble()));
+            case LINE_STRING:
+                return factory.createLineString(readCoordinates());
+            case LINEAR_RING:
+                return factory.createLinearRing(readCoordinates());
+            case POLYGON:
+                LinearRing shell = factory.createLinearRing(readCoordinates());
+                LinearRing[] holes = new LinearRing[readInt()];
+                for (int i = 0; i < holes.length; i++) {
+                    holes[i] = factory.createLinearRing(readCoordinates());
+                }
+                return factory.createPolygon(shell, holes);
+            case MULTI_POINT:
+                Point[] points = new Point[readInt()];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = (Point) readGeometry();
+                }
+                return factory.createMultiPoint(points);
+            case MULTI_LINE_STRING:
+                LineString[] lines = new LineString[readInt()];
+                for (int i = 0; i < lines.length; i++) {
+                    lines[i] = (LineString) readGeometry();
+                }
+                return factory.createMultiLineString(lines);
+            case MULTI_POLYGON:
+                Polygon[] polygons = new Polygon[readInt()];
+                for (int i = 0; i < polygons.length; i++) {
+                    polygons[i] = (Polygon) readGeometry();
+                }
+                return factory.createMultiPolygon(polygons);
+            case COLLECTION:
+                Geometry[] parts = new Geometry[readInt()];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = readGeometry();
+                }
+                return factory.createGeometryCollection(parts);
+            default:
+                throw new IOException("Unknown geometry " + kind + " in the feature cache.");
+            }
+        }
+
+        private Coordinate[] readCoordinates() throws IOException {
+            Coordinate[] coordinates = new Coordinate[readInt()];
+            ByteBuffer buffer = need(position, coordinates.length * 16);
+            position += coordinates.length * 16;
+            for (int i = 0; i < coordinates.length; i++) {
+                coordinates[i] = new Coordinate(buffer.getDouble(), buffer.getDouble());
+            }
+            return coordinates;
+        }
+
+        private String[] readStrings() throws IOException {
+            String[] strings = new String[readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString();
+            }
+            return strings;
+        }
+
+        private String readString() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            need(position, length).get(bytes);
+            position += length;
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not supported.", e);
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = need(position, 1).get();
+            position++;
+            return b;
+        }
+
+        private int peekByte() throws IOException {
+            return need(position, 1).get();
+        }
+
+        private int readInt() throws IOException {
+            int i = need(position, 4).getInt();
+            position += 4;
+            return i;
+        }
+
+        private double readDouble() throws IOException {
+            double d = need(position, 8).getDouble();
+            position += 8;
+            return d;
+        }
+
+        /**
+         * @return The window, positioned at <code>at</code> and holding at
+         *         least the given number of bytes from there.
+         */
+        private ByteBuffer need(long at, int bytes) throws IOException {
+            if (at + bytes > size) {
+                throw new EOFException("The feature cache ends too soon.");
+            }
+            if (window == null || at < windowStart || at + bytes > windowStart + window.capacity()) {
+                long length = Math.min(Math.max(WINDOW_SIZE, bytes), size - at);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, at, length);
+                windowStart = at;
+            }
+            window.position((int) (at - windowStart));
+            return window;
+        }
+    }
+
+}
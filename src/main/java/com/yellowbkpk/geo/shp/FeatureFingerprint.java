@@ -0,0 +1,125 @@
+package com.yellowbkpk.geo.shp;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+import com.yellowbkpk.osm.util.CoordinateKey;
+import com.yellowbkpk.osm.util.FnvHash;
+
+/**
+ * A 64 bit hash of a feature that comes out the same for features that
+ * convert to the same elements. Coordinates are quantized to the precision
+ * the outputters write (see {@link CoordinateKey}) and repeated ones are
+ * dropped. Rings start at their lowest coordinate and go towards the lower
+ * of its neighbours, lines start at their lower end, and the parts of a
+ * multi-part geometry or the holes of a polygon can come in any order. So
+ * the same line digitized in the other direction, or a ring that starts
+ * somewhere else, has the same fingerprint.
+ */
+public class FeatureFingerprint {
+
+
+    private static final int SINGLE = 1;
+    private static final int LINE = 2;
+    private static final int RING = 3;
+    private static final int POLYGON = 4;
+    private static final int PARTS = 5;
+
+    /**
+     * @param ignoredAttributes Attributes to leave out, such as an object
+     *            ID that differs between copies of the same feature.
+     */
+    public static long of(Geometry geometry, FeatureAttributes attributes, Set<String> ignoredAttributes) {
+        long hash = FnvHash.hash(FnvHash.OFFSET, of(geometry));
+        for (int i = 0; i < attributes.size(); i++) {
+            if (ignoredAttributes.contains(attributes.getName(i))) {
+                continue;
+            }
+            hash = FnvHash.hash(hash, attributes.getName(i));
+            hash = FnvHash.hash(hash, attributes.getValue(i));
+        }
+        return hash;
+    }
+
+    /**
+     * @return The fingerprint of the geometry alone.
+     */
+    public static long of(Geometry geometry) {
+        if (geometry instanceof GeometryCollection) {
+            long[] parts = new long[geometry.getNumGeometries()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = of(geometry.getGeometryN(i));
+            }
+            return hashUnordered(PARTS, parts);
+        } else if (geometry instanceof Polygon) {
+            Polygon polygon = (Polygon) geometry;
+            long[] holes = new long[polygon.getNumInteriorRing()];
+            for (int i = 0; i < holes.length; i++) {
+                holes[i] = ofLine(polygon.getInteriorRingN(i).getCoordinates());
+            }
+            long hash = FnvHash.hash(FnvHash.hash(FnvHash.OFFSET, POLYGON),
+                    ofLine(polygon.getExteriorRing().getCoordinates()));
+            return FnvHash.hash(hash, hashUnordered(PARTS, holes));
+        } else if (geometry instanceof LineString) {
+            return ofLine(geometry.getCoordinates());
+        }
+        return FnvHash.hash(FnvHash.hash(FnvHash.OFFSET, SINGLE), key(geometry.getCoordinate()));
+    }
+
+    /**
+     * Hashes a line, or a ring if it ends where it starts.
+     */
+    private static long ofLine(Coordinate[] coordinates) {
+        long[] keys = new long[coordinates.length];
+        int length = 0;
+        for (Coordinate coordinate : coordinates) {
+            long key = key(coordinate);
+            if (length == 0 || keys[length - 1] != key) {
+                keys[length++] = key;
+            }
+        }
+
+        if (length > 3 && keys[0] == keys[length - 1]) {
+            int n = length - 1;
+            int start = 0;
+            for (int i = 1; i < n; i++) {
+                if (keys[i] < keys[start]) {
+                    start = i;
+                }
+            }
+            int step = keys[(start + 1) % n] <= keys[(start + n - 1) % n] ? 1 : n - 1;
+            long hash = FnvHash.hash(FnvHash.hash(FnvHash.OFFSET, RING), n);
+            for (int i = 0; i < n; i++) {
+                hash = FnvHash.hash(hash, keys[(start + i * step) % n]);
+            }
+            return hash;
+        }
+
+        boolean reversed = length > 0 && keys[0] > keys[length - 1];
+        long hash = FnvHash.hash(FnvHash.hash(FnvHash.OFFSET, LINE), length);
+        for (int i = 0; i < length; i++) {
+            hash = FnvHash.hash(hash, keys[reversed ? length - 1 - i : i]);
+        }
+        return hash;
+    }
+
+    private static long key(Coordinate coordinate) {
+        return CoordinateKey.of(coordinate.y, coordinate.x);
+    }
+
+    private static long hashUnordered(int type, long[] parts) {
+        long[] sorted = parts.clone();
+        Arrays.sort(sorted);
+        long hash = FnvHash.hash(FnvHash.hash(FnvHash.OFFSET, type), sorted.length);
+        for (long part : sorted) {
+            hash = FnvHash.hash(hash, part);
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.IOException;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Where the converter gets its features from: one feature type after the
+ * other, and one feature at a time within a type. The current feature's
+ * geometry is already in lat/lon.
+ */
+public interface FeatureInput {
+
+    String[] getTypeNames();
+
+    /**
+     * @return The names of the attributes features have.
+     */
+    String[] getAttributeNames();
+
+    /**
+     * Starts on the features of a type. Types are read in the order
+     * {@link #getTypeNames()} gives them.
+     */
+    void open(String typeName) throws IOException;
+
+    boolean hasNext() throws IOException;
+
+    /**
+     * Moves on to the next feature.
+     */
+    void next() throws IOException;
+
+    String getFeatureID();
+
+    FeatureAttributes getAttributes();
+
+    /**
+     * @return The JTS geometry type, such as "MultiPolygon".
+     */
+    String getGeometryType();
+
+    /**
+     * @return The number of vertices in the feature's geometry.
+     */
+    int getVertexCount();
+
+    /**
+     * @return The geometry in lat/lon. Features that are skipped never need
+     *         it, so it may not be worked out until this is called.
+     */
+    Geometry getGeometry() throws ShpToOsmException;
+
+    /**
+     * @return How long it took to get the geometry into lat/lon.
+     */
+    long getTransformNanos();
+
+    /**
+     * Done with the current type.
+     */
+    void closeType();
+
+    void close();
+
+}
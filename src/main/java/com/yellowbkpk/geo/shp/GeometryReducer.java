@@ -0,0 +1,198 @@
+package com.yellowbkpk.geo.shp;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.yellowbkpk.osm.util.CoordinateKey;
+
+/**
+ * Cuts down the vertices of lines and rings before they are made into ways.
+ * Coordinates are quantized to the precision the outputters write (see
+ * {@link CoordinateKey}), vertices that then repeat the one before are
+ * dropped, and the line is simplified with Douglas-Peucker: a vertex is
+ * only kept if leaving it out would move the line by more than the
+ * tolerance.
+ * <p>
+ * Everything works on arrays of coordinate keys, compacting the kept
+ * vertices to the start of the array. The result only depends on the
+ * vertices between the two ends, which are always kept, so a boundary
+ * shared by two areas is simplified the same way for both as long as it is
+ * simplified on its own, between the places where the areas part. The
+ * topology builder does that with the boundaries it finds.
+ */
+public class GeometryReducer {
+
+    private static final double METRES_PER_DEGREE = 111195.0;
+
+    private final double tolerance;
+
+    /**
+     * @param tolerance How far the simplified line may be from the
+     *            original, in metres. With 0, lines are only quantized.
+     */
+    public GeometryReducer(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Drops repeated vertices and simplifies.
+     *
+     * @return The number of keys kept at the start of the array.
+     */
+    public int reduce(long[] keys, int length) {
+        return simplify(keys, dropRepeats(keys, length));
+    }
+
+    /**
+     * Drops vertices that are the same as the one before.
+     *
+     * @return The number of keys kept at the start of the array.
+     */
+    public static int dropRepeats(long[] keys, int length) {
+        int kept = 0;
+        for (int i = 0; i < length; i++) {
+            if (kept == 0 || keys[kept - 1] != keys[i]) {
+                keys[kept++] = keys[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Simplifies a line, keeping both ends. A line that ends where it starts
+     * is simplified as a ring, and is left alone if it would come out with
+     * fewer than three distinct vertices.
+     *
+     * @return The number of keys kept at the start of the array.
+     */
+    public int simplify(long[] keys, int length) {
+        if (tolerance <= 0 || length < 3) {
+            return length;
+        }
+
+        double cosLat = Math.cos(Math.toRadians(CoordinateKey.dequantize(CoordinateKey.fixedLat(keys[0]))));
+        double[] x = new double[length];
+        double[] y = new double[length];
+        for (int i = 0; i < length; i++) {
+            x[i] = CoordinateKey.dequantize(CoordinateKey.fixedLon(keys[i])) * METRES_PER_DEGREE * cosLat;
+            y[i] = CoordinateKey.dequantize(CoordinateKey.fixedLat(keys[i])) * METRES_PER_DEGREE;
+        }
+
+        boolean[] keep = new boolean[length];
+        keep[0] = true;
+        keep[length - 1] = true;
+        if (keys[0] == keys[length - 1]) {
+            // A ring has no segment to measure from, so it is cut in two at
+            // the vertex farthest from its start.
+            int far = 1;
+            double farthest = -1;
+            for (int i = 1; i < length - 1; i++) {
+                double dx = x[i] - x[0];
+                double dy = y[i] - y[0];
+                if (dx * dx + dy * dy > farthest) {
+                    farthest = dx * dx + dy * dy;
+                    far = i;
+                }
+            }
+            keep[far] = true;
+            mark(x, y, keep, 0, far);
+            mark(x, y, keep, far, length - 1);
+
+            int distinct = 0;
+            for (int i = 0; i < length - 1; i++) {
+                if (keep[i]) {
+                    distinct++;
+                }
+            }
+            if (distinct < 3) {
+                return length;
+            }
+        } else {
+            mark(x, y, keep, 0, length - 1);
+        }
+
+        int kept = 0;
+        for (int i = 0; i < length; i++) {
+            if (keep[i]) {
+                keys[kept++] = keys[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Marks the vertices between <code>first</code> and <code>last</code>
+     * that have to be kept. Works through a stack of its own rather than
+     * recursion, so that lines with millions of vertices can't overflow the
+     * call stack.
+     */
+    private void mark(double[] x, double[] y, boolean[] keep, int first, int last) {
+        double limit = tolerance * tolerance;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+
+            int farthest = -1;
+            double farthestDistance = limit;
+            for (int i = start + 1; i < end; i++) {
+                double distance = distanceToSegment(x[i], y[i], x[start], y[start], x[end], y[end]);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                if (top + 4 > stack.length) {
+                    int[] bigger = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, bigger, 0, top);
+                    stack = bigger;
+                }
+                stack[top++] = start;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = end;
+            }
+        }
+    }
+
+    /**
+     * @return The square of the distance from the vertex to the segment.
+     */
+    private static double distanceToSegment(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        }
+        double px = x1 + t * dx - x;
+        double py = y1 + t * dy - y;
+        return px * px + py * py;
+    }
+
+    /**
+     * @return The coordinates as keys, quantized.
+     */
+    public static long[] toKeys(Coordinate[] coordinates) {
+        long[] keys = new long[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            keys[i] = CoordinateKey.of(coordinates[i].y, coordinates[i].x);
+        }
+        return keys;
+    }
+
+    public static Coordinate[] toCoordinates(long[] keys, int length) {
+        Coordinate[] coordinates = new Coordinate[length];
+        for (int i = 0; i < length; i++) {
+            coordinates[i] = new Coordinate(CoordinateKey.dequantize(CoordinateKey.fixedLon(keys[i])),
+                    CoordinateKey.dequantize(CoordinateKey.fixedLat(keys[i])));
+        }
+        return coordinates;
+    }
+
+}
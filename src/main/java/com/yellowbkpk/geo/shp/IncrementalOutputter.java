@@ -0,0 +1,335 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.ChangeType;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.FnvHash;
+import com.yellowbkpk.osm.util.IDGenerator;
+
+/**
+ * Passes on only what changed since the last run. The elements of each
+ * feature are held until the feature ends and then hashed, leaving out their
+ * IDs. If the hash is the one {@link IncrementalState} has for the feature's
+ * key, nothing is passed on. Otherwise the elements take over the IDs the
+ * feature had last time in the order they were converted and are passed on
+ * to be modified, extra elements are created and missing ones deleted.
+ * <p>
+ * Deletions, including those of features that are gone from the shapefile,
+ * are passed on after everything else so that no file deletes an element
+ * that a later file still stops using.
+ */
+public class IncrementalOutputter implements OSMOutputter {
+
+    private static Logger log = Logger.getLogger(IncrementalOutputter.class.getName());
+
+
+    private final OSMOutputter outputter;
+    private final IncrementalState previous;
+    private final IncrementalState current = new IncrementalState();
+    private final File stateFile;
+
+    private String key;
+    private final List<Primitive> added = new ArrayList<Primitive>();
+    private final List<Primitive> deleted = new ArrayList<Primitive>();
+    private boolean warnedDuplicate = false;
+
+    private int created = 0;
+    private int modified = 0;
+    private int unchanged = 0;
+
+    /**
+     * @param previous What the last run left, possibly empty.
+     * @param stateFile Where to save what this run leaves.
+     */
+    public IncrementalOutputter(OSMOutputter outputter, IncrementalState previous, File stateFile) {
+        this.outputter = outputter;
+        this.previous = previous;
+        this.stateFile = stateFile;
+        previous.reserveIds();
+    }
+
+    /**
+     * Called before each feature is converted.
+     *
+     * @param featureKey The feature's value of the key attribute.
+     */
+    public void startFeature(String featureKey) {
+        String unique = featureKey;
+        for (int n = 2; current.contains(unique); n++) {
+            if (!warnedDuplicate) {
+                log.log(Level.WARNING, "The key attribute is not unique (\"" + featureKey
+                        + "\" is repeated), so features with the same value are told apart by their order.");
+                warnedDuplicate = true;
+            }
+            unique = featureKey + "#" + n;
+        }
+        key = unique;
+        added.clear();
+    }
+
+    /**
+     * Called after each feature is converted.
+     */
+    public void endFeature() {
+        List<List<Primitive>> elements = collect();
+        long hash = hash(elements);
+
+        IncrementalState.Entry old = previous.get(key);
+        if (old != null && old.getHash() == hash) {
+            current.put(key, old);
+            unchanged++;
+            return;
+        }
+
+        int[][] ids = new int[3][];
+        int[][] versions = new int[3][];
+        for (int type = IncrementalState.NODES; type <= IncrementalState.RELATIONS; type++) {
+            List<Primitive> list = elements.get(type);
+            int[] oldIds = old != null ? old.getIds(type) : new int[0];
+            int[] oldVersions = old != null ? old.getVersions(type) : new int[0];
+            ids[type] = new int[list.size()];
+            versions[type] = new int[list.size()];
+
+            for (int i = 0; i < list.size(); i++) {
+                Primitive primitive = list.get(i);
+                if (i < oldIds.length) {
+                    primitive.setID(oldIds[i]);
+                    primitive.setVersion(oldVersions[i] > 0 ? Integer.valueOf(oldVersions[i]) : null);
+                    primitive.setChangeType(ChangeType.modify);
+                    versions[type][i] = oldVersions[i];
+                } else if (primitive.getID() == 0) {
+                    primitive.setID(nextId(type));
+                }
+                ids[type][i] = primitive.getID();
+            }
+            for (int i = list.size(); i < oldIds.length; i++) {
+                deleted.add(deletion(type, oldIds[i], oldVersions[i]));
+            }
+        }
+        current.put(key, new IncrementalState.Entry(hash, ids, versions));
+        if (old != null) {
+            modified++;
+        } else {
+            created++;
+        }
+
+        for (Primitive primitive : added) {
+            PrimitiveTypeEnum type = primitive.getType();
+            if (PrimitiveTypeEnum.node.equals(type)) {
+                outputter.addNode((Node) primitive);
+            } else if (PrimitiveTypeEnum.way.equals(type)) {
+                outputter.addWay((Way) primitive);
+            } else if (PrimitiveTypeEnum.relation.equals(type)) {
+                outputter.addRelation((Relation) primitive);
+            }
+        }
+    }
+
+    public void addNode(Node node) {
+        added.add(node);
+    }
+
+    public void addWay(Way way) {
+        added.add(way);
+    }
+
+    public void addRelation(Relation relation) {
+        added.add(relation);
+    }
+
+    /**
+     * Deletes what is left, finishes the last file and saves the state for
+     * the next run.
+     */
+    public void finish() {
+        int removed = 0;
+        for (String oldKey : previous.keys()) {
+            if (current.contains(oldKey)) {
+                continue;
+            }
+            IncrementalState.Entry old = previous.get(oldKey);
+            for (int type = IncrementalState.NODES; type <= IncrementalState.RELATIONS; type++) {
+                int[] ids = old.getIds(type);
+                for (int i = 0; i < ids.length; i++) {
+                    deleted.add(deletion(type, ids[i], old.getVersions(type)[i]));
+                }
+            }
+            removed++;
+        }
+
+        // Relations first, then ways, then nodes
+        for (int type = IncrementalState.RELATIONS; type >= IncrementalState.NODES; type--) {
+            for (Primitive primitive : deleted) {
+                if (typeIndex(primitive) != type) {
+                    continue;
+                }
+                if (type == IncrementalState.NODES) {
+                    outputter.addNode((Node) primitive);
+                } else if (type == IncrementalState.WAYS) {
+                    outputter.addWay((Way) primitive);
+                } else {
+                    outputter.addRelation((Relation) primitive);
+                }
+            }
+        }
+        deleted.clear();
+
+        outputter.finish();
+
+        log.log(Level.INFO, "Features created: " + created + ", modified: " + modified + ", unchanged: "
+                + unchanged + ", deleted: " + removed + ".");
+        try {
+            current.save(stateFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not save incremental state to " + stateFile + ".", e);
+        }
+    }
+
+    public void start() {
+        outputter.start();
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+        outputter.setMaxElementsPerFile(maxPerFile);
+    }
+
+    public void write(OSMFile out) {
+        outputter.write(out);
+    }
+
+    /**
+     * @return The feature's distinct nodes, ways and relations, each in the
+     *         order they were first reached.
+     */
+    private List<List<Primitive>> collect() {
+        List<List<Primitive>> elements = new ArrayList<List<Primitive>>(3);
+        for (int type = IncrementalState.NODES; type <= IncrementalState.RELATIONS; type++) {
+            elements.add(new ArrayList<Primitive>());
+        }
+        // Standalone nodes have no ID yet, so they can only be told apart by
+        // identity.
+        Map<Primitive, Boolean> seen = new IdentityHashMap<Primitive, Boolean>();
+        for (Primitive primitive : added) {
+            collect(primitive, elements, seen);
+        }
+        return elements;
+    }
+
+    private void collect(Primitive primitive, List<List<Primitive>> elements, Map<Primitive, Boolean> seen) {
+        if (seen.put(primitive, Boolean.TRUE) != null) {
+            return;
+        }
+        if (primitive instanceof Way) {
+            for (Node node : ((Way) primitive).getNodes()) {
+                collect(node, elements, seen);
+            }
+        } else if (primitive instanceof Relation) {
+            for (Member member : ((Relation) primitive).getMembers()) {
+                collect(member.getMember(), elements, seen);
+            }
+        }
+        elements.get(typeIndex(primitive)).add(primitive);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of everything about the elements but their IDs.
+     * Way nodes and relation members are hashed by their position in the
+     * feature, so a change in how elements are shared changes the hash too.
+     */
+    private static long hash(List<List<Primitive>> elements) {
+        Map<Primitive, Integer> positions = new IdentityHashMap<Primitive, Integer>();
+        for (List<Primitive> list : elements) {
+            for (int i = 0; i < list.size(); i++) {
+                positions.put(list.get(i), Integer.valueOf(i));
+            }
+        }
+
+        long hash = FnvHash.OFFSET;
+        for (int type = IncrementalState.NODES; type <= IncrementalState.RELATIONS; type++) {
+            List<Primitive> list = elements.get(type);
+            hash = FnvHash.hash(hash, list.size());
+            for (Primitive primitive : list) {
+                Iterator<Tag> tagIter = primitive.getTagIterator();
+                hash = FnvHash.hash(hash, primitive.getTagCount());
+                while (tagIter.hasNext()) {
+                    Tag tag = tagIter.next();
+                    hash = FnvHash.hash(hash, tag.getKey());
+                    hash = FnvHash.hash(hash, tag.getValue());
+                }
+
+                if (primitive instanceof Node) {
+                    Node node = (Node) primitive;
+                    hash = FnvHash.hash(hash, Double.doubleToLongBits(node.getLat()));
+                    hash = FnvHash.hash(hash, Double.doubleToLongBits(node.getLon()));
+                } else if (primitive instanceof Way) {
+                    List<Node> nodes = ((Way) primitive).getNodes();
+                    hash = FnvHash.hash(hash, nodes.size());
+                    for (Node node : nodes) {
+                        hash = FnvHash.hash(hash, positions.get(node).intValue());
+                    }
+                } else {
+                    List<Member> members = ((Relation) primitive).getMembers();
+                    hash = FnvHash.hash(hash, members.size());
+                    for (Member member : members) {
+                        hash = FnvHash.hash(hash, typeIndex(member.getMember()));
+                        hash = FnvHash.hash(hash, positions.get(member.getMember()).intValue());
+                        hash = FnvHash.hash(hash, member.getRole());
+                    }
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static int typeIndex(Primitive primitive) {
+        PrimitiveTypeEnum type = primitive.getType();
+        if (PrimitiveTypeEnum.node.equals(type)) {
+            return IncrementalState.NODES;
+        } else if (PrimitiveTypeEnum.way.equals(type)) {
+            return IncrementalState.WAYS;
+        }
+        return IncrementalState.RELATIONS;
+    }
+
+    private static int nextId(int type) {
+        if (type == IncrementalState.NODES) {
+            return IDGenerator.get().nextNodeID();
+        } else if (type == IncrementalState.WAYS) {
+            return IDGenerator.get().nextWayID();
+        }
+        return IDGenerator.get().nextRelationID().intValue();
+    }
+
+    private static Primitive deletion(int type, int id, int version) {
+        Primitive primitive;
+        if (type == IncrementalState.NODES) {
+            primitive = new Node(0, 0);
+        } else if (type == IncrementalState.WAYS) {
+            primitive = new Way();
+        } else {
+            primitive = new Relation();
+        }
+        primitive.setID(id);
+        primitive.setVersion(version > 0 ? Integer.valueOf(version) : null);
+        primitive.setChangeType(ChangeType.delete);
+        return primitive;
+    }
+
+}
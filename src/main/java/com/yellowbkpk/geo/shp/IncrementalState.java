@@ -0,0 +1,242 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+import com.yellowbkpk.osm.util.SafeFiles;
+
+/**
+ * What an incremental run remembers about every feature it converted: a
+ * hash of the feature's elements and the IDs and versions they were
+ * written with, keyed by the value of a stable shapefile attribute. Saved
+ * as a gzipped binary file between runs.
+ */
+public class IncrementalState {
+
+    public static final int NODES = 0;
+    public static final int WAYS = 1;
+    public static final int RELATIONS = 2;
+
+    private static final int MAGIC = 0x53544f31;
+    private static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * One feature: its hash, and for nodes, ways and relations the IDs and
+     * versions (0 if not known) of its elements in the order they were
+     * converted.
+     */
+    public static class Entry {
+        private final long hash;
+        private final int[][] ids;
+        private final int[][] versions;
+
+        public Entry(long hash, int[][] ids, int[][] versions) {
+            this.hash = hash;
+            this.ids = ids;
+            this.versions = versions;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * @param type {@link #NODES}, {@link #WAYS} or {@link #RELATIONS}.
+         */
+        public int[] getIds(int type) {
+            return ids[type];
+        }
+
+        public int[] getVersions(int type) {
+            return versions[type];
+        }
+    }
+
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    public boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return entries.keySet();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Moves the ID generators past the placeholder (negative) IDs in the
+     * state, so that new elements don't reuse them.
+     */
+    public void reserveIds() {
+        int[] lowest = new int[] { IDGenerator.get().currentNodeID(), IDGenerator.get().currentWayID(),
+                IDGenerator.get().currentRelationID() };
+        for (Entry entry : entries.values()) {
+            for (int type = NODES; type <= RELATIONS; type++) {
+                for (int id : entry.ids[type]) {
+                    lowest[type] = Math.min(lowest[type], id - 1);
+                }
+            }
+        }
+        IDGenerator.get().restore(lowest[NODES], lowest[WAYS], lowest[RELATIONS]);
+    }
+
+    /**
+     * Swaps the placeholder IDs for the ones the server gave out, from the
+     * diffResult returned when the last run's files were uploaded. This is
+     * also how elements get their versions.
+     */
+    public void applyDiffResult(File diffResult) throws IOException {
+        final LongIntHashMap[] newIds = new LongIntHashMap[3];
+        final LongIntHashMap[] newVersions = new LongIntHashMap[3];
+        for (int type = NODES; type <= RELATIONS; type++) {
+            newIds[type] = new LongIntHashMap(NOT_FOUND);
+            newVersions[type] = new LongIntHashMap(NOT_FOUND);
+        }
+
+        DefaultHandler handler = new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                int type = "node".equals(qName) ? NODES : "way".equals(qName) ? WAYS
+                        : "relation".equals(qName) ? RELATIONS : -1;
+                String oldId = attributes.getValue("old_id");
+                String newId = attributes.getValue("new_id");
+                if (type < 0 || oldId == null || newId == null) {
+                    // Not an element, or one that was deleted
+                    return;
+                }
+                newIds[type].put(Long.parseLong(oldId), Integer.parseInt(newId));
+                String newVersion = attributes.getValue("new_version");
+                if (newVersion != null) {
+                    newVersions[type].put(Long.parseLong(oldId), Integer.parseInt(newVersion));
+                }
+            }
+        };
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(diffResult, handler);
+        } catch (SAXException e) {
+            throw new IOException("Could not parse " + diffResult + ": " + e.getMessage());
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("No XML parser available.", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad ID in " + diffResult + ": " + e.getMessage());
+        }
+
+        for (Entry entry : entries.values()) {
+            for (int type = NODES; type <= RELATIONS; type++) {
+                int[] ids = entry.ids[type];
+                for (int i = 0; i < ids.length; i++) {
+                    int version = newVersions[type].get(ids[i]);
+                    if (version != NOT_FOUND) {
+                        entry.versions[type][i] = version;
+                    }
+                    int id = newIds[type].get(ids[i]);
+                    if (id != NOT_FOUND) {
+                        ids[i] = id;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the state to a temporary file and renames it over the old one.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fileOut)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.hash);
+                for (int type = NODES; type <= RELATIONS; type++) {
+                    int[] ids = entry.ids[type];
+                    out.writeInt(ids.length);
+                    for (int i = 0; i < ids.length; i++) {
+                        out.writeInt(ids[i]);
+                        out.writeInt(entry.versions[type][i]);
+                    }
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        SafeFiles.replace(temp, file);
+    }
+
+    /**
+     * @return The state in the file, or an empty one if there is no file yet.
+     */
+    public static IncrementalState load(File file) throws IOException {
+        IncrementalState state = new IncrementalState();
+        if (!file.exists()) {
+            return state;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not an incremental state file.");
+            }
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                String key = in.readUTF();
+                long hash = in.readLong();
+                int[][] ids = new int[3][];
+                int[][] versions = new int[3][];
+                for (int type = NODES; type <= RELATIONS; type++) {
+                    int length = in.readInt();
+                    ids[type] = new int[length];
+                    versions[type] = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        ids[type][i] = in.readInt();
+                        versions[type][i] = in.readInt();
+                    }
+                }
+                state.put(key, new Entry(hash, ids, versions));
+            }
+        } finally {
+            in.close();
+        }
+        return state;
+    }
+
+}
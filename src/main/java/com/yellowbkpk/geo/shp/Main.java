@@ -3,6 +3,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,12 +20,19 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import com.yellowbkpk.geo.glom.GlommingFilter;
+import com.yellowbkpk.geo.glom.GlommingOutputter;
+import com.yellowbkpk.geo.topo.TopologyOutputter;
+import com.yellowbkpk.osm.output.AbstractOutputter;
+import com.yellowbkpk.osm.output.HilbertOrderingOutputter;
 import com.yellowbkpk.osm.output.OSMChangeOutputter;
 import com.yellowbkpk.osm.output.OSMOldOutputter;
 import com.yellowbkpk.osm.output.OSMOutputter;
 import com.yellowbkpk.osm.output.OutputFilter;
+import com.yellowbkpk.osm.output.PackingOutputter;
 import com.yellowbkpk.osm.output.SaveEverything;
 import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.util.FnvHash;
+import com.yellowbkpk.osm.util.PipelineMetrics;
 
 /**
  * @author Ian Dees
@@ -33,6 +44,12 @@ public class Main {
 
     private static final String GENERATOR_STRING = "shp-to-osm 0.7";
 
+    /**
+     * The options that change what a checkpointed run writes.
+     */
+    private static final String[] OUTPUT_OPTIONS = { "t", "copyTags", "outputFormat", "maxnodes", "maxChunkBytes",
+            "heapBudget", "simplify", "dedup" };
+
     /**
      * @param args
      */
@@ -52,7 +69,7 @@ public class Main {
                 .hasArg()
                 .create());
         options.addOption(OptionBuilder.withLongOpt("osmfile")
-                .withDescription("Prefix of the output file name.")
+                .withDescription("Prefix of the output file name, or - to write one document to standard output.")
                 .withArgName("OSMFILE")
                 .hasArg()
                 .isRequired()
@@ -67,6 +84,20 @@ public class Main {
                 .withArgName("nodes")
                 .hasArg()
                 .create());
+        options.addOption(OptionBuilder.withLongOpt("maxChunkBytes")
+                .withDescription("Start a new OSM file once the current one reaches about this many bytes.")
+                .withArgName("bytes")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("heapBudget")
+                .withDescription("Write out a file once the elements waiting for it take up about this "
+                        + "many megabytes of heap.")
+                .withArgName("MB")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("compactStaging")
+                .withDescription("Keep the elements waiting for the next OSM file in compact form off the heap.")
+                .create());
         options.addOption(OptionBuilder.withLongOpt("outputFormat")
                 .withDescription("The output format ('osm' or 'osmc' (default)).")
                 .withArgName("format")
@@ -77,11 +108,90 @@ public class Main {
                 .withArgName("key")
                 .hasArg()
                 .create());
+        options.addOption(OptionBuilder.withLongOpt("glomMemory")
+                .withDescription("Glom out of core, using at most this many megabytes of heap.")
+                .withArgName("MB")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("topology")
+                .withDescription("Write the boundaries that adjacent areas share only once, using at most this "
+                        + "many megabytes of heap (256 by default).")
+                .withArgName("MB")
+                .hasOptionalArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("pack")
+                .withDescription("Pack whole features into files of at most --maxnodes elements, looking at "
+                        + "this many features at a time (1000 by default).")
+                .withArgName("features")
+                .hasOptionalArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("hilbertOrder")
+                .withDescription("Write elements in order of location along a Hilbert curve, using at most "
+                        + "this many megabytes of heap (256 by default).")
+                .withArgName("MB")
+                .hasOptionalArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("simplify")
+                .withDescription("Quantize lines and rings, and drop vertices that move them by no more than "
+                        + "this many metres (0 to only quantize).")
+                .withArgName("metres")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("snap")
+                .withDescription("Merge standalone nodes that are within this many metres of each other.")
+                .withArgName("metres")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("snapConflict")
+                .withDescription("When merged nodes disagree on a tag, keep the 'first' (default) or 'last' "
+                        + "value, or 'join' them with semicolons.")
+                .withArgName("policy")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("snapWindow")
+                .withDescription("The most nodes to hold while looking for nearby ones (default 1000000).")
+                .withArgName("nodes")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("dedup")
+                .withDescription("Drop features with the same geometry and attributes as an earlier one, "
+                        + "leaving the listed attributes out of the comparison.")
+                .withArgName("attribute,...")
+                .hasOptionalArg()
+                .create());
         options.addOption(OptionBuilder.withLongOpt("copyTags")
                 .withDescription("Copy all shapefile attributes to OSM tags verbatim, with an optional prefix.")
                 .withArgName("prefix")
                 .hasOptionalArg()
                 .create());
+        options.addOption(OptionBuilder.withLongOpt("resume")
+                .withDescription("Pick up an interrupted conversion from its checkpoint.")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("incremental")
+                .withDescription("Only output what changed since the run that left this state file.")
+                .withArgName("FILE")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("featureKey")
+                .withDescription("The attribute that identifies a feature from one run to the next.")
+                .withArgName("attribute")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("diffResult")
+                .withDescription("The server's response to uploading the last run's files. May be repeated.")
+                .withArgName("FILE")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("featureCache")
+                .withDescription("Cache the reprojected features in this directory, and use the cache when the shapefile hasn't changed.")
+                .withArgName("dir")
+                .hasArg()
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("report")
+                .withDescription("Write a JSON performance report to this file.")
+                .withArgName("FILE")
+                .hasArg()
+                .create());
         
         boolean keepOnlyTaggedWays = false;
         try {
@@ -92,7 +202,7 @@ public class Main {
             }
             
             if(!line.hasOption("shapefile") || !line.hasOption("rulesfile") || !line.hasOption("osmfile")) {
-                System.out.println("Missing one of the required file paths.");
+                System.err.println("Missing one of the required file paths.");
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("java -cp shp-to-osm.jar", options, true);
                 System.exit(-1);
@@ -100,13 +210,14 @@ public class Main {
             
             File shpFile = new File(line.getOptionValue("shapefile"));
             if(!shpFile.canRead()) {
-                System.out.println("Could not read the input shapefile.");
+                System.err.println("Could not read the input shapefile.");
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("java -cp shp-to-osm.jar", options, true);
                 System.exit(-1);
             }
             
             final String filePrefix = line.getOptionValue("osmfile");
+            final boolean toStdout = "-".equals(filePrefix);
             String rootDirStr;
             if (line.hasOption("outdir")) {
                 rootDirStr = line.getOptionValue("outdir");
@@ -123,6 +234,7 @@ public class Main {
             }
             
             RuleSet rules = new RuleSet();
+            File rulesFile = null;
             
             boolean useAllTags = line.hasOption("copyTags");
             if (useAllTags) {
@@ -131,9 +243,9 @@ public class Main {
             }
 
             if (line.hasOption("rulesfile")) {
-                File rulesFile = new File(line.getOptionValue("rulesfile"));
+                rulesFile = new File(line.getOptionValue("rulesfile"));
                 if (!rulesFile.canRead()) {
-                    System.out.println("Could not read the input rulesfile.");
+                    System.err.println("Could not read the input rulesfile.");
                     HelpFormatter formatter = new HelpFormatter();
                     formatter.printHelp("java -cp shp-to-osm.jar", options, true);
                     System.exit(-1);
@@ -146,23 +258,73 @@ public class Main {
             if(line.hasOption("glomKey")) {
                 glomKey = line.getOptionValue("glomKey");
                 shouldGlom = true;
-                System.out.println("Will attempt to glom on key \'" + glomKey + "\'.");
+                System.err.println("Will attempt to glom on key \'" + glomKey + "\'.");
             }
 
-            OSMOutputter outputter = new OSMChangeOutputter(rootDirFile, filePrefix, GENERATOR_STRING);
+            AbstractOutputter fileOutputter;
+            if("osm".equals(line.getOptionValue("outputFormat"))) {
+                fileOutputter = toStdout ? new OSMOldOutputter(System.out, GENERATOR_STRING)
+                        : new OSMOldOutputter(rootDirFile, filePrefix, GENERATOR_STRING);
+            } else {
+                fileOutputter = toStdout ? new OSMChangeOutputter(System.out, GENERATOR_STRING)
+                        : new OSMChangeOutputter(rootDirFile, filePrefix, GENERATOR_STRING);
+            }
+            if(line.hasOption("compactStaging")) {
+                fileOutputter.setCompactStaging(true);
+            }
+
+            OSMOutputter outputter = fileOutputter;
+            SaveEverything saveEverything = null;
+            if(line.hasOption("pack")) {
+                outputter = new PackingOutputter(outputter, Integer.parseInt(line.getOptionValue("pack", "1000")));
+            }
+            if(line.hasOption("hilbertOrder")) {
+                long budget = Long.parseLong(line.getOptionValue("hilbertOrder", "256")) * 1024 * 1024;
+                outputter = new HilbertOrderingOutputter(outputter, budget, null);
+            }
             if(line.hasOption("outputFormat")) {
-                String type = line.getOptionValue("outputFormat");
-                if("osm".equals(type)) {
-                    outputter = new OSMOldOutputter(rootDirFile, filePrefix, GENERATOR_STRING);
-                }
-                
                 if(shouldGlom) {
-                    OutputFilter glomFilter = new GlommingFilter(glomKey);
-                    outputter = new SaveEverything(outputter).withFilter(glomFilter);
+                    if(line.hasOption("glomMemory")) {
+                        long budget = Long.parseLong(line.getOptionValue("glomMemory")) * 1024 * 1024;
+                        outputter = new GlommingOutputter(outputter, glomKey, budget, null);
+                    } else {
+                        OutputFilter glomFilter = new GlommingFilter(glomKey);
+                        saveEverything = new SaveEverything(outputter).withFilter(glomFilter);
+                        outputter = saveEverything;
+                    }
                 }
             } else {
                 System.err.println("No output format specified. Defaulting to osmChange format.");
             }
+            GeometryReducer reducer = null;
+            if(line.hasOption("simplify")) {
+                reducer = new GeometryReducer(Double.parseDouble(line.getOptionValue("simplify")));
+            }
+            if(line.hasOption("topology")) {
+                long budget = Long.parseLong(line.getOptionValue("topology", "256")) * 1024 * 1024;
+                TopologyOutputter topology = new TopologyOutputter(outputter, budget, null);
+                topology.setReducer(reducer);
+                outputter = topology;
+            }
+            if(line.hasOption("snap")) {
+                double tolerance = Double.parseDouble(line.getOptionValue("snap"));
+                if(tolerance < SnappingOutputter.MIN_TOLERANCE) {
+                    System.err.println("--snap must be at least " + SnappingOutputter.MIN_TOLERANCE + " metres.");
+                    System.exit(-1);
+                }
+                SnappingOutputter.ConflictPolicy policy = SnappingOutputter.ConflictPolicy.first;
+                if(line.hasOption("snapConflict")) {
+                    try {
+                        policy = SnappingOutputter.ConflictPolicy.valueOf(line.getOptionValue("snapConflict"));
+                    } catch(IllegalArgumentException e) {
+                        System.err.println("Unknown --snapConflict policy \"" + line.getOptionValue("snapConflict")
+                                + "\". Use first, last or join.");
+                        System.exit(-1);
+                    }
+                }
+                int window = Integer.parseInt(line.getOptionValue("snapWindow", "1000000"));
+                outputter = new SnappingOutputter(outputter, tolerance, policy, window);
+            }
             
             int maxNodesPerFile = 50000;
             if(line.hasOption("maxnodes")) {
@@ -175,11 +337,70 @@ public class Main {
                 }
             }
             outputter.setMaxElementsPerFile(maxNodesPerFile);
+            if(line.hasOption("maxChunkBytes")) {
+                fileOutputter.setMaxBytesPerFile(Long.parseLong(line.getOptionValue("maxChunkBytes")));
+            }
+            if(line.hasOption("heapBudget")) {
+                long heapBudget = Long.parseLong(line.getOptionValue("heapBudget")) * 1024 * 1024;
+                fileOutputter.setHeapBudget(heapBudget);
+                if(saveEverything != null) {
+                    saveEverything.setHeapBudget(heapBudget);
+                }
+            }
             
             ShpToOsmConverter conv = new ShpToOsmConverter(shpFile, rules, keepOnlyTaggedWays, outputter);
+            conv.setReducer(reducer);
+            if(line.hasOption("incremental")) {
+                if(!line.hasOption("featureKey") || outputter != fileOutputter || line.hasOption("resume")) {
+                    System.err.println("--incremental needs --featureKey, and can't be used with glomming, --topology, --snap, "
+                            + "--hilbertOrder, --pack or --resume.");
+                    System.exit(-1);
+                }
+                List<File> diffResults = new ArrayList<File>();
+                if(line.hasOption("diffResult")) {
+                    for (String diffResult : line.getOptionValues("diffResult")) {
+                        diffResults.add(new File(diffResult));
+                    }
+                }
+                conv.setIncremental(new File(line.getOptionValue("incremental")), line.getOptionValue("featureKey"),
+                        diffResults);
+            } else if(toStdout && line.hasOption("resume")) {
+                System.err.println("Conversions written to standard output can't be resumed.");
+                System.exit(-1);
+            } else if(outputter == fileOutputter && !toStdout) {
+                conv.setCheckpoint(new File(rootDirFile, filePrefix + ".checkpoint"), line.hasOption("resume"),
+                        settingsDigest(line, rulesFile));
+            } else if(line.hasOption("resume")) {
+                System.err.println("Glommed, topology, snapped, Hilbert ordered and packed conversions can't be resumed.");
+                System.exit(-1);
+            }
+            if(line.hasOption("dedup")) {
+                Set<String> ignoredAttributes = new HashSet<String>();
+                for (String attribute : line.getOptionValue("dedup", "").split(",")) {
+                    if (attribute.trim().length() > 0) {
+                        ignoredAttributes.add(attribute.trim());
+                    }
+                }
+                conv.setDeduplicate(ignoredAttributes);
+            }
+            if(line.hasOption("featureCache")) {
+                File cacheDir = new File(line.getOptionValue("featureCache"));
+                if(!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                    System.err.println("Could not create the feature cache directory \"" + cacheDir + "\".");
+                    System.exit(-1);
+                }
+                conv.setFeatureCache(cacheDir);
+            }
             conv.convert();
+
+            PipelineMetrics.get().printSummary(System.err);
+            rules.printStatistics(System.err);
+            if (line.hasOption("report")) {
+                File reportFile = new File(line.getOptionValue("report"));
+                PipelineMetrics.get().writeJson(reportFile);
+            }
         } catch (IOException e) {
-            log.log(Level.WARNING, "Error reading rules file.", e);
+            log.log(Level.WARNING, "Error reading rules file or writing the report.", e);
         } catch (ParseException e) {
             System.err.println("Could not parse command line: " + e.getMessage());
             HelpFormatter formatter = new HelpFormatter();
@@ -190,12 +411,36 @@ public class Main {
         
     }
 
+    /**
+     * @return A hash of the rules file and the options that change the
+     *         output, to tell if a checkpoint was made with the same ones.
+     */
+    private static String settingsDigest(CommandLine line, File rulesFile) throws IOException {
+        long hash = FnvHash.OFFSET;
+        if (rulesFile != null) {
+            BufferedReader br = new BufferedReader(new FileReader(rulesFile));
+            try {
+                String ruleLine;
+                while ((ruleLine = br.readLine()) != null) {
+                    hash = FnvHash.hash(hash, ruleLine);
+                }
+            } finally {
+                br.close();
+            }
+        }
+        for (String option : OUTPUT_OPTIONS) {
+            hash = FnvHash.hash(hash, option);
+            hash = FnvHash.hash(hash, line.hasOption(option) ? line.getOptionValue(option, "") : null);
+        }
+        return Long.toHexString(hash);
+    }
+
     /**
      * @param file
      * @return
      * @throws IOException 
      */
-    private static RuleSet readFileToRulesSet(File file) throws IOException {
+    static RuleSet readFileToRulesSet(File file) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(file));
         
         RuleSet rules = new RuleSet();
@@ -237,6 +482,7 @@ public class Main {
                 } else {
                     r = new Rule(type, srcKey, srcValue, targetKey, targetValue);
                 }
+                r.setLineNumber(lineCount);
 
                 log.log(Level.CONFIG, "Adding rule " + r);
                 if ("inner".equals(type)) {
@@ -259,6 +505,7 @@ public class Main {
         
                     if ("exclude".equals(action)) {
                         ExcludeRule excludeFilter = new ExcludeRule(type, key, value);
+                        excludeFilter.setLineNumber(lineCount);
                         rules.addFilter(excludeFilter);
                         log.log(Level.CONFIG, "Adding exclude filter " + excludeFilter);
                     }
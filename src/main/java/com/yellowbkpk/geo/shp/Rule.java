@@ -10,6 +10,12 @@ public class Rule {
     private boolean useOriginalValue = false;
     private String targetKey;
     private String targetValue;
+    private int lineNumber;
+
+    // Rules are only applied from the conversion thread, so plain counters do.
+    private long evaluations;
+    private long matches;
+    private long tagsProduced;
 
     /**
      * 
@@ -36,7 +42,58 @@ public class Rule {
         return type + ": " + srcKey + "=" + srcValue + " => " + targetKey + "=" + targetValue;
     }
 
+    /**
+     * @param lineNumber The line of the rules file the rule came from.
+     */
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return How many times {@link #createTag(String, String)} was called.
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return How many times {@link #createTag(String, String)} made a tag.
+     */
+    public long getMatches() {
+        return matches;
+    }
+
+    /**
+     * @return How many primitives got one of this rule's tags.
+     */
+    public long getTagsProduced() {
+        return tagsProduced;
+    }
+
+    void addTagsProduced(int count) {
+        tagsProduced += count;
+    }
+
+    void resetStatistics() {
+        evaluations = 0;
+        matches = 0;
+        tagsProduced = 0;
+    }
+
     public Tag createTag(String srcKey, String originalValue) {
+        evaluations++;
+        Tag tag = matchTag(srcKey, originalValue);
+        if (tag != null) {
+            matches++;
+        }
+        return tag;
+    }
+
+    private Tag matchTag(String srcKey, String originalValue) {
         String key;
         String value;
 
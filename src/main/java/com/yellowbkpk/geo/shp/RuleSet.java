@@ -1,18 +1,25 @@
 package com.yellowbkpk.geo.shp;
-import java.util.Collection;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 
-import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.commons.lang.StringUtils;
-import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 
 import com.yellowbkpk.osm.primitive.Primitive;
 import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.util.ConversionEvents;
 
 public class RuleSet {
 
+    /**
+     * How many of the most frequently matching rules to list.
+     */
+    private static final int TOP_RULES = 10;
+
     private List<Rule> inner = new LinkedList<Rule>();
     private List<Rule> outer = new LinkedList<Rule>();
     private List<Rule> point = new LinkedList<Rule>();
@@ -67,85 +74,151 @@ public class RuleSet {
         excludeRules.addAll(existingRules.excludeRules);
     }
     public void applyLineRules(SimpleFeature feature, String geometryType, List<? extends Primitive> primitives) {
-        applyRules(feature, geometryType, primitives, line);
+        applyRules(FeatureAttributes.from(feature), geometryType, primitives, line);
     }
     public void applyOuterPolygonRules(SimpleFeature feature, String geometryType, List<? extends Primitive> primitives) {
-        applyRules(feature, geometryType, primitives, outer);
+        applyRules(FeatureAttributes.from(feature), geometryType, primitives, outer);
     }
     public void applyInnerPolygonRules(SimpleFeature feature, String geometryType, List<? extends Primitive> primitives) {
-        applyRules(feature, geometryType, primitives, inner);
+        applyRules(FeatureAttributes.from(feature), geometryType, primitives, inner);
     }
     public void applyPointRules(SimpleFeature feature, String geometryType, List<? extends Primitive> primitives) {
-        applyRules(feature, geometryType, primitives, point);
+        applyRules(FeatureAttributes.from(feature), geometryType, primitives, point);
+    }
+
+    public void applyLineRules(FeatureAttributes attributes, String geometryType, List<? extends Primitive> primitives) {
+        applyRules(attributes, geometryType, primitives, line);
+    }
+    public void applyOuterPolygonRules(FeatureAttributes attributes, String geometryType, List<? extends Primitive> primitives) {
+        applyRules(attributes, geometryType, primitives, outer);
+    }
+    public void applyInnerPolygonRules(FeatureAttributes attributes, String geometryType, List<? extends Primitive> primitives) {
+        applyRules(attributes, geometryType, primitives, inner);
+    }
+    public void applyPointRules(FeatureAttributes attributes, String geometryType, List<? extends Primitive> primitives) {
+        applyRules(attributes, geometryType, primitives, point);
+    }
+
+    public void applyRules(FeatureAttributes attributes, String geometryType, List<? extends Primitive> primitives, List<Rule> rules) {
+        ConversionEvents events = ConversionEvents.get();
+        Object event = events.beginRules();
+        tagAll(attributes, geometryType, primitives, rules);
+        events.endRules(event, geometryType, rules.size(), primitives.size());
     }
 
-    public void applyRules(SimpleFeature feature, String geometryType, List<? extends Primitive> primitives, List<Rule> rules) {
+    private void tagAll(FeatureAttributes attributes, String geometryType, List<? extends Primitive> primitives, List<Rule> rules) {
         if(allTagsPrefix != null) {
             for (Primitive primitive : primitives) {
-                applyOriginalTagsTo(feature, geometryType, primitive, allTagsPrefix);
+                applyOriginalTagsTo(attributes, geometryType, primitive, allTagsPrefix);
             }
         }
         
-        Collection<Property> properties = feature.getProperties();
-        for (Property property : properties) {
-            String srcKey = property.getType().getName().toString();
+        for (int i = 0; i < attributes.size(); i++) {
+            String srcKey = attributes.getName(i);
             if (!geometryType.equals(srcKey)) {
 
-                Object value = property.getValue();
-                if (value != null) {
-                    String dirtyOriginalValue = getDirtyValue(value);
-                    
-                    if (!StringUtils.isEmpty(dirtyOriginalValue)) {
-                        String escapedOriginalValue = StringEscapeUtils.escapeXml(dirtyOriginalValue);
-
-                        for (Rule rule : rules) {
-                            Tag t = rule.createTag(srcKey, escapedOriginalValue);
-                            if (t != null) {
-                                for (Primitive primitive : primitives) {
-                                    primitive.addTag(t);
-                                }
+                String escapedOriginalValue = attributes.getEscapedValue(i);
+                if (escapedOriginalValue != null) {
+
+                    for (Rule rule : rules) {
+                        Tag t = rule.createTag(srcKey, escapedOriginalValue);
+                        if (t != null) {
+                            for (Primitive primitive : primitives) {
+                                primitive.addTag(t);
                             }
+                            rule.addTagsProduced(primitives.size());
                         }
                     }
                 }
             }
         }
     }
-    private static String getDirtyValue(Object value) {
-        String dirtyOriginalValue;
-        if (value instanceof Double) {
-            double asDouble = (Double) value;
-            double floored = Math.floor(asDouble);
-            if(floored == asDouble) {
-                dirtyOriginalValue = Integer.toString((int) asDouble);
+
+    /**
+     * Zeroes the counts that {@link #printStatistics(PrintStream)} reports,
+     * so that they only cover the next run.
+     */
+    public void resetStatistics() {
+        for (List<Rule> rules : Arrays.asList(outer, inner, line, point)) {
+            for (Rule rule : rules) {
+                rule.resetStatistics();
+            }
+        }
+        for (ExcludeRule rule : excludeRules) {
+            rule.resetStatistics();
+        }
+    }
+
+    /**
+     * Prints the rules that never matched anything, the rules that matched
+     * most often and how many primitives each exclude filter dropped. Rules
+     * that never match can be removed, and putting the busiest rules first
+     * in the file keeps the common case short.
+     */
+    public void printStatistics(PrintStream out) {
+        List<Rule> all = new ArrayList<Rule>();
+        all.addAll(outer);
+        all.addAll(inner);
+        all.addAll(line);
+        all.addAll(point);
+        if (all.isEmpty() && excludeRules.isEmpty()) {
+            return;
+        }
+
+        List<Rule> matched = new ArrayList<Rule>();
+        out.println("Rules that never matched:");
+        int dead = 0;
+        for (Rule rule : all) {
+            if (rule.getMatches() == 0) {
+                out.println("  " + describe(rule.getLineNumber(), rule) + " (" + rule.getEvaluations()
+                        + " evaluations)");
+                dead++;
             } else {
-                dirtyOriginalValue = Double.toString(asDouble);
+                matched.add(rule);
+            }
+        }
+        if (dead == 0) {
+            out.println("  none");
+        }
+
+        Collections.sort(matched, new Comparator<Rule>() {
+            public int compare(Rule a, Rule b) {
+                return a.getMatches() > b.getMatches() ? -1 : (a.getMatches() == b.getMatches() ? 0 : 1);
+            }
+        });
+        if (!matched.isEmpty()) {
+            out.println("Most frequent matches:");
+            for (Rule rule : matched.subList(0, Math.min(TOP_RULES, matched.size()))) {
+                out.println("  " + describe(rule.getLineNumber(), rule) + " (" + rule.getMatches() + " of "
+                        + rule.getEvaluations() + " evaluations, " + rule.getTagsProduced() + " tags)");
             }
-        } else {
-            dirtyOriginalValue = value.toString().trim();
         }
-        return dirtyOriginalValue;
+
+        if (!excludeRules.isEmpty()) {
+            out.println("Exclude filters:");
+            for (ExcludeRule rule : excludeRules) {
+                out.println("  " + describe(rule.getLineNumber(), rule) + " (" + rule.getRejections()
+                        + " of " + rule.getEvaluations() + " excluded)");
+            }
+        }
+    }
+
+    private static String describe(int lineNumber, Object rule) {
+        return lineNumber > 0 ? "line " + lineNumber + ", " + rule : rule.toString();
     }
 
-    private static void applyOriginalTagsTo(SimpleFeature feature, String geometryType, Primitive w, String prefix) {
+    private static void applyOriginalTagsTo(FeatureAttributes attributes, String geometryType, Primitive w, String prefix) {
         String prefixPlusColon = "";
         if (!"".equals(prefix)) {
             prefixPlusColon = prefix + ":";
         }
         
-        Collection<Property> properties = feature.getProperties();
-        for (Property property : properties) {
-            String name = property.getType().getName().toString();
+        for (int i = 0; i < attributes.size(); i++) {
+            String name = attributes.getName(i);
             if (!geometryType.equals(name)) {
-                Object value = property.getValue();
-                if (value != null) {
-                    String dirtyOriginalValue = getDirtyValue(value);
-
-                    if (!StringUtils.isEmpty(dirtyOriginalValue)) {
-                        String escapedOriginalValue = StringEscapeUtils.escapeXml(dirtyOriginalValue);
-
-                        w.addTag(new Tag(prefixPlusColon + name, escapedOriginalValue));
-                    }
+                String escapedOriginalValue = attributes.getEscapedValue(i);
+                if (escapedOriginalValue != null) {
+                    w.addTag(new Tag(prefixPlusColon + name, escapedOriginalValue));
                 }
             }
         }
@@ -0,0 +1,184 @@
+package com.yellowbkpk.geo.shp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.yellowbkpk.osm.util.PipelineMetrics;
+import com.yellowbkpk.osm.util.PipelineMetrics.Stage;
+
+/**
+ * Reads features from a shapefile with GeoTools and reprojects them to
+ * lat/lon.
+ */
+public class ShapefileInput implements FeatureInput {
+
+    private static Logger log = Logger.getLogger(ShapefileInput.class.getName());
+
+    private ShapefileDataStore dataStore;
+    private MathTransform transform;
+    private FeatureIterator<SimpleFeature> iterator;
+
+    private SimpleFeature feature;
+    private Geometry rawGeom;
+    private Geometry geometry;
+    private FeatureAttributes attributes;
+    private long transformNanos;
+
+    public ShapefileInput(File inputFile) throws ShpToOsmException {
+        this(inputFile, null);
+    }
+
+    /**
+     * @param sourceCRS The shapefile's projection, or null to read it from
+     *            the .prj file.
+     */
+    public ShapefileInput(File inputFile, CoordinateReferenceSystem sourceCRS) throws ShpToOsmException {
+        CoordinateReferenceSystem targetCRS = buildTargetCRS();
+
+        try {
+            // Connection parameters
+            Map<String, Serializable> connectParameters = new HashMap<String, Serializable>();
+
+            connectParameters.put("url", inputFile.toURI().toURL());
+            connectParameters.put("create spatial index", false);
+            dataStore = (ShapefileDataStore) DataStoreFinder.getDataStore(connectParameters);
+
+            if (sourceCRS == null) {
+                sourceCRS = dataStore.getSchema().getCoordinateReferenceSystem();
+            }
+            if (sourceCRS == null) {
+                throw new ShpToOsmException("Could not determine the shapefile's projection. " +
+                		"More than likely, the .prj file was not included.");
+            } else {
+                log.log(Level.CONFIG, "Converting from " + sourceCRS + " to " + targetCRS);
+            }
+
+            transform = CRS.findMathTransform(sourceCRS, targetCRS, true);
+        } catch (MalformedURLException e) {
+            throw new ShpToOsmException("URL could not be created for input file.", e);
+        } catch (IOException e) {
+            throw new ShpToOsmException("Could not read input file.", e);
+        } catch (FactoryException e) {
+            throw new ShpToOsmException("Could not find a way to transform to lat/lon.", e);
+        }
+    }
+
+    public String[] getTypeNames() {
+        return dataStore.getTypeNames();
+    }
+
+    public String[] getAttributeNames() {
+        try {
+            SimpleFeatureType schema = dataStore.getSchema();
+            String[] names = new String[schema.getAttributeCount()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = schema.getDescriptor(i).getLocalName();
+            }
+            return names;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the shapefile's attributes.", e);
+        }
+    }
+
+    public void open(String typeName) throws IOException {
+        FeatureSource<SimpleFeatureType, SimpleFeature> featureSource = dataStore.getFeatureSource(typeName);
+        FeatureCollection<SimpleFeatureType, SimpleFeature> collection = featureSource.getFeatures();
+        iterator = collection.features();
+    }
+
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    public void next() {
+        feature = iterator.next();
+        rawGeom = (Geometry) feature.getDefaultGeometry();
+        geometry = null;
+        attributes = null;
+        transformNanos = 0;
+    }
+
+    public String getFeatureID() {
+        return feature.getID();
+    }
+
+    public FeatureAttributes getAttributes() {
+        if (attributes == null) {
+            attributes = FeatureAttributes.from(feature);
+        }
+        return attributes;
+    }
+
+    public String getGeometryType() {
+        return rawGeom.getGeometryType();
+    }
+
+    public int getVertexCount() {
+        return rawGeom.getNumPoints();
+    }
+
+    public Geometry getGeometry() throws ShpToOsmException {
+        if (geometry == null) {
+            // Transform to spherical mercator
+            long started = PipelineMetrics.start();
+            try {
+                geometry = JTS.transform(rawGeom, transform);
+            } catch (TransformException e) {
+                throw new ShpToOsmException("Could not transform to spherical mercator.", e);
+            }
+            transformNanos = System.nanoTime() - started;
+            PipelineMetrics.get().stop(Stage.reproject, started);
+        }
+        return geometry;
+    }
+
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    public void closeType() {
+        if (iterator != null) {
+            // YOU MUST CLOSE THE ITERATOR!
+            iterator.close();
+            iterator = null;
+        }
+    }
+
+    public void close() {
+        closeType();
+        dataStore.dispose();
+    }
+
+    private static CoordinateReferenceSystem buildTargetCRS() throws ShpToOsmException {
+        CoordinateReferenceSystem targetCRS = null;
+        try {
+            targetCRS = CRS
+            .parseWKT("GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563,AUTHORITY[\"EPSG\",\"7030\"]],AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],UNIT[\"degree\",0.01745329251994328,AUTHORITY[\"EPSG\",\"9122\"]],AUTHORITY[\"EPSG\",\"4326\"]]");
+        } catch (FactoryException e) {
+            throw new ShpToOsmException("Could not build the target CRS from WKT.", e);
+        }
+        return targetCRS;
+    }
+
+}
@@ -1,35 +1,23 @@
 package com.yellowbkpk.geo.shp;
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
-import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.geotools.data.DataStoreFinder;
-import org.geotools.data.FeatureSource;
-import org.geotools.data.shapefile.ShapefileDataStore;
-import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.FeatureIterator;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.yellowbkpk.geo.topo.TopologyOutputter;
+import com.yellowbkpk.osm.output.AbstractOutputter;
 import com.yellowbkpk.osm.output.OSMOutputter;
 import com.yellowbkpk.osm.primitive.Primitive;
 import com.yellowbkpk.osm.primitive.Tag;
@@ -37,6 +25,11 @@ import com.yellowbkpk.osm.primitive.node.Node;
 import com.yellowbkpk.osm.primitive.way.Way;
 import com.yellowbkpk.osm.relation.Member;
 import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.ConversionEvents;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.PipelineMetrics;
+import com.yellowbkpk.osm.util.PipelineMetrics.Stage;
 
 public class ShpToOsmConverter {
     
@@ -47,6 +40,21 @@ public class ShpToOsmConverter {
     private RuleSet ruleset;
     private boolean onlyIncludeTaggedPrimitives;
     private OSMOutputter outputter;
+    private File checkpointFile;
+    private boolean resume;
+    private String settingsDigest;
+    private File stateFile;
+    private String featureKey;
+    private List<File> diffResults;
+    private File cacheDirectory;
+    private Set<String> ignoredAttributes;
+    private LongIntHashMap fingerprints;
+    private GeometryReducer reducer;
+    private CoordinateReferenceSystem sourceCRS;
+    private IDGenerator ids = IDGenerator.get();
+    private PipelineMetrics metrics = PipelineMetrics.get();
+    private String monitorName = ConversionMonitor.DEFAULT_NAME;
+    private volatile boolean cancelled;
 
     public ShpToOsmConverter(File shpFile, RuleSet rules, boolean onlyIncludeTaggedPrim, OSMOutputter out) {
         inputFile = shpFile;
@@ -56,67 +64,338 @@ public class ShpToOsmConverter {
         this.onlyIncludeTaggedPrimitives = onlyIncludeTaggedPrim;
     }
 
+    /**
+     * Saves a checkpoint to the given file after every output file is
+     * written, so that an interrupted run can be picked up again.
+     * 
+     * @param resume True to pick up from the checkpoint already in the file.
+     * @param settingsDigest A hash of the rules and of the options that
+     *            change the output. The checkpoint is only resumed from if
+     *            it was saved with the same hash.
+     */
+    public void setCheckpoint(File file, boolean resume, String settingsDigest) {
+        this.checkpointFile = file;
+        this.resume = resume;
+        this.settingsDigest = settingsDigest;
+    }
+
+    /**
+     * Only outputs the features that changed since the last run, as
+     * modifications, and deletes the ones that are gone. Checkpointing is
+     * turned off.
+     * 
+     * @param stateFile Where the last run left its state and this one
+     *            leaves its own.
+     * @param featureKey The attribute that tells features apart from one
+     *            run to the next.
+     * @param diffResults The server's responses to the upload of the last
+     *            run's files, to learn the real IDs of what was created.
+     */
+    public void setIncremental(File stateFile, String featureKey, List<File> diffResults) {
+        this.stateFile = stateFile;
+        this.featureKey = featureKey;
+        this.diffResults = diffResults;
+    }
+
+    /**
+     * Keeps the reprojected features in a cache in the given directory, and
+     * reads them from there instead of the shapefile when it hasn't changed.
+     */
+    public void setFeatureCache(File directory) {
+        this.cacheDirectory = directory;
+    }
+
+    /**
+     * Drops features that have the same geometry and attributes as an
+     * earlier feature.
+     * 
+     * @param ignoredAttributes Attributes that may differ between
+     *            duplicates, such as an object ID.
+     * @see FeatureFingerprint
+     */
+    public void setDeduplicate(Set<String> ignoredAttributes) {
+        this.ignoredAttributes = ignoredAttributes;
+    }
+
+    /**
+     * Quantizes and simplifies lines and rings before they are made into
+     * ways. With a topology builder, rings are only quantized here and the
+     * builder simplifies the boundaries it finds, so that shared ones stay
+     * shared.
+     */
+    public void setReducer(GeometryReducer reducer) {
+        this.reducer = reducer;
+    }
+
+    /**
+     * Reads the shapefile as being in the given projection, whatever its
+     * .prj file says or if it has none. Features aren't cached then, since
+     * the cache only knows about the files.
+     */
+    public void setSourceCRS(CoordinateReferenceSystem sourceCRS) {
+        this.sourceCRS = sourceCRS;
+    }
+
+    /**
+     * Numbers the new nodes, ways and relations from the given sequences
+     * instead of the ones shared by the JVM. Conversions whose results go
+     * to the same place should share one, so that their IDs don't clash.
+     */
+    public void setIDGenerator(IDGenerator ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * Adds up this run's timings and counts in the given metrics instead of
+     * the ones shared by the JVM, which the command line reports from.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers the run's {@link ConversionMonitor} under the given JMX
+     * object name instead of {@link ConversionMonitor#DEFAULT_NAME}, so that
+     * conversions running at the same time each have their own.
+     */
+    public void setMonitorName(String monitorName) {
+        this.monitorName = monitorName;
+    }
+
+    /**
+     * Stops the conversion before the next feature. {@link #convert()} then
+     * throws a {@link CancellationException}, without finishing the output.
+     * Safe to call from another thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
     public void convert() throws ShpToOsmException {
+        IDGenerator previousIds = IDGenerator.bind(ids);
+        PipelineMetrics previousMetrics = PipelineMetrics.bind(metrics);
+        try {
+            convertBound();
+        } finally {
+            IDGenerator.bind(previousIds);
+            PipelineMetrics.bind(previousMetrics);
+        }
+    }
 
-        CoordinateReferenceSystem targetCRS = buildTargetCRS();
+    /**
+     * Does the conversion once the run's IDs and metrics are bound to this
+     * thread, where the outputters and readers further down look for them.
+     */
+    private void convertBound() throws ShpToOsmException {
+
+        metrics.reset();
+        ruleset.resetStatistics();
+
+        FeatureCache cache = null;
+        if (cacheDirectory != null && sourceCRS != null) {
+            log.log(Level.WARNING, "Features aren't cached when the projection is given.");
+        } else if (cacheDirectory != null) {
+            try {
+                cache = new FeatureCache(cacheDirectory, inputFile);
+            } catch (IOException e) {
+                throw new ShpToOsmException("Could not read input file.", e);
+            }
+        }
+
+        FeatureInput input;
+        FeatureCache.Writer cacheWriter = null;
+        if (cache != null && cache.exists()) {
+            log.log(Level.INFO, "Reading features from " + cache.getFile() + ".");
+            try {
+                input = cache.open();
+            } catch (IOException e) {
+                throw new ShpToOsmException("Could not read feature cache " + cache.getFile() + ".", e);
+            }
+        } else {
+            input = new ShapefileInput(inputFile, sourceCRS);
+            if (cache != null && !resume) {
+                try {
+                    cacheWriter = cache.create(input.getTypeNames(), input.getAttributeNames());
+                } catch (IOException e) {
+                    input.close();
+                    throw new ShpToOsmException("Could not write feature cache " + cache.getFile() + ".", e);
+                }
+            }
+        }
 
-        ShapefileDataStore dataStore = null;
-        CoordinateReferenceSystem sourceCRS = null;
-        MathTransform transform = null;
         try {
-            // Connection parameters
-            Map<String, Serializable> connectParameters = new HashMap<String, Serializable>();
-
-            connectParameters.put("url", inputFile.toURI().toURL());
-            connectParameters.put("create spatial index", false);
-            dataStore = (ShapefileDataStore) DataStoreFinder.getDataStore(connectParameters);
-
-            sourceCRS = dataStore.getSchema().getCoordinateReferenceSystem();
-            if (sourceCRS == null) {
-                throw new ShpToOsmException("Could not determine the shapefile's projection. " +
-                		"More than likely, the .prj file was not included.");
-            } else {
-                log.log(Level.CONFIG, "Converting from " + sourceCRS + " to " + targetCRS);
+            if (featureKey != null && !Arrays.asList(input.getAttributeNames()).contains(featureKey)) {
+                throw new ShpToOsmException("The shapefile has no attribute named \"" + featureKey + "\".");
             }
+            if (ignoredAttributes != null) {
+                for (String name : ignoredAttributes) {
+                    if (!Arrays.asList(input.getAttributeNames()).contains(name)) {
+                        log.log(Level.WARNING, "The shapefile has no attribute named \"" + name + "\" to ignore.");
+                    }
+                }
+                fingerprints = new LongIntHashMap(0);
+            }
+
+            IncrementalOutputter incremental = buildIncremental();
+            CheckpointingOutputter checkpointer = incremental == null ? buildCheckpointer() : null;
 
-            transform = CRS.findMathTransform(sourceCRS, targetCRS, true);
-        } catch (MalformedURLException e) {
-            throw new ShpToOsmException("URL could not be created for input file.", e);
+            ConversionMonitor monitor = new ConversionMonitor(inputFile, outputter, metrics, monitorName);
+            monitor.register();
+            try {
+                convertFeatures(input, cacheWriter, monitor, checkpointer, incremental);
+            } finally {
+                monitor.unregister();
+            }
+
+            if (cacheWriter != null) {
+                cacheWriter.finish();
+                cacheWriter = null;
+            }
         } catch (IOException e) {
-            throw new ShpToOsmException("Could not read input file.", e);
-        } catch (FactoryException e) {
-            throw new ShpToOsmException("Could not find a way to transform to lat/lon.", e);
+            throw new ShpToOsmException("Could not write feature cache " + cache.getFile() + ".", e);
+        } finally {
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+            }
+            input.close();
+            fingerprints = null;
+        }
+        metrics.finishRun();
+    }
+
+    private CheckpointingOutputter buildCheckpointer() throws ShpToOsmException {
+        if (checkpointFile == null) {
+            return null;
+        }
+        if (!(outputter instanceof AbstractOutputter)) {
+            log.log(Level.WARNING, "This output can't be checkpointed.");
+            return null;
+        }
+
+        String attributesDigest;
+        try {
+            attributesDigest = FeatureCache.digest(inputFile, ".dbf");
+        } catch (IOException e) {
+            throw new ShpToOsmException("Could not read the shapefile's attributes.", e);
+        }
+
+        Checkpoint resumeFrom = null;
+        if (resume) {
+            try {
+                resumeFrom = Checkpoint.load(checkpointFile);
+            } catch (IOException e) {
+                throw new ShpToOsmException("Could not read checkpoint " + checkpointFile + ".", e);
+            }
+            if (resumeFrom == null) {
+                log.log(Level.INFO, "No checkpoint found, starting from the beginning.");
+            } else if (!resumeFrom.matches(inputFile, attributesDigest)) {
+                throw new ShpToOsmException("The shapefile has changed since checkpoint " + checkpointFile
+                        + " was saved.");
+            } else if (!resumeFrom.hasSettings(settingsDigest)) {
+                throw new ShpToOsmException("The rules or options have changed since checkpoint " + checkpointFile
+                        + " was saved.");
+            }
+        }
+
+        return new CheckpointingOutputter((AbstractOutputter) outputter, checkpointFile, inputFile,
+                attributesDigest, settingsDigest, resumeFrom);
+    }
+
+    private IncrementalOutputter buildIncremental() throws ShpToOsmException {
+        if (stateFile == null) {
+            return null;
+        }
+
+        IncrementalState previous;
+        try {
+            previous = IncrementalState.load(stateFile);
+        } catch (IOException e) {
+            throw new ShpToOsmException("Could not read incremental state " + stateFile + ".", e);
+        }
+        for (File diffResult : diffResults) {
+            try {
+                previous.applyDiffResult(diffResult);
+            } catch (IOException e) {
+                throw new ShpToOsmException("Could not read diffResult " + diffResult + ".", e);
+            }
+        }
+        log.log(Level.INFO, "Comparing against " + previous.size() + " features from the last run.");
+
+        return new IncrementalOutputter(outputter, previous, stateFile);
+    }
+
+    private void convertFeatures(FeatureInput input, FeatureCache.Writer cacheWriter, ConversionMonitor monitor,
+            CheckpointingOutputter checkpointer, IncrementalOutputter incremental) throws ShpToOsmException {
+        OSMOutputter outputter = this.outputter;
+        if (checkpointer != null) {
+            outputter = checkpointer;
+        } else if (incremental != null) {
+            outputter = incremental;
+        }
+        TopologyOutputter topology = null;
+        if (outputter instanceof TopologyOutputter) {
+            topology = (TopologyOutputter) outputter;
         }
-            
         outputter.start();
 
         // we are now connected
-        String[] typeNames = dataStore.getTypeNames();
-        for (String typeName : typeNames) {
+        String[] typeNames = input.getTypeNames();
+        for (int typeIndex = 0; typeIndex < typeNames.length; typeIndex++) {
+            String typeName = typeNames[typeIndex];
             log.log(Level.FINER, "Converting " + typeName);
-
-            FeatureSource<SimpleFeatureType, SimpleFeature> featureSource;
-            FeatureCollection<SimpleFeatureType, SimpleFeature> collection;
-            FeatureIterator<SimpleFeature> iterator = null;
+            monitor.setTypeName(typeName);
 
             try {
-                featureSource = dataStore.getFeatureSource(typeName);
-                collection = featureSource.getFeatures();
-                iterator = collection.features();
+                input.open(typeName);
+                if (cacheWriter != null) {
+                    cacheWriter.startType(typeName);
+                }
 
-                while (iterator.hasNext()) {
-                    SimpleFeature feature = iterator.next();
+                ConversionEvents events = ConversionEvents.get();
+                long started = PipelineMetrics.start();
+                int featureIndex = 0;
+                while (input.hasNext()) {
+                    if (cancelled) {
+                        throw new CancellationException("The conversion was cancelled.");
+                    }
+                    input.next();
+                    if (checkpointer != null && !checkpointer.startFeature(typeIndex, featureIndex++)) {
+                        // Already written before the run was interrupted,
+                        // but later features may still repeat it.
+                        if (fingerprints != null) {
+                            isDuplicate(input);
+                        }
+                        started = PipelineMetrics.start();
+                        continue;
+                    }
+                    FeatureAttributes feature = input.getAttributes();
+                    if (incremental != null) {
+                        incremental.startFeature(String.valueOf(feature.getValue(featureKey)));
+                    }
+                    Object featureEvent = events.beginFeature();
 
-                    Geometry rawGeom = (Geometry) feature.getDefaultGeometry();
+                    int vertices = input.getVertexCount();
+                    metrics.stop(Stage.read, started);
+                    metrics.addFeature(vertices);
+                    monitor.featureProcessed(vertices);
                     
-                    String geometryType = rawGeom.getGeometryType();
-
-                    // Transform to spherical mercator
-                    Geometry geometry = null;
-                    try {
-                        geometry = JTS.transform(rawGeom, transform);
-                    } catch (TransformException e) {
-                        throw new ShpToOsmException("Could not transform to spherical mercator.", e);
+                    String geometryType = input.getGeometryType();
+
+                    Geometry geometry = input.getGeometry();
+                    if (cacheWriter != null) {
+                        try {
+                            cacheWriter.write(input);
+                        } catch (IOException e) {
+                            throw new ShpToOsmException("Could not write the feature cache.", e);
+                        }
+                    }
+
+                    if (fingerprints != null && isDuplicate(input)) {
+                        metrics.addDuplicate();
+                        log.log(Level.FINE, "Dropping " + input.getFeatureID() + ", a duplicate of an earlier feature.");
+                        events.endFeature(featureEvent, input.getFeatureID(), vertices, input.getTransformNanos());
+                        started = PipelineMetrics.start();
+                        continue;
                     }
 
                     if ("MultiLineString".equals(geometryType)) {
@@ -125,8 +404,16 @@ public class ShpToOsmConverter {
 							LineString geometryN = (LineString) geometry
 									.getGeometryN(i);
 
-							List<Way> ways = linestringToWays(geometryN);
+							started = PipelineMetrics.start();
+							Coordinate[] coordinates = reduce(geometryN, true);
+							if (tooShort(coordinates, 2, input.getFeatureID(), "a line")) {
+								continue;
+							}
+							List<Way> ways = linestringToWays(coordinates);
+							metrics.stop(Stage.split, started);
+							started = PipelineMetrics.start();
 							ruleset.applyLineRules(feature, geometryType, ways);
+							metrics.stop(Stage.rules, started);
 							for (Way way : ways) {
 
 								if (shouldInclude(way)) {
@@ -143,7 +430,13 @@ public class ShpToOsmConverter {
                             // Get the outer ring of the polygon
                             LineString outerLine = geometryN.getExteriorRing();
 
-                            List<Way> outerWays = polygonToWays(outerLine);
+                            started = PipelineMetrics.start();
+                            Coordinate[] outerCoordinates = reduce(outerLine, topology == null);
+                            if (tooShort(outerCoordinates, 4, input.getFeatureID(), "a polygon")) {
+                                continue;
+                            }
+                            List<Way> outerWays = polygonToWays(outerCoordinates);
+                            metrics.stop(Stage.split, started);
 
                             if (geometryN.getNumInteriorRing() > 0) {
                                 Relation r = new Relation();
@@ -151,7 +444,9 @@ public class ShpToOsmConverter {
                                 
                                 // Tags go on the relation for multipolygons
 
+                                started = PipelineMetrics.start();
                                 ruleset.applyOuterPolygonRules(feature, geometryType, Arrays.asList(r));
+                                metrics.stop(Stage.rules, started);
 
                                 for (Primitive outerWay : outerWays) {
                                     // Always include every outer way
@@ -162,9 +457,17 @@ public class ShpToOsmConverter {
                                 for (int j = 0; j < geometryN.getNumInteriorRing(); j++) {
                                     LineString innerLine = geometryN.getInteriorRingN(j);
 
-                                    List<Way> innerWays = polygonToWays(innerLine);
+                                    started = PipelineMetrics.start();
+                                    Coordinate[] innerCoordinates = reduce(innerLine, topology == null);
+                                    if (tooShort(innerCoordinates, 4, input.getFeatureID(), "a hole")) {
+                                        continue;
+                                    }
+                                    List<Way> innerWays = polygonToWays(innerCoordinates);
+                                    metrics.stop(Stage.split, started);
 
+                                    started = PipelineMetrics.start();
                                     ruleset.applyInnerPolygonRules(feature, geometryType, innerWays);
+                                    metrics.stop(Stage.rules, started);
                                     
                                     for (Way innerWay : innerWays) {
                                         r.addMember(new Member(innerWay, "inner"));
@@ -173,7 +476,7 @@ public class ShpToOsmConverter {
                                 }
                                 
                                 if (shouldInclude(r)) {
-                                    outputter.addRelation(r);
+                                    addArea(r, outputter, topology);
                                 }
 
                             } else {
@@ -185,7 +488,9 @@ public class ShpToOsmConverter {
                                     Relation r = new Relation();
                                     r.addTag(new Tag("type", "multipolygon"));
 
+                                    started = PipelineMetrics.start();
                                     ruleset.applyOuterPolygonRules(feature, geometryType, Arrays.asList(r));
+                                    metrics.stop(Stage.rules, started);
 
                                     for (Way outerWay : outerWays) {
                                         if (shouldInclude(outerWay)) {
@@ -194,22 +499,25 @@ public class ShpToOsmConverter {
                                     }
 
                                     if (shouldInclude(r)) {
-                                        outputter.addRelation(r);
+                                        addArea(r, outputter, topology);
                                     }
                                 } else {
                                     // If there aren't any inner lines, then
                                     // just use the outer one as a way.
+                                    started = PipelineMetrics.start();
                                     ruleset.applyOuterPolygonRules(feature, geometryType, outerWays);
+                                    metrics.stop(Stage.rules, started);
 
                                     for (Way outerWay : outerWays) {
                                         if (shouldInclude(outerWay)) {
-                                            outputter.addWay(outerWay);
+                                            addArea(outerWay, outputter, topology);
                                         }
                                     }
                                 }
                             }
                         }
                     } else if ("Point".equals(geometryType)) {
+                        started = PipelineMetrics.start();
                         List<Node> nodes = new ArrayList<Node>(geometry.getNumGeometries());
                         for (int i = 0; i < geometry.getNumGeometries(); i++) {
                             Point geometryN = (Point) geometry.getGeometryN(i);
@@ -219,7 +527,11 @@ public class ShpToOsmConverter {
                             nodes.add(n);
                         }
 
+                        metrics.stop(Stage.split, started);
+
+                        started = PipelineMetrics.start();
                         ruleset.applyPointRules(feature, geometryType, nodes);
+                        metrics.stop(Stage.rules, started);
 
                         for (Node node : nodes) {
                             if (shouldInclude(node)) {
@@ -227,15 +539,22 @@ public class ShpToOsmConverter {
                             }
                         }
                     }
+
+                    if (incremental != null) {
+                        incremental.endFeature();
+                    }
+                    events.endFeature(featureEvent, input.getFeatureID(), vertices, input.getTransformNanos());
+                    started = PipelineMetrics.start();
                 }
             } catch (IOException e) {
+                if (cacheWriter != null) {
+                    // The cache would be missing this type.
+                    throw new ShpToOsmException("Could not read " + typeName + ".", e);
+                }
                 // TODO Auto-generated catch block
                 e.printStackTrace();
             } finally {
-                if (iterator != null) {
-                    // YOU MUST CLOSE THE ITERATOR!
-                    iterator.close();
-                }
+                input.closeType();
             }
 
         }
@@ -243,32 +562,82 @@ public class ShpToOsmConverter {
         outputter.finish();
     }
 
-    private CoordinateReferenceSystem buildTargetCRS() throws ShpToOsmException {
-        CoordinateReferenceSystem targetCRS = null;
-        try {
-            targetCRS = CRS
-            .parseWKT("GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563,AUTHORITY[\"EPSG\",\"7030\"]],AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],UNIT[\"degree\",0.01745329251994328,AUTHORITY[\"EPSG\",\"9122\"]],AUTHORITY[\"EPSG\",\"4326\"]]");
-        } catch (FactoryException e) {
-            throw new ShpToOsmException("Could not build the target CRS from WKT.", e);
+    /**
+     * @return True if an earlier feature had the same fingerprint. The
+     *         feature's fingerprint is remembered either way.
+     */
+    private boolean isDuplicate(FeatureInput input) throws ShpToOsmException {
+        long fingerprint = FeatureFingerprint.of(input.getGeometry(), input.getAttributes(), ignoredAttributes);
+        return fingerprints.put(fingerprint, 1) != 0;
+    }
+
+    /**
+     * @param simplify False to only quantize and drop repeated vertices.
+     * @return The line's coordinates, reduced if there is a reducer.
+     */
+    private Coordinate[] reduce(LineString line, boolean simplify) {
+        Coordinate[] coordinates = line.getCoordinates();
+        if (reducer == null) {
+            return coordinates;
+        }
+        long[] keys = GeometryReducer.toKeys(coordinates);
+        int length = simplify ? reducer.reduce(keys, keys.length) : GeometryReducer.dropRepeats(keys, keys.length);
+        return GeometryReducer.toCoordinates(keys, length);
+    }
+
+    /**
+     * Reducing can leave a line with a single node or a ring with fewer
+     * than three corners, which can't be written, so that part of the
+     * feature is dropped.
+     *
+     * @param minimum The fewest coordinates the part needs.
+     * @return True if the part has to be dropped.
+     */
+    private static boolean tooShort(Coordinate[] coordinates, int minimum, String featureId, String part) {
+        if (coordinates.length >= minimum) {
+            return false;
+        }
+        log.log(Level.FINE, "Dropping " + part + " of " + featureId + ", which was reduced to "
+                + coordinates.length + " nodes.");
+        return true;
+    }
+
+    /**
+     * Hands an area to the topology builder, if there is one, so that it can
+     * share its boundaries with its neighbours.
+     */
+    private static void addArea(Primitive area, OSMOutputter outputter, TopologyOutputter topology) {
+        if (topology != null) {
+            topology.addArea(area);
+        } else if (area instanceof Relation) {
+            outputter.addRelation((Relation) area);
+        } else {
+            outputter.addWay((Way) area);
         }
-        return targetCRS;
     }
 
     private boolean shouldInclude(Primitive w) {
+        long started = PipelineMetrics.start();
+        boolean include;
         if (onlyIncludeTaggedPrimitives) {
-            return w.hasTags() && ruleset.includes(w);
+            include = w.hasTags() && ruleset.includes(w);
         } else {
-            return ruleset.includes(w);
+            include = ruleset.includes(w);
         }
+        metrics.stop(Stage.exclude, started);
+        return include;
     }
 
-    private Node pointToNode(Point geometryN) {
+    static Node pointToNode(Point geometryN) {
         Coordinate coord = geometryN.getCoordinate();
         return new Node(coord.y, coord.x);
     }
 
-    private static List<Way> linestringToWays(LineString geometryN) {
-        Coordinate[] coordinates = geometryN.getCoordinates();
+    static List<Way> linestringToWays(LineString geometryN) {
+        return linestringToWays(geometryN.getCoordinates());
+    }
+
+    static List<Way> linestringToWays(Coordinate[] coordinates) {
         
         // Follow the 2000 nodes per way max rule
         int waysToCreate = coordinates.length / MAX_NODES_IN_WAY;
@@ -298,8 +667,11 @@ public class ShpToOsmConverter {
         return ways;
     }
 
-    private static List<Way> polygonToWays(LineString geometryN) throws ShpToOsmException {
-        Coordinate[] coordinates = geometryN.getCoordinates();
+    static List<Way> polygonToWays(LineString geometryN) throws ShpToOsmException {
+        return polygonToWays(geometryN.getCoordinates());
+    }
+
+    static List<Way> polygonToWays(Coordinate[] coordinates) throws ShpToOsmException {
         if(coordinates.length < 2) {
             throw new ShpToOsmException("Way with less than 2 nodes.");
         }
@@ -0,0 +1,178 @@
+package com.yellowbkpk.geo.shp;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * Passes every element straight on to an {@link ElementSink} as it is
+ * added, without collecting them into files.
+ */
+class SinkOutputter implements OSMOutputter {
+
+    private final ElementSink sink;
+
+    SinkOutputter(ElementSink sink) {
+        this.sink = sink;
+    }
+
+    public void addNode(Node node) {
+        if (node.getID() == 0) {
+            node.setID(IDGenerator.get().nextNodeID());
+        }
+        String[][] tags = tagsOf(node);
+        try {
+            sink.node(node.getID(), node.getLat(), node.getLon(), tags[0], tags[1]);
+        } catch (InterruptedException e) {
+            throw interrupted();
+        }
+    }
+
+    public void addWay(Way way) {
+        if (way.getID() == 0) {
+            way.setID(IDGenerator.get().nextWayID());
+        }
+        List<Node> nodes = way.getNodes();
+        int[] nodeIds = new int[nodes.size()];
+        double[] lats = new double[nodes.size()];
+        double[] lons = new double[nodes.size()];
+        for (int i = 0; i < nodeIds.length; i++) {
+            Node node = nodes.get(i);
+            if (node.getID() == 0) {
+                node.setID(IDGenerator.get().nextNodeID());
+            }
+            nodeIds[i] = node.getID();
+            lats[i] = node.getLat();
+            lons[i] = node.getLon();
+        }
+        String[][] tags = tagsOf(way);
+        try {
+            sink.way(way.getID(), nodeIds, lats, lons, tags[0], tags[1]);
+        } catch (InterruptedException e) {
+            throw interrupted();
+        }
+    }
+
+    public void addRelation(Relation relation) {
+        if (relation.getID() == 0) {
+            relation.setID(IDGenerator.get().nextRelationID());
+        }
+        List<Member> members = relation.getMembers();
+        PrimitiveTypeEnum[] memberTypes = new PrimitiveTypeEnum[members.size()];
+        int[] memberIds = new int[members.size()];
+        String[] roles = new String[members.size()];
+        for (int i = 0; i < memberIds.length; i++) {
+            Primitive member = members.get(i).getMember();
+            memberTypes[i] = member.getType();
+            if (PrimitiveTypeEnum.node.equals(memberTypes[i])) {
+                addNode((Node) member);
+            } else if (PrimitiveTypeEnum.way.equals(memberTypes[i])) {
+                addWay((Way) member);
+            } else if (PrimitiveTypeEnum.relation.equals(memberTypes[i])) {
+                addRelation((Relation) member);
+            }
+            memberIds[i] = member.getID();
+            roles[i] = members.get(i).getRole();
+        }
+        String[][] tags = tagsOf(relation);
+        try {
+            sink.relation(relation.getID(), memberTypes, memberIds, roles, tags[0], tags[1]);
+        } catch (InterruptedException e) {
+            throw interrupted();
+        }
+    }
+
+    public void finish() {
+
+    }
+
+    public void start() {
+
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+
+    }
+
+    /**
+     * Passes on everything in the file: standalone nodes first, then ways,
+     * then relations. Way nodes and relation members are only passed on
+     * with the way or relation that uses them, so nothing is passed twice.
+     */
+    public void write(OSMFile out) {
+        LongIntHashMap used = new LongIntHashMap(-1);
+        Iterator<Relation> relationIter = out.getRelationIterator();
+        while (relationIter.hasNext()) {
+            for (Member member : relationIter.next().getMembers()) {
+                used.put(keyOf(member.getMember()), 1);
+            }
+        }
+        Iterator<Way> wayIter = out.getWayIterator();
+        while (wayIter.hasNext()) {
+            for (Node node : wayIter.next().getNodes()) {
+                used.put(keyOf(node), 1);
+            }
+        }
+
+        Iterator<Node> nodeIter = out.getNodeIterator();
+        while (nodeIter.hasNext()) {
+            Node node = nodeIter.next();
+            if (!used.containsKey(keyOf(node))) {
+                addNode(node);
+            }
+        }
+        wayIter = out.getWayIterator();
+        while (wayIter.hasNext()) {
+            Way way = wayIter.next();
+            if (!used.containsKey(keyOf(way))) {
+                addWay(way);
+            }
+        }
+        relationIter = out.getRelationIterator();
+        while (relationIter.hasNext()) {
+            Relation relation = relationIter.next();
+            if (!used.containsKey(keyOf(relation))) {
+                addRelation(relation);
+            }
+        }
+    }
+
+    private static long keyOf(Primitive primitive) {
+        return ((long) primitive.getType().ordinal() << 32) | (primitive.getID() & 0xffffffffL);
+    }
+
+    /**
+     * @return The unescaped keys and values of the element's tags.
+     */
+    private static String[][] tagsOf(Primitive primitive) {
+        String[] keys = new String[primitive.getTagCount()];
+        String[] values = new String[keys.length];
+        Iterator<Tag> tagIter = primitive.getTagIterator();
+        for (int i = 0; tagIter.hasNext(); i++) {
+            Tag tag = tagIter.next();
+            keys[i] = StringEscapeUtils.unescapeXml(tag.getKey());
+            values[i] = StringEscapeUtils.unescapeXml(tag.getValue());
+        }
+        return new String[][] { keys, values };
+    }
+
+    private static CancellationException interrupted() {
+        Thread.currentThread().interrupt();
+        return new CancellationException("The conversion was interrupted.");
+    }
+
+}
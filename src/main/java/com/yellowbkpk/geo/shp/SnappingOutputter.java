@@ -0,0 +1,277 @@
+package com.yellowbkpk.geo.shp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * Merges standalone nodes that are within a tolerance of each other, such
+ * as address points digitized more than once. Nodes are held in a uniform
+ * grid of cells the size of the tolerance, so finding the nodes near a new
+ * one only looks at a few cells. A node near a held one is dropped and its
+ * tags are merged into the held node; otherwise it is held itself.
+ * <p>
+ * Only a fixed number of nodes are held at once. Once that many are held,
+ * the one held longest is passed on to make room, so memory stays the same
+ * however many nodes there are. Nodes that are close together on the map
+ * but far apart in the shapefile may then not be merged.
+ * <p>
+ * Ways, relations and the nodes in ways go straight through.
+ */
+public class SnappingOutputter implements OSMOutputter {
+
+    private static Logger log = Logger.getLogger(SnappingOutputter.class.getName());
+
+    /**
+     * What to do when merged nodes have different values for a key.
+     */
+    public enum ConflictPolicy {
+        /** Keep the value of the node that came first. */
+        first,
+        /** Take the value of the node that came last. */
+        last,
+        /** Keep every value, separated by semicolons. */
+        join
+    }
+
+    /**
+     * The smallest tolerance, in metres. Smaller cells would not fit the
+     * grid in an int per axis.
+     */
+    public static final double MIN_TOLERANCE = 0.02;
+
+    private static final double METRES_PER_DEGREE = 111195.0;
+    private static final int EMPTY = -1;
+
+    private final OSMOutputter finalOutput;
+    private final double tolerance;
+    private final double cellDegrees;
+    private final ConflictPolicy policy;
+
+    private final Node[] held;
+    private final long[] cellOf;
+    private final int[] next;
+    private final int[] prev;
+    private int oldest = 0;
+    private int count = 0;
+    private LongIntHashMap cells = new LongIntHashMap(EMPTY);
+    private int emptyCells = 0;
+
+    private int merged = 0;
+    private int conflicts = 0;
+
+    /**
+     * @param tolerance How close nodes must be to be merged, in metres.
+     * @param capacity The most nodes to hold at once.
+     */
+    public SnappingOutputter(OSMOutputter finalOutput, double tolerance, ConflictPolicy policy, int capacity) {
+        if (tolerance < MIN_TOLERANCE) {
+            throw new IllegalArgumentException("The tolerance must be at least " + MIN_TOLERANCE + " metres.");
+        }
+        this.finalOutput = finalOutput;
+        this.tolerance = tolerance;
+        this.cellDegrees = tolerance / METRES_PER_DEGREE;
+        this.policy = policy;
+        this.held = new Node[capacity];
+        this.cellOf = new long[capacity];
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+    }
+
+    public void addNode(Node node) {
+        int near = findNearest(node);
+        if (near != EMPTY) {
+            mergeTags(held[near], node);
+            merged++;
+            return;
+        }
+
+        if (count == held.length) {
+            finalOutput.addNode(releaseOldest());
+        }
+        hold(node);
+    }
+
+    public void addWay(Way way) {
+        finalOutput.addWay(way);
+    }
+
+    public void addRelation(Relation relation) {
+        finalOutput.addRelation(relation);
+    }
+
+    public void finish() {
+        while (count > 0) {
+            finalOutput.addNode(releaseOldest());
+        }
+        log.log(Level.INFO, "Merged " + merged + " nodes into nearby ones, with " + conflicts + " conflicting tags.");
+        finalOutput.finish();
+    }
+
+    public void start() {
+        finalOutput.start();
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+        finalOutput.setMaxElementsPerFile(maxPerFile);
+    }
+
+    public void write(OSMFile out) {
+        finalOutput.write(out);
+    }
+
+    /**
+     * @return The slot of the closest held node within the tolerance, or
+     *         {@link #EMPTY}.
+     */
+    private int findNearest(Node node) {
+        double lat = node.getLat();
+        double lon = node.getLon();
+        double metresPerLon = METRES_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 1e-3);
+        int row = (int) Math.floor(lat / cellDegrees);
+        int col = (int) Math.floor(lon / cellDegrees);
+        // Cells are square in degrees, so away from the equator the
+        // tolerance spans more than one of them east to west.
+        int span = (int) Math.ceil(tolerance / metresPerLon / cellDegrees);
+
+        int nearest = EMPTY;
+        double nearestDistance = tolerance * tolerance;
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = col - span; c <= col + span; c++) {
+                for (int slot = cells.get(cellKey(r, c)); slot != EMPTY; slot = next[slot]) {
+                    double dy = (held[slot].getLat() - lat) * METRES_PER_DEGREE;
+                    double dx = (held[slot].getLon() - lon) * metresPerLon;
+                    double distance = dx * dx + dy * dy;
+                    if (distance <= nearestDistance) {
+                        nearest = slot;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private void hold(Node node) {
+        int slot = (oldest + count) % held.length;
+        long cell = cellKey((int) Math.floor(node.getLat() / cellDegrees),
+                (int) Math.floor(node.getLon() / cellDegrees));
+        int head = cells.get(cell);
+        if (head == EMPTY && cells.containsKey(cell)) {
+            emptyCells--;
+        }
+        cells.put(cell, slot);
+        held[slot] = node;
+        cellOf[slot] = cell;
+        next[slot] = head;
+        prev[slot] = EMPTY;
+        if (head != EMPTY) {
+            prev[head] = slot;
+        }
+        count++;
+    }
+
+    private Node releaseOldest() {
+        int slot = oldest;
+        Node node = held[slot];
+        if (prev[slot] != EMPTY) {
+            next[prev[slot]] = next[slot];
+        } else {
+            cells.put(cellOf[slot], next[slot]);
+            if (next[slot] == EMPTY) {
+                emptyCells++;
+            }
+        }
+        if (next[slot] != EMPTY) {
+            prev[next[slot]] = prev[slot];
+        }
+        held[slot] = null;
+        oldest = (oldest + 1) % held.length;
+        count--;
+
+        if (emptyCells > held.length) {
+            dropEmptyCells();
+        }
+        return node;
+    }
+
+    /**
+     * The map has no way to remove a key, so it is rebuilt without the
+     * cells that have no nodes left now and then.
+     */
+    private void dropEmptyCells() {
+        LongIntHashMap kept = new LongIntHashMap(count, EMPTY);
+        for (long cell : cells.keys()) {
+            int head = cells.get(cell);
+            if (head != EMPTY) {
+                kept.put(cell, head);
+            }
+        }
+        cells = kept;
+        emptyCells = 0;
+    }
+
+    private void mergeTags(Node into, Node from) {
+        List<Tag> tags = new ArrayList<Tag>();
+        Iterator<Tag> tagIter = into.getTagIterator();
+        while (tagIter.hasNext()) {
+            tags.add(tagIter.next());
+        }
+
+        tagIter = from.getTagIterator();
+        while (tagIter.hasNext()) {
+            Tag tag = tagIter.next();
+            int existing = indexOf(tags, tag.getKey());
+            if (existing < 0) {
+                tags.add(tag);
+                continue;
+            }
+
+            String value = tags.get(existing).getValue();
+            if (value.equals(tag.getValue())) {
+                continue;
+            }
+            conflicts++;
+            if (ConflictPolicy.last.equals(policy)) {
+                tags.set(existing, tag);
+            } else if (ConflictPolicy.join.equals(policy) && !containsValue(value, tag.getValue())) {
+                tags.set(existing, new Tag(tag.getKey(), value + ";" + tag.getValue()));
+            }
+        }
+
+        into.setTags(tags);
+    }
+
+    private static int indexOf(List<Tag> tags, String key) {
+        for (int i = 0; i < tags.size(); i++) {
+            if (tags.get(i).getKey().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean containsValue(String joined, String value) {
+        for (String part : joined.split(";")) {
+            if (part.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long cellKey(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+}
@@ -0,0 +1,596 @@
+package com.yellowbkpk.geo.topo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.geo.shp.GeometryReducer;
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.io.SortedSpill;
+import com.yellowbkpk.osm.output.OSMOutputter;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.CoordinateKey;
+import com.yellowbkpk.osm.util.FnvHash;
+import com.yellowbkpk.osm.util.HilbertCurve;
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * Writes the boundaries that adjacent areas share only once. Areas (closed
+ * ways and multipolygon relations) handed to {@link #addArea(Primitive)} are
+ * spilled to disk along with every edge of their rings. When the conversion
+ * finishes, the edges are sorted by node to find the junctions: nodes where
+ * a boundary meets more than two edges, or ends. Rings are cut into chains
+ * at the junctions, every chain becomes a way the first time it is reached
+ * and each area becomes a multipolygon relation made of its chains. An area
+ * whose only ring is a chain nobody else has used yet stays a closed way.
+ * <p>
+ * Areas are read back in Hilbert order of their first node along the curve,
+ * so neighbours come out close together and usually land in the same file.
+ * A chain can only be used by areas whose first node comes no later than
+ * the chain's, so once the areas pass that point the chain is forgotten.
+ * That keeps the chains in memory down to a strip along the current
+ * location, whatever the size of the layer. Only the junctions are kept for
+ * the whole run.
+ * <p>
+ * Everything that isn't an area goes straight through.
+ */
+public class TopologyOutputter implements OSMOutputter {
+
+    private static Logger log = Logger.getLogger(TopologyOutputter.class.getName());
+
+    private static final int MAX_NODES_IN_WAY = 2000;
+    // A held way node, its Node and the way's reference to it
+    private static final int HELD_NODE_BYTES = 100;
+
+    private final OSMOutputter finalOutput;
+    private final long chainBudget;
+    private final SortedSpill areas;
+    private final SortedSpill edges;
+    private GeometryReducer reducer;
+
+    private LongIntHashMap junctions;
+    private LongIntHashMap chainIndex;
+    private List<Way[]> chainWays;
+    private long[] chainKeys;
+    private long heldNodes;
+    private long forgetAt;
+
+    private int areaCount = 0;
+    private int chainCount = 0;
+    private int sharedCount = 0;
+
+    /**
+     * @param memoryBudget The number of bytes of heap to use, apart from
+     *            the junctions.
+     * @param tempDir Where to spill areas to, or null for the default
+     *            temporary directory.
+     */
+    public TopologyOutputter(OSMOutputter finalOutput, long memoryBudget, File tempDir) {
+        this.finalOutput = finalOutput;
+        this.chainBudget = memoryBudget / 2;
+        this.areas = new SortedSpill("areas", memoryBudget / 4, tempDir);
+        this.edges = new SortedSpill("edges", memoryBudget / 4, tempDir);
+    }
+
+    /**
+     * Simplifies every boundary way between its two ends. Since each shared
+     * boundary is simplified once, the areas on both sides still meet.
+     */
+    public void setReducer(GeometryReducer reducer) {
+        this.reducer = reducer;
+    }
+
+    /**
+     * Holds an area until the conversion finishes.
+     *
+     * @param area A closed way, or a multipolygon relation of ways with
+     *            "outer" and "inner" roles. Anything else is passed on as it
+     *            is.
+     */
+    public void addArea(Primitive area) {
+        List<long[]> rings = new ArrayList<long[]>();
+        List<Way> ringWays = new ArrayList<Way>();
+        List<String> ringRoles = new ArrayList<String>();
+        if (!toRings(area, rings, ringWays, ringRoles)) {
+            log.log(Level.FINE, "Passing on an area that isn't made of closed rings.");
+            if (area instanceof Way) {
+                finalOutput.addWay((Way) area);
+            } else {
+                finalOutput.addRelation((Relation) area);
+            }
+            return;
+        }
+
+        try {
+            long areaKey = Long.MAX_VALUE;
+            for (long[] ring : rings) {
+                for (int i = 0; i < ring.length; i++) {
+                    long next = ring[(i + 1) % ring.length];
+                    edges.begin(ring[i]).writeLong(next);
+                    edges.end();
+                    edges.begin(next).writeLong(ring[i]);
+                    edges.end();
+                    areaKey = Math.min(areaKey, HilbertCurve.keyOf(ring[i]));
+                }
+            }
+
+            DataOutputStream out = areas.begin(areaKey);
+            writeTags(out, area, true);
+            out.writeInt(rings.size());
+            for (int r = 0; r < rings.size(); r++) {
+                out.writeBoolean(!"inner".equals(ringRoles.get(r)));
+                writeTags(out, area instanceof Way ? null : ringWays.get(r), false);
+                long[] ring = rings.get(r);
+                out.writeInt(ring.length);
+                for (long key : ring) {
+                    out.writeLong(key);
+                }
+            }
+            areas.end();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not spill areas to disk.", e);
+        }
+    }
+
+    public void addNode(Node node) {
+        finalOutput.addNode(node);
+    }
+
+    public void addWay(Way way) {
+        finalOutput.addWay(way);
+    }
+
+    public void addRelation(Relation relation) {
+        finalOutput.addRelation(relation);
+    }
+
+    public void finish() {
+        try {
+            findJunctions();
+            buildAreas();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read spilled areas back from disk.", e);
+        } finally {
+            areas.delete();
+            edges.delete();
+        }
+        log.log(Level.INFO, "Built " + areaCount + " areas from " + chainCount + " boundary ways, "
+                + sharedCount + " of them shared.");
+        finalOutput.finish();
+    }
+
+    public void start() {
+        finalOutput.start();
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+        finalOutput.setMaxElementsPerFile(maxPerFile);
+    }
+
+    public void write(OSMFile out) {
+        finalOutput.write(out);
+    }
+
+    /**
+     * Reads the rings of an area as coordinate keys, without the closing
+     * node and with repeated nodes dropped. Relation members that follow on
+     * from each other with the same role are joined into one ring.
+     *
+     * @return False if the area isn't made of closed rings.
+     */
+    private static boolean toRings(Primitive area, List<long[]> rings, List<Way> ringWays, List<String> ringRoles) {
+        List<Way> ways = new ArrayList<Way>();
+        List<String> roles = new ArrayList<String>();
+        if (area instanceof Way) {
+            ways.add((Way) area);
+            roles.add("outer");
+        } else if (area instanceof Relation) {
+            for (Member member : ((Relation) area).getMembers()) {
+                if (!(member.getMember() instanceof Way)) {
+                    return false;
+                }
+                ways.add((Way) member.getMember());
+                roles.add(member.getRole());
+            }
+        } else {
+            return false;
+        }
+
+        long[] ring = new long[16];
+        int length = 0;
+        Way first = null;
+        String role = null;
+        for (int w = 0; w < ways.size(); w++) {
+            if (first == null) {
+                first = ways.get(w);
+                role = roles.get(w);
+            } else if (!role.equals(roles.get(w))) {
+                // The role changed before the ring closed
+                return false;
+            }
+
+            for (Node node : ways.get(w).getNodes()) {
+                long key = CoordinateKey.of(node.getLat(), node.getLon());
+                if (length > 0 && ring[length - 1] == key) {
+                    continue;
+                }
+                if (length == ring.length) {
+                    long[] bigger = new long[length * 2];
+                    System.arraycopy(ring, 0, bigger, 0, length);
+                    ring = bigger;
+                }
+                ring[length++] = key;
+            }
+
+            if (length > 1 && ring[0] == ring[length - 1]) {
+                // Closed; drop the closing node
+                length--;
+                if (length < 3) {
+                    return false;
+                }
+                long[] closed = new long[length];
+                System.arraycopy(ring, 0, closed, 0, length);
+                rings.add(closed);
+                ringWays.add(first);
+                ringRoles.add(role);
+                length = 0;
+                first = null;
+            }
+        }
+        return length == 0 && !rings.isEmpty();
+    }
+
+    /**
+     * Writes the tags of the primitive, or none if it is null.
+     */
+    private static void writeTags(DataOutputStream out, Primitive primitive, boolean skipType) throws IOException {
+        List<Tag> tags = new ArrayList<Tag>();
+        if (primitive != null) {
+            Iterator<Tag> tagIter = primitive.getTagIterator();
+            while (tagIter.hasNext()) {
+                Tag tag = tagIter.next();
+                if (skipType && "type".equals(tag.getKey()) && "multipolygon".equals(tag.getValue())) {
+                    continue;
+                }
+                tags.add(tag);
+            }
+        }
+        out.writeInt(tags.size());
+        for (Tag tag : tags) {
+            out.writeUTF(tag.getKey());
+            out.writeUTF(tag.getValue());
+        }
+    }
+
+    private static List<Tag> readTags(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Tag> tags = new ArrayList<Tag>(count);
+        for (int i = 0; i < count; i++) {
+            tags.add(new Tag(in.readUTF(), in.readUTF()));
+        }
+        return tags;
+    }
+
+    /**
+     * Finds the nodes that don't have exactly two neighbours, from the edges
+     * sorted by node.
+     */
+    private void findJunctions() throws IOException {
+        junctions = new LongIntHashMap(0);
+        SortedSpill.Reader reader = edges.sorted();
+        try {
+            long node = 0;
+            long[] neighbours = new long[8];
+            int edgeCount = 0;
+            int distinct = 0;
+            while (true) {
+                boolean more = reader.next();
+                if (edgeCount > 0 && (!more || reader.key() != node)) {
+                    if (distinct != 2) {
+                        junctions.put(node, 0);
+                    }
+                    edgeCount = 0;
+                    distinct = 0;
+                }
+                if (!more) {
+                    break;
+                }
+
+                node = reader.key();
+                long neighbour = reader.record().readLong();
+                edgeCount++;
+                boolean seen = false;
+                for (int i = 0; i < distinct && !seen; i++) {
+                    seen = neighbours[i] == neighbour;
+                }
+                if (!seen) {
+                    if (distinct == neighbours.length) {
+                        long[] bigger = new long[distinct * 2];
+                        System.arraycopy(neighbours, 0, bigger, 0, distinct);
+                        neighbours = bigger;
+                    }
+                    neighbours[distinct++] = neighbour;
+                }
+            }
+        } finally {
+            reader.close();
+            edges.delete();
+        }
+        log.log(Level.FINE, "Found " + junctions.size() + " junctions among " + edges.size() / 2 + " edges.");
+    }
+
+    private void buildAreas() throws IOException {
+        chainIndex = new LongIntHashMap(-1);
+        chainWays = new ArrayList<Way[]>();
+        chainKeys = new long[1024];
+        heldNodes = 0;
+        forgetAt = chainBudget / HELD_NODE_BYTES;
+
+        SortedSpill.Reader reader = areas.sorted();
+        try {
+            while (reader.next()) {
+                if (heldNodes > forgetAt) {
+                    forgetChainsBefore(reader.key());
+                }
+                buildArea(reader.record());
+                areaCount++;
+            }
+        } finally {
+            reader.close();
+        }
+        chainIndex = null;
+        chainWays = null;
+    }
+
+    private void buildArea(DataInputStream in) throws IOException {
+        List<Tag> tags = readTags(in);
+        int ringCount = in.readInt();
+        boolean[] outer = new boolean[ringCount];
+        List<List<Tag>> ringTags = new ArrayList<List<Tag>>(ringCount);
+        List<List<long[]>> ringChains = new ArrayList<List<long[]>>(ringCount);
+        for (int r = 0; r < ringCount; r++) {
+            outer[r] = in.readBoolean();
+            ringTags.add(readTags(in));
+            long[] ring = new long[in.readInt()];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = in.readLong();
+            }
+            ringChains.add(toChains(ring));
+        }
+
+        boolean single = ringCount == 1 && ringChains.get(0).size() == 1;
+
+        Relation relation = new Relation();
+        relation.addTag(new Tag("type", "multipolygon"));
+        for (Tag tag : tags) {
+            relation.addTag(tag);
+        }
+        for (int r = 0; r < ringCount; r++) {
+            List<long[]> chains = ringChains.get(r);
+            // Inner ring tags only survive on a way of their own
+            List<Tag> wayTags = single ? tags : chains.size() == 1 ? ringTags.get(r) : null;
+            for (long[] chain : chains) {
+                long[] canonical = canonical(chain);
+                int made = chainCount;
+                Way[] ways = toWays(canonical, wayTags);
+                if (single && chainCount > made && ways.length == 1) {
+                    // Nobody has used this ring yet, so the area can stay a way.
+                    finalOutput.addWay(ways[0]);
+                    return;
+                }
+                boolean reversed = canonical != chain;
+                for (int w = 0; w < ways.length; w++) {
+                    Way way = ways[reversed ? ways.length - 1 - w : w];
+                    relation.addMember(new Member(way, outer[r] ? "outer" : "inner"));
+                }
+            }
+        }
+        finalOutput.addRelation(relation);
+    }
+
+    /**
+     * Cuts a ring into chains at its junctions. A ring without any is one
+     * chain, starting and ending at its lowest key so that every ring
+     * through the same nodes starts in the same place.
+     */
+    private List<long[]> toChains(long[] ring) {
+        int n = ring.length;
+        int start = -1;
+        for (int i = 0; i < n && start < 0; i++) {
+            if (junctions.containsKey(ring[i])) {
+                start = i;
+            }
+        }
+
+        List<long[]> chains = new ArrayList<long[]>();
+        if (start < 0) {
+            start = 0;
+            for (int i = 1; i < n; i++) {
+                if (ring[i] < ring[start]) {
+                    start = i;
+                }
+            }
+            chains.add(slice(ring, start, n));
+            return chains;
+        }
+
+        int from = start;
+        for (int step = 1; step <= n; step++) {
+            int i = (start + step) % n;
+            if (step == n || junctions.containsKey(ring[i])) {
+                chains.add(slice(ring, from, step - (from - start + n) % n));
+                from = i;
+            }
+        }
+        return chains;
+    }
+
+    /**
+     * @return The nodes of the ring from <code>from</code> on, going
+     *         <code>edges</code> edges forward.
+     */
+    private static long[] slice(long[] ring, int from, int edges) {
+        long[] chain = new long[edges + 1];
+        for (int i = 0; i <= edges; i++) {
+            chain[i] = ring[(from + i) % ring.length];
+        }
+        return chain;
+    }
+
+    /**
+     * @return The chain in the direction every area that uses it agrees
+     *         on: the one that starts at the lower key. The same array is
+     *         returned if that is the direction it is already in.
+     */
+    private static long[] canonical(long[] chain) {
+        int last = chain.length - 1;
+        if (chain[0] < chain[last] || (chain[0] == chain[last] && chain[1] <= chain[last - 1])) {
+            return chain;
+        }
+        long[] reversed = new long[chain.length];
+        for (int i = 0; i <= last; i++) {
+            reversed[i] = chain[last - i];
+        }
+        return reversed;
+    }
+
+    /**
+     * @param tags The tags of a new way, if the chain is made into just one.
+     * @return The ways of the chain, made the first time it is reached and
+     *         then held until no other area can reach it.
+     */
+    private Way[] toWays(long[] chain, List<Tag> tags) {
+        long hash = hash(chain);
+        int index = chainIndex.get(hash);
+        if (index >= 0) {
+            sharedCount++;
+            return chainWays.get(index);
+        }
+
+        long chainKey = Long.MAX_VALUE;
+        for (long key : chain) {
+            chainKey = Math.min(chainKey, HilbertCurve.keyOf(key));
+        }
+        if (reducer != null) {
+            long[] reduced = chain.clone();
+            int length = reducer.simplify(reduced, reduced.length);
+            chain = new long[length];
+            System.arraycopy(reduced, 0, chain, 0, length);
+        }
+        heldNodes += chain.length;
+
+        List<Way> ways = new ArrayList<Way>();
+        Way way = new Way();
+        Node firstNode = null;
+        for (int i = 0; i < chain.length; i++) {
+            Node node;
+            if (i > 0 && i == chain.length - 1 && chain[i] == chain[0]) {
+                node = firstNode;
+            } else {
+                node = toNode(chain[i]);
+            }
+            if (i == 0) {
+                firstNode = node;
+            }
+            way.addNode(node);
+
+            // Follow the 2000 max nodes per way rule
+            if (way.nodeCount() == MAX_NODES_IN_WAY && i < chain.length - 1) {
+                ways.add(way);
+                way = new Way();
+                way.addNode(node);
+            }
+        }
+        ways.add(way);
+        if (tags != null && ways.size() == 1) {
+            for (Tag tag : tags) {
+                way.addTag(tag);
+            }
+        }
+
+        index = chainWays.size();
+        chainIndex.put(hash, index);
+        chainWays.add(ways.toArray(new Way[ways.size()]));
+        if (index == chainKeys.length) {
+            long[] bigger = new long[index * 2];
+            System.arraycopy(chainKeys, 0, bigger, 0, index);
+            chainKeys = bigger;
+        }
+        chainKeys[index] = chainKey;
+        chainCount++;
+        return chainWays.get(index);
+    }
+
+    /**
+     * @return A new node at the key's location, with the junction's ID if
+     *         it is one.
+     */
+    private Node toNode(long key) {
+        Node node = new Node(CoordinateKey.dequantize(CoordinateKey.fixedLat(key)),
+                CoordinateKey.dequantize(CoordinateKey.fixedLon(key)));
+        if (junctions.containsKey(key)) {
+            int id = junctions.get(key);
+            if (id == 0) {
+                id = IDGenerator.get().nextNodeID();
+                junctions.put(key, id);
+            }
+            node.setID(id);
+        }
+        return node;
+    }
+
+    /**
+     * Drops the chains that come before the given place along the curve.
+     * No area from there on can use them. If most chains are still needed,
+     * this doesn't try again until the held nodes have grown by half, so
+     * that the index isn't rebuilt for every area.
+     */
+    private void forgetChainsBefore(long areaKey) {
+        LongIntHashMap keptIndex = new LongIntHashMap(-1);
+        List<Way[]> keptWays = new ArrayList<Way[]>();
+        long[] keptKeys = new long[chainKeys.length];
+        heldNodes = 0;
+        for (long hash : chainIndex.keys()) {
+            int index = chainIndex.get(hash);
+            if (chainKeys[index] < areaKey) {
+                continue;
+            }
+            Way[] ways = chainWays.get(index);
+            keptKeys[keptWays.size()] = chainKeys[index];
+            keptIndex.put(hash, keptWays.size());
+            keptWays.add(ways);
+            for (Way way : ways) {
+                heldNodes += way.nodeCount();
+            }
+        }
+        forgetAt = Math.max(chainBudget / HELD_NODE_BYTES, heldNodes + heldNodes / 2);
+        log.log(Level.FINE, "Holding " + keptWays.size() + " of " + chainWays.size() + " boundary ways.");
+        chainIndex = keptIndex;
+        chainWays = keptWays;
+        chainKeys = keptKeys;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the chain's keys.
+     */
+    private static long hash(long[] chain) {
+        long hash = FnvHash.OFFSET;
+        for (int i = 0; i < chain.length; i++) {
+            hash = FnvHash.hash(hash, chain[i]);
+        }
+        return hash;
+    }
+
+}
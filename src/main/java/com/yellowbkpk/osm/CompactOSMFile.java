@@ -0,0 +1,443 @@
+package com.yellowbkpk.osm;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.yellowbkpk.osm.io.OffHeapBuffer;
+import com.yellowbkpk.osm.primitive.ChangeType;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.User;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.node.NodeByRef;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.primitive.way.WayByRef;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.relation.RelationByRef;
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+import com.yellowbkpk.osm.util.SizeEstimator;
+
+/**
+ * An {@link ElementStore} that encodes elements into off-heap buffers as they are
+ * added instead of keeping them, one buffer per element type. IDs and
+ * coordinates are stored as differences from the previous element's, and
+ * tag keys and member roles as indexes into a table. Only the IDs seen so
+ * far stay on the heap, to drop duplicates the way the sets of a normal
+ * file do.
+ * <p>
+ * The iterators decode the elements again in the order they were added. This
+ * is all an outputter needs to write a file, but it is not an
+ * {@link OSMFile}:
+ * <ul>
+ * <li>Coordinates are kept to the 7 decimal places the outputters write.</li>
+ * <li>Way nodes and relation members come back as {@link NodeByRef},
+ * {@link WayByRef} and {@link RelationByRef} placeholders with just an
+ * ID.</li>
+ * <li>Elements can't be looked up by ID.</li>
+ * </ul>
+ */
+public class CompactOSMFile implements ElementStore {
+
+    private static final int VISIBLE = 1;
+    private static final int HAS_VERSION = 2;
+    private static final int HAS_USER = 4;
+    // The change type's ordinal goes in the bits above the flags.
+    private static final int CHANGE_TYPE_SHIFT = 3;
+
+    private static final double FIXED_SCALE = 1e7;
+
+    private final OffHeapBuffer nodes = new OffHeapBuffer();
+    private final OffHeapBuffer ways = new OffHeapBuffer();
+    private final OffHeapBuffer relations = new OffHeapBuffer();
+
+    private final LongIntHashMap nodeIds = new LongIntHashMap(0);
+    private final LongIntHashMap wayIds = new LongIntHashMap(0);
+    private final LongIntHashMap relationIds = new LongIntHashMap(0);
+
+    private final StringTable keys = new StringTable();
+    private final StringTable roles = new StringTable();
+
+    private long estimatedBytes = 0;
+
+    // Previous values for the differences, one set per buffer
+    private long lastNodeId;
+    private long lastLat;
+    private long lastLon;
+    private long lastWayId;
+    private long lastWayNode;
+    private long lastRelationId;
+    private long lastMember;
+
+    public void addNode(Node n) {
+        if (n.getID() == 0) {
+            n.setID(IDGenerator.get().nextNodeID());
+        }
+        if (!added(nodeIds, n)) {
+            return;
+        }
+
+        lastNodeId = writeCommon(nodes, n, lastNodeId);
+        long lat = toFixed(n.getLat());
+        long lon = toFixed(n.getLon());
+        nodes.writeSignedVarLong(lat - lastLat);
+        nodes.writeSignedVarLong(lon - lastLon);
+        lastLat = lat;
+        lastLon = lon;
+    }
+
+    public void addWay(Way w) {
+        if (w.getID() == 0) {
+            w.setID(IDGenerator.get().nextWayID());
+        }
+
+        List<Node> wayNodes = w.getNodes();
+        for (Node n : wayNodes) {
+            addNode(n);
+        }
+
+        if (!added(wayIds, w)) {
+            return;
+        }
+
+        lastWayId = writeCommon(ways, w, lastWayId);
+        ways.writeVarLong(wayNodes.size());
+        for (Node n : wayNodes) {
+            ways.writeSignedVarLong(n.getID() - lastWayNode);
+            lastWayNode = n.getID();
+        }
+    }
+
+    public void addRelation(Relation r) {
+        if (r.getID() == 0) {
+            r.setID(IDGenerator.get().nextRelationID());
+        }
+
+        List<Member> members = r.getMembers();
+        for (Member member : members) {
+            Primitive primitive = member.getMember();
+            PrimitiveTypeEnum type = primitive.getType();
+
+            if (PrimitiveTypeEnum.node.equals(type)) {
+                addNode((Node) primitive);
+            } else if (PrimitiveTypeEnum.way.equals(type)) {
+                addWay((Way) primitive);
+            } else if (PrimitiveTypeEnum.relation.equals(type)) {
+                addRelation((Relation) primitive);
+            }
+        }
+
+        if (!added(relationIds, r)) {
+            return;
+        }
+
+        lastRelationId = writeCommon(relations, r, lastRelationId);
+        relations.writeVarLong(members.size());
+        for (Member member : members) {
+            Primitive primitive = member.getMember();
+            relations.writeByte(primitive.getType().ordinal());
+            relations.writeSignedVarLong(primitive.getID() - lastMember);
+            relations.writeVarLong(roles.indexOf(member.getRole()));
+            lastMember = primitive.getID();
+        }
+    }
+
+    /**
+     * Empties the file so it can stage the next chunk, keeping the buffers'
+     * memory.
+     */
+    public void clear() {
+        nodes.clear();
+        ways.clear();
+        relations.clear();
+        nodeIds.clear();
+        wayIds.clear();
+        relationIds.clear();
+        estimatedBytes = 0;
+        lastNodeId = 0;
+        lastLat = 0;
+        lastLon = 0;
+        lastWayId = 0;
+        lastWayNode = 0;
+        lastRelationId = 0;
+        lastMember = 0;
+    }
+
+    public int getNodeCount() {
+        return nodeIds.size();
+    }
+
+    public int getWayCount() {
+        return wayIds.size();
+    }
+
+    public int getRelationCount() {
+        return relationIds.size();
+    }
+
+    public int getChangeCount() {
+        return getNodeCount() + getWayCount() + getRelationCount();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return The heap taken up by the ID indexes and string tables. The
+     *         elements themselves are off the heap.
+     */
+    public long getRetainedBytes() {
+        // The indexes run at most 60% full, with a long and an int per slot.
+        long indexes = (long) (getChangeCount() / 0.6) * 12;
+        return indexes + keys.retainedBytes() + roles.retainedBytes();
+    }
+
+    /**
+     * @return The bytes of direct memory the buffers hold.
+     */
+    public long getBufferedBytes() {
+        return nodes.capacity() + ways.capacity() + relations.capacity();
+    }
+
+    public Iterator<Node> getNodeIterator() {
+        return new Decoder<Node>(nodes) {
+            private long id;
+            private long lat;
+            private long lon;
+
+            Node decode(OffHeapBuffer.Reader in) {
+                Common common = readCommon(in, id);
+                id = common.id;
+                lat += in.readSignedVarLong();
+                lon += in.readSignedVarLong();
+
+                Node node = new Node(fromFixed(lat), fromFixed(lon));
+                common.applyTo(node);
+                return node;
+            }
+        };
+    }
+
+    public Iterator<Way> getWayIterator() {
+        return new Decoder<Way>(ways) {
+            private long id;
+            private long ref;
+
+            Way decode(OffHeapBuffer.Reader in) {
+                Common common = readCommon(in, id);
+                id = common.id;
+
+                Way way = new Way();
+                common.applyTo(way);
+                int count = (int) in.readVarLong();
+                for (int i = 0; i < count; i++) {
+                    ref += in.readSignedVarLong();
+                    way.addNode(new NodeByRef((int) ref));
+                }
+                return way;
+            }
+        };
+    }
+
+    public Iterator<Relation> getRelationIterator() {
+        return new Decoder<Relation>(relations) {
+            private long id;
+            private long ref;
+
+            Relation decode(OffHeapBuffer.Reader in) {
+                Common common = readCommon(in, id);
+                id = common.id;
+
+                Relation relation = new Relation();
+                common.applyTo(relation);
+                int count = (int) in.readVarLong();
+                for (int i = 0; i < count; i++) {
+                    PrimitiveTypeEnum type = PrimitiveTypeEnum.values()[in.readByte()];
+                    ref += in.readSignedVarLong();
+                    String role = roles.get((int) in.readVarLong());
+
+                    Primitive member;
+                    if (PrimitiveTypeEnum.node.equals(type)) {
+                        member = new NodeByRef((int) ref);
+                    } else if (PrimitiveTypeEnum.way.equals(type)) {
+                        member = new WayByRef((int) ref);
+                    } else {
+                        member = new RelationByRef((int) ref);
+                    }
+                    relation.addMember(new Member(member, role));
+                }
+                return relation;
+            }
+        };
+    }
+
+    /**
+     * @return True if the primitive hasn't been added before.
+     */
+    private boolean added(LongIntHashMap ids, Primitive primitive) {
+        if (ids.containsKey(primitive.getID())) {
+            return false;
+        }
+        ids.put(primitive.getID(), 1);
+        estimatedBytes += SizeEstimator.serializedBytes(primitive);
+        return true;
+    }
+
+    /**
+     * @return The primitive's ID, for the next difference.
+     */
+    private long writeCommon(OffHeapBuffer out, Primitive primitive, long lastId) {
+        out.writeSignedVarLong(primitive.getID() - lastId);
+
+        Integer version = primitive.getVersion();
+        User user = primitive.getUser();
+        int flags = (primitive.isVisible() ? VISIBLE : 0) | (version != null ? HAS_VERSION : 0)
+                | (user != null ? HAS_USER : 0) | (primitive.getChangeType().ordinal() << CHANGE_TYPE_SHIFT);
+        out.writeByte(flags);
+        if (version != null) {
+            out.writeVarLong(version.intValue());
+        }
+        if (user != null) {
+            out.writeSignedVarLong(user.getId());
+            out.writeString(user.getName());
+        }
+
+        out.writeVarLong(primitive.getTagCount());
+        Iterator<Tag> tagIter = primitive.getTagIterator();
+        while (tagIter.hasNext()) {
+            Tag tag = tagIter.next();
+            out.writeVarLong(keys.indexOf(tag.getKey()));
+            out.writeString(tag.getValue());
+        }
+        return primitive.getID();
+    }
+
+    private Common readCommon(OffHeapBuffer.Reader in, long lastId) {
+        Common common = new Common();
+        common.id = lastId + in.readSignedVarLong();
+
+        int flags = in.readByte();
+        common.visible = (flags & VISIBLE) != 0;
+        common.changeType = ChangeType.values()[flags >> CHANGE_TYPE_SHIFT];
+        if ((flags & HAS_VERSION) != 0) {
+            common.version = Integer.valueOf((int) in.readVarLong());
+        }
+        if ((flags & HAS_USER) != 0) {
+            int uid = (int) in.readSignedVarLong();
+            common.user = new User(uid, in.readString());
+        }
+
+        common.tags = new Tag[(int) in.readVarLong()];
+        for (int i = 0; i < common.tags.length; i++) {
+            String key = keys.get((int) in.readVarLong());
+            common.tags[i] = new Tag(key, in.readString());
+        }
+        return common;
+    }
+
+    /**
+     * Rounds to the nearest 1e-7 degree, the same way the outputters'
+     * formatting does, so that the written coordinates don't change.
+     */
+    private static long toFixed(double degrees) {
+        double scaled = degrees * FIXED_SCALE;
+        double fraction = scaled - Math.floor(scaled);
+        if (Math.abs(fraction - 0.5) < 1e-6) {
+            // Too close to a tie to trust the multiplication.
+            return new BigDecimal(degrees).setScale(7, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+        }
+        return Math.round(scaled);
+    }
+
+    private static double fromFixed(long fixed) {
+        return fixed / FIXED_SCALE;
+    }
+
+    /**
+     * What every kind of primitive has, as read back.
+     */
+    private static class Common {
+        long id;
+        boolean visible;
+        Integer version;
+        ChangeType changeType;
+        User user;
+        Tag[] tags;
+
+        void applyTo(Primitive primitive) {
+            primitive.setID((int) id);
+            primitive.setVisible(visible);
+            primitive.setVersion(version);
+            primitive.setChangeType(changeType);
+            primitive.setUser(user);
+            for (Tag tag : tags) {
+                primitive.addTag(tag);
+            }
+        }
+    }
+
+    private abstract static class Decoder<T> implements Iterator<T> {
+        private final OffHeapBuffer.Reader in;
+
+        Decoder(OffHeapBuffer buffer) {
+            in = buffer.reader();
+        }
+
+        public boolean hasNext() {
+            return in.hasRemaining();
+        }
+
+        public T next() {
+            if (!in.hasRemaining()) {
+                throw new NoSuchElementException();
+            }
+            return decode(in);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        abstract T decode(OffHeapBuffer.Reader in);
+    }
+
+    /**
+     * Numbers the strings that repeat a lot, like tag keys.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+        private long characters = 0;
+
+        int indexOf(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(value, index);
+                strings.add(value);
+                if (value != null) {
+                    characters += value.length();
+                }
+            }
+            return index;
+        }
+
+        String get(int index) {
+            return strings.get(index);
+        }
+
+        long retainedBytes() {
+            return strings.size() * 100L + 2 * characters;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.yellowbkpk.osm;
+
+import java.util.Iterator;
+
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
+
+/**
+ * Somewhere to collect elements until they are written: the parts of an
+ * {@link OSMFile} an outputter needs to stage a chunk. Adding an element
+ * adds its way nodes and relation members too, and adding one that is
+ * already there does nothing.
+ */
+public interface ElementStore {
+
+    void addNode(Node n);
+
+    void addWay(Way w);
+
+    void addRelation(Relation r);
+
+    int getNodeCount();
+
+    int getWayCount();
+
+    int getRelationCount();
+
+    /**
+     * @return The number of nodes, ways and relations.
+     */
+    int getChangeCount();
+
+    /**
+     * @return About how big the elements are as osmChange XML, in bytes.
+     */
+    long getEstimatedBytes();
+
+    /**
+     * @return About how much heap the elements take up, in bytes.
+     */
+    long getRetainedBytes();
+
+    /**
+     * @return The nodes, in the order they were added.
+     */
+    Iterator<Node> getNodeIterator();
+
+    Iterator<Way> getWayIterator();
+
+    Iterator<Relation> getRelationIterator();
+
+    /**
+     * Drops every element so that the next chunk can be collected.
+     */
+    void clear();
+
+}
@@ -2,50 +2,62 @@ package com.yellowbkpk.osm;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.SAXException;
-
-import com.yellowbkpk.osm.parser.OSMSaxParser;
+import java.util.ListIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.yellowbkpk.osm.parser.OSMFileBuilder;
+import com.yellowbkpk.osm.parser.OSMStreamReader;
 import com.yellowbkpk.osm.primitive.Primitive;
 import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
 import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.node.NodeByRef;
 import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.primitive.way.WayByRef;
 import com.yellowbkpk.osm.relation.Member;
 import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.relation.RelationByRef;
 import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+import com.yellowbkpk.osm.util.SizeEstimator;
 
 /**
  * @author Ian Dees
  * 
  */
-public class OSMFile {
+public class OSMFile implements ElementStore {
 
     private LinkedHashSet<Node> nodes = new LinkedHashSet<Node>();
     private LinkedHashSet<Way> ways = new LinkedHashSet<Way>();
     private LinkedHashSet<Relation> relations = new LinkedHashSet<Relation>();
+    private long estimatedBytes = 0;
+    private long retainedBytes = 0;
 
     public void addNode(Node n) {
         if (n.getID() == 0) {
-            n.setID(IDGenerator.nextNodeID());
+            n.setID(IDGenerator.get().nextNodeID());
         }
 
         addPrimitive(nodes, n);
     }
 
     private <M extends Primitive> void addPrimitive(LinkedHashSet<M> list, M n) {
-        list.add(n);
+        if (list.add(n)) {
+            estimatedBytes += SizeEstimator.serializedBytes(n);
+            retainedBytes += SizeEstimator.retainedBytes(n);
+        }
     }
 
     public void addWay(Way w) {
         if (w.getID() == 0) {
-            w.setID(IDGenerator.nextWayID());
+            w.setID(IDGenerator.get().nextWayID());
         }
 
         for (Node n : w.getNodes()) {
@@ -57,7 +69,7 @@ public class OSMFile {
 
     public void addRelation(Relation r) {
         if (r.getID() == 0) {
-            r.setID(IDGenerator.nextRelationID());
+            r.setID(IDGenerator.get().nextRelationID());
         }
 
         for (Member member : r.getMembers()) {
@@ -80,6 +92,32 @@ public class OSMFile {
         return getNodeCount() + getWayCount() + getRelationCount();
     }
 
+    public void clear() {
+        nodes = new LinkedHashSet<Node>();
+        ways = new LinkedHashSet<Way>();
+        relations = new LinkedHashSet<Relation>();
+        estimatedBytes = 0;
+        retainedBytes = 0;
+    }
+
+    /**
+     * @return About how big the elements added so far are as osmChange XML,
+     *         in bytes.
+     * @see SizeEstimator
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return About how much heap the elements added so far take up, in
+     *         bytes.
+     * @see SizeEstimator
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
     public Iterator<Node> getNodeIterator() {
         return nodes.iterator();
     }
@@ -101,16 +139,10 @@ public class OSMFile {
      * @return
      */
     public static OSMFile fromFile(File file) {
-        OSMSaxParser osmHandler = new OSMSaxParser();
+        OSMFileBuilder osmHandler = new OSMFileBuilder();
 
         try {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            saxParser.parse(file, osmHandler);
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (SAXException e) {
-            e.printStackTrace();
+            OSMStreamReader.read(file, osmHandler);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -176,7 +208,9 @@ public class OSMFile {
 
     /**
      * Read in a list of OSM files and return an aggregate of all of them
-     * together.
+     * together. The files are parsed side by side on a thread pool and then
+     * merged in list order; references from one file to elements of another
+     * are resolved during the merge.
      * 
      * @param files The list of files to read.
      * @return The combined data from the list of OSM files.
@@ -186,16 +220,129 @@ public class OSMFile {
             throw new IllegalArgumentException("Files cannot be null.");
         }
 
-        OSMFile aggregate = new OSMFile();
-        for (File file : files) {
+        List<Callable<OSMFile>> tasks = new ArrayList<Callable<OSMFile>>();
+        for (final File file : files) {
             if (file.exists()) {
-                OSMFile f = OSMFile.fromFile(file);
-                aggregate.appendTo(f);
+                tasks.add(new Callable<OSMFile>() {
+                    public OSMFile call() {
+                        return OSMFile.fromFile(file);
+                    }
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return new OSMFile();
+        }
+
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<OSMFile> parts = new ArrayList<OSMFile>(tasks.size());
+        try {
+            for (Future<OSMFile> future : executor.invokeAll(tasks)) {
+                parts.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading OSM files.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Reading OSM files failed.", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        return merge(parts);
+    }
+
+    /**
+     * Combines files into one, replacing by-ref placeholders with the real
+     * element wherever any of the files has it. The aggregate's sets are
+     * sized up front and a placeholder never takes the place of the real
+     * element, whichever file comes first.
+     */
+    private static OSMFile merge(List<OSMFile> parts) {
+        int nodeCount = 0;
+        int wayCount = 0;
+        int relationCount = 0;
+        for (OSMFile part : parts) {
+            nodeCount += part.getNodeCount();
+            wayCount += part.getWayCount();
+            relationCount += part.getRelationCount();
+        }
+
+        // Index the real elements of every file by ID, first one wins.
+        List<Node> realNodes = new ArrayList<Node>(nodeCount);
+        List<Way> realWays = new ArrayList<Way>(wayCount);
+        List<Relation> realRelations = new ArrayList<Relation>(relationCount);
+        LongIntHashMap nodeIndex = new LongIntHashMap(nodeCount, -1);
+        LongIntHashMap wayIndex = new LongIntHashMap(wayCount, -1);
+        LongIntHashMap relationIndex = new LongIntHashMap(relationCount, -1);
+        for (OSMFile part : parts) {
+            index(part.nodes, NodeByRef.class, realNodes, nodeIndex);
+            index(part.ways, WayByRef.class, realWays, wayIndex);
+            index(part.relations, RelationByRef.class, realRelations, relationIndex);
+        }
+
+        OSMFile aggregate = new OSMFile();
+        aggregate.nodes = new LinkedHashSet<Node>(capacityFor(nodeCount));
+        aggregate.ways = new LinkedHashSet<Way>(capacityFor(wayCount));
+        aggregate.relations = new LinkedHashSet<Relation>(capacityFor(relationCount));
+
+        for (OSMFile part : parts) {
+            for (Node node : part.nodes) {
+                aggregate.nodes.add(resolve(node, realNodes, nodeIndex));
+            }
+
+            for (Way way : part.ways) {
+                for (ListIterator<Node> it = way.getNodes().listIterator(); it.hasNext();) {
+                    Node node = it.next();
+                    if (node instanceof NodeByRef) {
+                        it.set(resolve(node, realNodes, nodeIndex));
+                    }
+                }
+                aggregate.ways.add(resolve(way, realWays, wayIndex));
+            }
+
+            for (Relation relation : part.relations) {
+                for (Member member : relation.getMembers()) {
+                    Primitive primitive = member.getMember();
+                    if (primitive instanceof NodeByRef) {
+                        member.setMember(resolve((Node) primitive, realNodes, nodeIndex));
+                    } else if (primitive instanceof WayByRef) {
+                        member.setMember(resolve((Way) primitive, realWays, wayIndex));
+                    } else if (primitive instanceof RelationByRef) {
+                        member.setMember(resolve((Relation) primitive, realRelations, relationIndex));
+                    }
+                }
+                aggregate.relations.add(resolve(relation, realRelations, relationIndex));
             }
         }
+
         return aggregate;
     }
 
+    private static <M extends Primitive> void index(LinkedHashSet<M> primitives,
+            Class<? extends M> placeholder, List<M> real, LongIntHashMap index) {
+        for (M primitive : primitives) {
+            if (!placeholder.isInstance(primitive) && !index.containsKey(primitive.getID())) {
+                index.put(primitive.getID(), real.size());
+                real.add(primitive);
+            }
+        }
+    }
+
+    /**
+     * @return The real element with the same ID, or the given one if there
+     *         isn't one.
+     */
+    private static <M extends Primitive> M resolve(M primitive, List<M> real, LongIntHashMap index) {
+        int i = index.get(primitive.getID());
+        return i < 0 ? primitive : real.get(i);
+    }
+
+    private static int capacityFor(int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+
     public void appendTo(OSMFile f) {
         if (f == null) {
             throw new IllegalArgumentException("File cannot be null.");
@@ -204,6 +351,9 @@ public class OSMFile {
         this.nodes.addAll(f.nodes);
         this.ways.addAll(f.ways);
         this.relations.addAll(f.relations);
+        // Elements in both files are counted twice, which is close enough.
+        this.estimatedBytes += f.estimatedBytes;
+        this.retainedBytes += f.retainedBytes;
     }
 
 }
@@ -0,0 +1,281 @@
+package com.yellowbkpk.osm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.yellowbkpk.osm.io.MappedRecordStore;
+import com.yellowbkpk.osm.io.PrimitiveCodec;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.IDGenerator;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+import com.yellowbkpk.osm.util.SizeEstimator;
+
+/**
+ * An {@link ElementStore} that keeps elements on the heap until they take up more
+ * than a given amount of memory, and writes everything added after that to
+ * memory-mapped temporary files with {@link PrimitiveCodec}. Elements can
+ * still be looked up by ID and iterated over in the order they were added,
+ * so filters can work over more data than fits in memory.
+ * <p>
+ * Spilled elements are read back as new objects every time, and a way or
+ * relation read back has its own copies of its nodes and members. Changes
+ * made to a spilled element after it was added are not kept. Users are not
+ * spilled.
+ * <p>
+ * Call {@link #clear()} once the elements aren't needed any more to delete
+ * the temporary files.
+ */
+public class SpillingOSMFile implements ElementStore {
+
+    private static final int NOT_FOUND = -1;
+
+    private final long memoryThreshold;
+    private final File tempDir;
+    private MappedRecordStore store;
+
+    private Elements<Node> nodes = new Elements<Node>(PrimitiveTypeEnum.node);
+    private Elements<Way> ways = new Elements<Way>(PrimitiveTypeEnum.way);
+    private Elements<Relation> relations = new Elements<Relation>(PrimitiveTypeEnum.relation);
+
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    private long estimatedBytes = 0;
+    private long retainedBytes = 0;
+
+    /**
+     * @param memoryThreshold How many bytes of heap elements may take up
+     *            before the rest are spilled.
+     * @param tempDir Where to spill to, or null for the default temporary
+     *            directory.
+     */
+    public SpillingOSMFile(long memoryThreshold, File tempDir) {
+        this.memoryThreshold = memoryThreshold;
+        this.tempDir = tempDir;
+        this.store = new MappedRecordStore(tempDir);
+    }
+
+    public void addNode(Node n) {
+        if (n.getID() == 0) {
+            n.setID(IDGenerator.get().nextNodeID());
+        }
+
+        nodes.add(n);
+    }
+
+    public void addWay(Way w) {
+        if (w.getID() == 0) {
+            w.setID(IDGenerator.get().nextWayID());
+        }
+
+        for (Node n : w.getNodes()) {
+            addNode(n);
+        }
+
+        ways.add(w);
+    }
+
+    public void addRelation(Relation r) {
+        if (r.getID() == 0) {
+            r.setID(IDGenerator.get().nextRelationID());
+        }
+
+        for (Member member : r.getMembers()) {
+            Primitive primitive = member.getMember();
+            PrimitiveTypeEnum type = primitive.getType();
+
+            if (PrimitiveTypeEnum.node.equals(type)) {
+                addNode((Node) primitive);
+            } else if (PrimitiveTypeEnum.way.equals(type)) {
+                addWay((Way) primitive);
+            } else if (PrimitiveTypeEnum.relation.equals(type)) {
+                addRelation((Relation) primitive);
+            }
+        }
+
+        relations.add(r);
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    public int getWayCount() {
+        return ways.size();
+    }
+
+    public int getRelationCount() {
+        return relations.size();
+    }
+
+    public int getChangeCount() {
+        return getNodeCount() + getWayCount() + getRelationCount();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return The heap taken up by the elements that weren't spilled.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return How many bytes have been spilled to disk.
+     */
+    public long getSpilledBytes() {
+        return store.size();
+    }
+
+    public Iterator<Node> getNodeIterator() {
+        return nodes.iterator();
+    }
+
+    public Iterator<Way> getWayIterator() {
+        return ways.iterator();
+    }
+
+    public Iterator<Relation> getRelationIterator() {
+        return relations.iterator();
+    }
+
+    public Node findNodeById(int id) {
+        return nodes.find(id);
+    }
+
+    public Way findWayById(int refId) {
+        return ways.find(refId);
+    }
+
+    public Relation findRelationById(int refId) {
+        return relations.find(refId);
+    }
+
+    /**
+     * Drops every element and deletes the temporary files.
+     */
+    public void clear() {
+        store.close();
+        store = new MappedRecordStore(tempDir);
+        nodes = new Elements<Node>(PrimitiveTypeEnum.node);
+        ways = new Elements<Way>(PrimitiveTypeEnum.way);
+        relations = new Elements<Relation>(PrimitiveTypeEnum.relation);
+        estimatedBytes = 0;
+        retainedBytes = 0;
+    }
+
+    /**
+     * The elements of one type, the first ones on the heap and the rest
+     * spilled. The index maps an ID to a position in the heap list, or to
+     * <code>-2 - n</code> for the n-th spilled element.
+     */
+    private class Elements<M extends Primitive> {
+        private final PrimitiveTypeEnum type;
+        private final List<M> held = new ArrayList<M>();
+        private final LongIntHashMap index = new LongIntHashMap(NOT_FOUND);
+        private long[] addresses = new long[16];
+        private int spilled = 0;
+
+        Elements(PrimitiveTypeEnum type) {
+            this.type = type;
+        }
+
+        void add(M primitive) {
+            if (index.containsKey(primitive.getID())) {
+                return;
+            }
+            estimatedBytes += SizeEstimator.serializedBytes(primitive);
+
+            if (retainedBytes < memoryThreshold) {
+                index.put(primitive.getID(), held.size());
+                held.add(primitive);
+                retainedBytes += SizeEstimator.retainedBytes(primitive);
+            } else {
+                if (spilled == addresses.length) {
+                    long[] grown = new long[addresses.length * 2];
+                    System.arraycopy(addresses, 0, grown, 0, spilled);
+                    addresses = grown;
+                }
+                index.put(primitive.getID(), -2 - spilled);
+                addresses[spilled++] = spill(primitive);
+            }
+        }
+
+        int size() {
+            return held.size() + spilled;
+        }
+
+        M find(int id) {
+            int position = index.get(id);
+            if (position == NOT_FOUND) {
+                return null;
+            }
+            return position >= 0 ? held.get(position) : read(addresses[-2 - position]);
+        }
+
+        Iterator<M> iterator() {
+            return new Iterator<M>() {
+                private int next = 0;
+
+                public boolean hasNext() {
+                    return next < size();
+                }
+
+                public M next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int position = next++;
+                    return position < held.size() ? held.get(position) : read(addresses[position - held.size()]);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private long spill(M primitive) {
+            record.reset();
+            try {
+                PrimitiveCodec.writePrimitive(recordOut, primitive);
+                recordOut.flush();
+                return store.append(record.bytes(), record.size());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not spill " + type + " " + primitive.getID() + ".", e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private M read(long address) {
+            DataInputStream in = store.read(address);
+            try {
+                return (M) PrimitiveCodec.readPrimitive(in);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read a spilled " + type + ".", e);
+            }
+        }
+    }
+
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.yellowbkpk.osm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Variable length records appended to memory-mapped temporary files and read
+ * back by address. The operating system pages the files in and out, so the
+ * store can grow well past the size of the heap and of physical memory.
+ * <p>
+ * Records never cross from one file into the next; a record that is bigger
+ * than a whole file gets a file of its own.
+ */
+public class MappedRecordStore {
+
+    private static final int SEGMENT_SIZE = 64 << 20;
+
+    private final File directory;
+    private final List<File> files = new ArrayList<File>();
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private MappedByteBuffer current;
+    private long size = 0;
+
+    /**
+     * @param directory Where to put the files, or null for the default
+     *            temporary directory.
+     */
+    public MappedRecordStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The address to read the record back with.
+     */
+    public long append(byte[] bytes, int length) throws IOException {
+        if (current == null || current.remaining() < length + 4) {
+            nextSegment(length + 4);
+        }
+
+        long address = ((long) (segments.size() - 1) << 32) | current.position();
+        current.putInt(length);
+        current.put(bytes, 0, length);
+        size += length + 4;
+        return address;
+    }
+
+    /**
+     * @param address An address from {@link #append(byte[], int)}.
+     */
+    public DataInputStream read(long address) {
+        ByteBuffer segment = segments.get((int) (address >>> 32)).duplicate();
+        segment.position((int) address);
+        byte[] bytes = new byte[segment.getInt()];
+        segment.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * @return The number of bytes stored, including the length of every
+     *         record.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Deletes the files. The store can't be used afterwards.
+     */
+    public void close() {
+        segments.clear();
+        current = null;
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+    }
+
+    private void nextSegment(int minimumSize) throws IOException {
+        File file = File.createTempFile("spill", ".seg", directory);
+        file.deleteOnExit();
+        files.add(file);
+
+        int segmentSize = Math.max(SEGMENT_SIZE, minimumSize);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+        segments.add(current);
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.yellowbkpk.osm.io;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only byte buffer outside of the Java heap, made of fixed size
+ * direct buffers so that it never has to copy what it already holds.
+ * Numbers are written as variable length integers, so small values and small
+ * differences take a byte or two.
+ * <p>
+ * {@link #clear()} keeps the segments for reuse, since direct memory is only
+ * given back to the system when the garbage collector gets around to it.
+ */
+public class OffHeapBuffer {
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private ByteBuffer current;
+    private int currentIndex = -1;
+    private long size = 0;
+
+    public void writeByte(int b) {
+        if (current == null || !current.hasRemaining()) {
+            nextSegment();
+        }
+        current.put((byte) b);
+        size++;
+    }
+
+    public void writeBytes(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (current == null || !current.hasRemaining()) {
+                nextSegment();
+            }
+            int length = Math.min(current.remaining(), bytes.length - offset);
+            current.put(bytes, offset, length);
+            offset += length;
+        }
+        size += bytes.length;
+    }
+
+    /**
+     * Writes a value that is never negative.
+     */
+    public void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /**
+     * Writes a value that may be negative, such as the difference between
+     * two IDs, zigzag encoded so that small negative values stay short.
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a string, which may be null, as UTF-8.
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        byte[] bytes = utf8(value);
+        writeVarLong(bytes.length + 1);
+        writeBytes(bytes);
+    }
+
+    /**
+     * @return The number of bytes written since the last clear.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return The number of bytes of direct memory held, used or not.
+     */
+    public long capacity() {
+        return (long) segments.size() * SEGMENT_SIZE;
+    }
+
+    /**
+     * Empties the buffer, keeping its memory.
+     */
+    public void clear() {
+        for (ByteBuffer segment : segments) {
+            segment.clear();
+        }
+        current = null;
+        currentIndex = -1;
+        size = 0;
+    }
+
+    /**
+     * @return A reader from the start of the buffer to what has been written
+     *         so far.
+     */
+    public Reader reader() {
+        return new Reader();
+    }
+
+    private void nextSegment() {
+        currentIndex++;
+        if (currentIndex == segments.size()) {
+            segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+        }
+        current = segments.get(currentIndex);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported.", e);
+        }
+    }
+
+    /**
+     * Reads the buffer back in the order it was written.
+     */
+    public class Reader {
+
+        private long position = 0;
+        private int segment = 0;
+        private int offset = 0;
+
+        public boolean hasRemaining() {
+            return position < size;
+        }
+
+        public int readByte() {
+            if (offset == SEGMENT_SIZE) {
+                segment++;
+                offset = 0;
+            }
+            position++;
+            return segments.get(segment).get(offset++) & 0xFF;
+        }
+
+        public long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        public long readSignedVarLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public String readString() {
+            int length = (int) readVarLong() - 1;
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) readByte();
+            }
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not supported.", e);
+            }
+        }
+
+    }
+
+}
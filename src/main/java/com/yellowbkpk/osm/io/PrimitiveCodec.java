@@ -0,0 +1,163 @@
+package com.yellowbkpk.osm.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import com.yellowbkpk.osm.primitive.ChangeType;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+
+/**
+ * Writes primitives to a binary stream and reads them back, for spilling
+ * data to temporary files. A way is written together with its nodes and a
+ * relation together with its members, so every record can be read back on
+ * its own.
+ */
+public class PrimitiveCodec {
+
+    public static void writeNode(DataOutput out, Node node) throws IOException {
+        writeCommon(out, node);
+        out.writeDouble(node.getLat());
+        out.writeDouble(node.getLon());
+    }
+
+    public static Node readNode(DataInput in) throws IOException {
+        int id = in.readInt();
+        Integer version = readVersion(in);
+        boolean visible = in.readBoolean();
+        ChangeType changeType = ChangeType.values()[in.readByte()];
+        Tag[] tags = readTags(in);
+
+        Node node = new Node(in.readDouble(), in.readDouble());
+        node.setID(id);
+        node.setVersion(version);
+        node.setVisible(visible);
+        node.setChangeType(changeType);
+        for (Tag tag : tags) {
+            node.addTag(tag);
+        }
+        return node;
+    }
+
+    public static void writeWay(DataOutput out, Way way) throws IOException {
+        writeCommon(out, way);
+
+        List<Node> nodes = way.getNodes();
+        out.writeInt(nodes.size());
+        for (Node node : nodes) {
+            writeNode(out, node);
+        }
+    }
+
+    public static Way readWay(DataInput in) throws IOException {
+        Way way = new Way();
+        readCommon(in, way);
+
+        int nodeCount = in.readInt();
+        for (int i = 0; i < nodeCount; i++) {
+            way.addNode(readNode(in));
+        }
+        return way;
+    }
+
+    public static void writeRelation(DataOutput out, Relation relation) throws IOException {
+        writeCommon(out, relation);
+
+        List<Member> members = relation.getMembers();
+        out.writeInt(members.size());
+        for (Member member : members) {
+            out.writeUTF(member.getRole());
+            writePrimitive(out, member.getMember());
+        }
+    }
+
+    public static Relation readRelation(DataInput in) throws IOException {
+        Relation relation = new Relation();
+        readCommon(in, relation);
+
+        int memberCount = in.readInt();
+        for (int i = 0; i < memberCount; i++) {
+            String role = in.readUTF();
+            relation.addMember(new Member(readPrimitive(in), role));
+        }
+        return relation;
+    }
+
+    /**
+     * Writes any kind of primitive, prefixed with its type.
+     */
+    public static void writePrimitive(DataOutput out, Primitive primitive) throws IOException {
+        PrimitiveTypeEnum type = primitive.getType();
+        out.writeByte(type.ordinal());
+        if (PrimitiveTypeEnum.node.equals(type)) {
+            writeNode(out, (Node) primitive);
+        } else if (PrimitiveTypeEnum.way.equals(type)) {
+            writeWay(out, (Way) primitive);
+        } else if (PrimitiveTypeEnum.relation.equals(type)) {
+            writeRelation(out, (Relation) primitive);
+        } else {
+            throw new IOException("Can't write primitives of type " + type);
+        }
+    }
+
+    public static Primitive readPrimitive(DataInput in) throws IOException {
+        PrimitiveTypeEnum type = PrimitiveTypeEnum.values()[in.readByte()];
+        if (PrimitiveTypeEnum.node.equals(type)) {
+            return readNode(in);
+        } else if (PrimitiveTypeEnum.way.equals(type)) {
+            return readWay(in);
+        } else if (PrimitiveTypeEnum.relation.equals(type)) {
+            return readRelation(in);
+        } else {
+            throw new IOException("Can't read primitives of type " + type);
+        }
+    }
+
+    private static void writeCommon(DataOutput out, Primitive primitive) throws IOException {
+        out.writeInt(primitive.getID());
+        Integer version = primitive.getVersion();
+        out.writeInt(version == null ? -1 : version.intValue());
+        out.writeBoolean(primitive.isVisible());
+        out.writeByte(primitive.getChangeType().ordinal());
+
+        out.writeInt(primitive.getTagCount());
+        Iterator<Tag> tagIter = primitive.getTagIterator();
+        while (tagIter.hasNext()) {
+            Tag tag = tagIter.next();
+            out.writeUTF(tag.getKey());
+            out.writeUTF(tag.getValue());
+        }
+    }
+
+    private static void readCommon(DataInput in, Primitive primitive) throws IOException {
+        primitive.setID(in.readInt());
+        primitive.setVersion(readVersion(in));
+        primitive.setVisible(in.readBoolean());
+        primitive.setChangeType(ChangeType.values()[in.readByte()]);
+        for (Tag tag : readTags(in)) {
+            primitive.addTag(tag);
+        }
+    }
+
+    private static Integer readVersion(DataInput in) throws IOException {
+        int version = in.readInt();
+        return version < 0 ? null : Integer.valueOf(version);
+    }
+
+    private static Tag[] readTags(DataInput in) throws IOException {
+        Tag[] tags = new Tag[in.readInt()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = new Tag(in.readUTF(), in.readUTF());
+        }
+        return tags;
+    }
+
+}
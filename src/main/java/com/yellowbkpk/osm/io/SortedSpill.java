@@ -0,0 +1,316 @@
+package com.yellowbkpk.osm.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Records sorted by a <code>long</code> key, without holding them all in
+ * memory. Records are buffered until they reach the memory budget, then
+ * sorted and spilled to a temporary run file. Reading them back merges the
+ * runs.
+ */
+public class SortedSpill {
+
+    // The key and offset kept for every buffered record
+    private static final int RECORD_OVERHEAD = 8 + 4;
+
+    private final String prefix;
+    private final long memoryBudget;
+    private final File tempDir;
+    private final List<File> runs = new ArrayList<File>();
+
+    private SpillBuffer buffer;
+    private DataOutputStream bufferOut;
+    private long[] keys = new long[1024];
+    private int[] offsets = new int[1024];
+    private int count;
+    private long total;
+
+    /**
+     * @param prefix The start of the run files' names.
+     * @param tempDir Where to spill to, or null for the default temporary
+     *            directory.
+     */
+    public SortedSpill(String prefix, long memoryBudget, File tempDir) {
+        this.prefix = prefix;
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+        resetBuffer();
+    }
+
+    /**
+     * Starts a record. Write it to the returned stream, then call
+     * {@link #end()}.
+     */
+    public DataOutputStream begin(long key) {
+        if (count == keys.length) {
+            long[] newKeys = new long[count * 2];
+            int[] newOffsets = new int[count * 2];
+            System.arraycopy(keys, 0, newKeys, 0, count);
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            keys = newKeys;
+            offsets = newOffsets;
+        }
+        keys[count] = key;
+        offsets[count] = buffer.size();
+        count++;
+        return bufferOut;
+    }
+
+    public void end() throws IOException {
+        total++;
+        if (buffer.size() + (long) keys.length * RECORD_OVERHEAD >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * @return The number of records added.
+     */
+    public long size() {
+        return total;
+    }
+
+    /**
+     * @return The number of runs spilled to disk so far.
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * @return A reader over every record added, in key order. Records with
+     *         the same key come back in no particular order. No more records
+     *         can be added.
+     */
+    public Reader sorted() throws IOException {
+        List<InputStream> sources = new ArrayList<InputStream>();
+        for (File run : runs) {
+            sources.add(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+        if (count > 0) {
+            // What's left never reached the budget, so it is sorted in
+            // memory rather than spilled.
+            ByteArrayOutputStream sorted = new ByteArrayOutputStream(buffer.size() + count * RECORD_OVERHEAD);
+            writeSorted(sorted);
+            sources.add(new ByteArrayInputStream(sorted.toByteArray()));
+        }
+        resetBuffer();
+        keys = new long[0];
+        offsets = new int[0];
+        return new Reader(sources);
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    public void delete() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+        File run = File.createTempFile(prefix, ".run", tempDir);
+        run.deleteOnExit();
+        runs.add(run);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(run), 1 << 16);
+        try {
+            writeSorted(out);
+        } finally {
+            out.close();
+        }
+        resetBuffer();
+    }
+
+    private void writeSorted(OutputStream stream) throws IOException {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        sort(keys, order, 0, count - 1);
+
+        byte[] bytes = buffer.bytes();
+        DataOutputStream out = new DataOutputStream(stream);
+        for (int i = 0; i < count; i++) {
+            int record = order[i];
+            int start = offsets[record];
+            int end = record + 1 < count ? offsets[record + 1] : buffer.size();
+            out.writeLong(keys[i]);
+            out.writeInt(end - start);
+            out.write(bytes, start, end - start);
+        }
+        out.flush();
+    }
+
+    private void resetBuffer() {
+        buffer = new SpillBuffer();
+        bufferOut = new DataOutputStream(buffer);
+        count = 0;
+    }
+
+    /**
+     * Sorts the keys and moves the record numbers along with them.
+     */
+    private static void sort(long[] keys, int[] order, int lo, int hi) {
+        while (lo < hi) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int record = order[i];
+                    order[i] = order[j];
+                    order[j] = record;
+                    i++;
+                    j--;
+                }
+            }
+
+            // Recurse into the smaller half to keep the stack shallow.
+            if (j - lo < hi - i) {
+                sort(keys, order, lo, j);
+                lo = i;
+            } else {
+                sort(keys, order, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    /**
+     * Gives access to the written bytes without copying them.
+     */
+    private static class SpillBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * Merges the runs, one record at a time.
+     */
+    public static class Reader {
+        private final PriorityQueue<Run> queue = new PriorityQueue<Run>(11, new Comparator<Run>() {
+            public int compare(Run a, Run b) {
+                return a.key < b.key ? -1 : a.key > b.key ? 1 : 0;
+            }
+        });
+        private Run current;
+
+        Reader(List<InputStream> sources) throws IOException {
+            try {
+                for (InputStream source : sources) {
+                    Run run = new Run(source);
+                    if (run.advance()) {
+                        queue.add(run);
+                    } else {
+                        run.close();
+                    }
+                }
+            } catch (IOException e) {
+                for (InputStream source : sources) {
+                    source.close();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * @return False once every record has been read.
+         */
+        public boolean next() throws IOException {
+            if (current != null) {
+                if (current.advance()) {
+                    queue.add(current);
+                } else {
+                    current.close();
+                }
+            }
+            current = queue.poll();
+            return current != null;
+        }
+
+        public long key() {
+            return current.key;
+        }
+
+        public DataInputStream record() {
+            return new DataInputStream(new ByteArrayInputStream(current.record, 0, current.length));
+        }
+
+        /**
+         * @return The size of the current record in bytes.
+         */
+        public int length() {
+            return current.length;
+        }
+
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            for (Run run : queue) {
+                run.close();
+            }
+            queue.clear();
+        }
+    }
+
+    private static class Run {
+        private final DataInputStream in;
+        long key;
+        int length;
+        byte[] record = new byte[256];
+
+        Run(InputStream source) {
+            in = new DataInputStream(source);
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            length = in.readInt();
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            in.readFully(record, 0, length);
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
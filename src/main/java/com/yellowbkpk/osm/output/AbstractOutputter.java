@@ -1,14 +1,22 @@
 package com.yellowbkpk.osm.output;
 
+import java.util.Iterator;
+
+import com.yellowbkpk.osm.CompactOSMFile;
+import com.yellowbkpk.osm.ElementStore;
 import com.yellowbkpk.osm.OSMFile;
 import com.yellowbkpk.osm.primitive.node.Node;
 import com.yellowbkpk.osm.primitive.way.Way;
 import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.ConversionEvents;
 
 public abstract class AbstractOutputter implements OSMOutputter {
 
-    private OSMFile storage = new OSMFile();
+    private ElementStore storage = new OSMFile();
     private int maxChanges;
+    private long maxBytes = 0;
+    private long heapBudget = 0;
+    private int fileCount = 0;
     
     public void addNode(Node node) {
         checkAndWrite();
@@ -18,16 +26,64 @@ public abstract class AbstractOutputter implements OSMOutputter {
 
     private void checkAndWrite() {
         if(checkChanges()) {
-            write(storage);
-            storage = new OSMFile();
+            writeStorage();
+        }
+    }
+
+    private void writeStorage() {
+        ConversionEvents events = ConversionEvents.get();
+        Object event = events.beginChunkWrite();
+        writeElements(storage);
+        events.endChunkWrite(event, storage.getChangeCount());
+        storage.clear();
+    }
+
+    /**
+     * Writes the staged elements. Unless overridden, they are passed to
+     * {@link #write(OSMFile)}, copied into an {@link OSMFile} first if they
+     * aren't staged in one.
+     */
+    protected void writeElements(ElementStore elements) {
+        if (elements instanceof OSMFile) {
+            write((OSMFile) elements);
+            return;
+        }
+
+        OSMFile copy = new OSMFile();
+        addAll(elements, copy);
+        write(copy);
+    }
+
+    /**
+     * Stages the elements along with everything else, without checking
+     * whether a file should be written first.
+     */
+    protected void stage(ElementStore elements) {
+        addAll(elements, storage);
+    }
+
+    private static void addAll(ElementStore from, ElementStore to) {
+        Iterator<Node> nodeIter = from.getNodeIterator();
+        while (nodeIter.hasNext()) {
+            to.addNode(nodeIter.next());
+        }
+        Iterator<Way> wayIter = from.getWayIterator();
+        while (wayIter.hasNext()) {
+            to.addWay(wayIter.next());
+        }
+        Iterator<Relation> relationIter = from.getRelationIterator();
+        while (relationIter.hasNext()) {
+            to.addRelation(relationIter.next());
         }
     }
 
     /**
      * @return True if the file should be written.
      */
-    private boolean checkChanges() {
-        return storage.getChangeCount() >= maxChanges;
+    protected boolean checkChanges() {
+        return storage.getChangeCount() >= maxChanges
+                || (maxBytes > 0 && storage.getEstimatedBytes() >= maxBytes)
+                || (heapBudget > 0 && storage.getRetainedBytes() >= heapBudget);
     }
 
     public void addRelation(Relation relation) {
@@ -42,15 +98,88 @@ public abstract class AbstractOutputter implements OSMOutputter {
         storage.addWay(way);
     }
 
+    /**
+     * Writes whatever is still staged. Nothing is written if it's empty,
+     * unless nothing has been written at all, so that every run leaves at
+     * least one file.
+     */
     public void finish() {
-        write(storage);
-        storage = new OSMFile();
+        if (storage.getChangeCount() > 0 || fileCount == 0) {
+            writeStorage();
+        }
     }
 
     public void setMaxElementsPerFile(int maxPerFile) {
         maxChanges = maxPerFile;
     }
 
+    /**
+     * @param maxBytes The size, in bytes, at which a file is closed and the
+     *            next one started, or 0 for no limit. The size is estimated,
+     *            and a file can go over it by the last element added.
+     */
+    public void setMaxBytesPerFile(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param heapBudget How many bytes of heap the elements waiting to be
+     *            written may take up before they are written out, or 0 for no
+     *            limit.
+     */
+    public void setHeapBudget(long heapBudget) {
+        this.heapBudget = heapBudget;
+    }
+
+    /**
+     * @return The number of files written so far.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @param count The number of files already written, so that the next
+     *            one gets the next number. Used to resume a run.
+     */
+    public void setFileCount(int count) {
+        fileCount = count;
+    }
+
+    /**
+     * @return The number to give the file being written.
+     */
+    protected int nextFileNumber() {
+        return fileCount++;
+    }
+
+    /**
+     * Stages elements in a {@link CompactOSMFile} instead of keeping them on
+     * the heap, so that a file can hold millions of elements. The elements
+     * passed to {@link #writeElements(ElementStore)} then only refer to way
+     * nodes and relation members by ID, which is all the XML outputters need. Anything already
+     * staged is dropped, so call this before adding elements.
+     */
+    public void setCompactStaging(boolean compact) {
+        setStorage(compact ? new CompactOSMFile() : new OSMFile());
+    }
+
+    /**
+     * Stages elements in the given store from now on. Anything already staged
+     * is dropped.
+     */
+    protected void setStorage(ElementStore staging) {
+        storage = staging;
+    }
+
+    /**
+     * @return The number of elements waiting for the next write. Safe to call
+     *         from another thread, but only approximate there.
+     */
+    public int getStagedElementCount() {
+        return storage.getChangeCount();
+    }
+
     public void start() {
 
     }
@@ -0,0 +1,69 @@
+package com.yellowbkpk.osm.output;
+
+import java.util.Iterator;
+
+import com.yellowbkpk.osm.ElementStore;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * Passes stored elements on to an outputter as whole features, the way the
+ * converter adds them: relations that aren't members of another relation,
+ * ways that aren't members of a relation and nodes that are in neither a
+ * way nor a relation. Everything else goes along with the feature it
+ * belongs to, so nothing is added twice.
+ */
+public class Features {
+
+    /**
+     * Adds the elements one feature at a time. Only the IDs of way nodes and
+     * relation members are held, so the elements can be read from a store
+     * that doesn't fit on the heap.
+     */
+    public static void addAll(ElementStore elements, OSMOutputter outputter) {
+        LongIntHashMap used = new LongIntHashMap(0);
+        Iterator<Relation> relationIter = elements.getRelationIterator();
+        while (relationIter.hasNext()) {
+            for (Member member : relationIter.next().getMembers()) {
+                used.put(keyOf(member.getMember()), 1);
+            }
+        }
+        Iterator<Way> wayIter = elements.getWayIterator();
+        while (wayIter.hasNext()) {
+            for (Node node : wayIter.next().getNodes()) {
+                used.put(keyOf(node), 1);
+            }
+        }
+
+        relationIter = elements.getRelationIterator();
+        while (relationIter.hasNext()) {
+            Relation relation = relationIter.next();
+            if (!used.containsKey(keyOf(relation))) {
+                outputter.addRelation(relation);
+            }
+        }
+        wayIter = elements.getWayIterator();
+        while (wayIter.hasNext()) {
+            Way way = wayIter.next();
+            if (!used.containsKey(keyOf(way))) {
+                outputter.addWay(way);
+            }
+        }
+        Iterator<Node> nodeIter = elements.getNodeIterator();
+        while (nodeIter.hasNext()) {
+            Node node = nodeIter.next();
+            if (!used.containsKey(keyOf(node))) {
+                outputter.addNode(node);
+            }
+        }
+    }
+
+    private static long keyOf(Primitive primitive) {
+        return ((long) primitive.getType().ordinal() << 32) | (primitive.getID() & 0xffffffffL);
+    }
+
+}
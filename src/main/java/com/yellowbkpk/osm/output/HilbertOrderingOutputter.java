@@ -0,0 +1,163 @@
+package com.yellowbkpk.osm.output;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.io.PrimitiveCodec;
+import com.yellowbkpk.osm.io.SortedSpill;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.HilbertCurve;
+import com.yellowbkpk.osm.util.IDGenerator;
+
+/**
+ * Holds everything back until the end and passes it on in order of the
+ * Hilbert curve index of its centre, the average of its nodes' positions.
+ * Elements that are close on the map then end up next to each other in the
+ * output, in the same files, which keeps each file's bounding box small and
+ * helps it compress.
+ * <p>
+ * Elements are written with their nodes and members to a
+ * {@link SortedSpill}, so only the memory budget is held however big the
+ * input is. IDs are given out as elements come in, before they are spilled,
+ * so that a way used by two relations keeps one ID after both are read back.
+ */
+public class HilbertOrderingOutputter implements OSMOutputter {
+
+    private static Logger log = Logger.getLogger(HilbertOrderingOutputter.class.getName());
+
+    private final OSMOutputter finalOutput;
+    private final SortedSpill spill;
+
+    /**
+     * @param memoryBudget How many bytes of spilled elements to hold in
+     *            memory before writing a run to disk.
+     * @param tempDir Where to spill to, or null for the default temporary
+     *            directory.
+     */
+    public HilbertOrderingOutputter(OSMOutputter finalOutput, long memoryBudget, File tempDir) {
+        this.finalOutput = finalOutput;
+        this.spill = new SortedSpill("order", memoryBudget, tempDir);
+    }
+
+    public void addNode(Node node) {
+        hold(node);
+    }
+
+    public void addWay(Way way) {
+        hold(way);
+    }
+
+    public void addRelation(Relation relation) {
+        hold(relation);
+    }
+
+    public void finish() {
+        try {
+            SortedSpill.Reader reader = spill.sorted();
+            try {
+                while (reader.next()) {
+                    Primitive primitive = PrimitiveCodec.readPrimitive(reader.record());
+                    if (primitive instanceof Node) {
+                        finalOutput.addNode((Node) primitive);
+                    } else if (primitive instanceof Way) {
+                        finalOutput.addWay((Way) primitive);
+                    } else {
+                        finalOutput.addRelation((Relation) primitive);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read spilled elements back from disk.", e);
+        } finally {
+            spill.delete();
+        }
+        log.log(Level.INFO, "Wrote " + spill.size() + " elements in Hilbert order.");
+        finalOutput.finish();
+    }
+
+    public void start() {
+        finalOutput.start();
+    }
+
+    public void setMaxElementsPerFile(int maxPerFile) {
+        finalOutput.setMaxElementsPerFile(maxPerFile);
+    }
+
+    public void write(OSMFile out) {
+        finalOutput.write(out);
+    }
+
+    private void hold(Primitive primitive) {
+        assignIDs(primitive);
+        double[] sum = new double[3];
+        addPositions(primitive, sum, 0);
+        // Elements without nodes, if any, go at the end.
+        long key = Long.MAX_VALUE;
+        if (sum[2] > 0) {
+            key = HilbertCurve.key(sum[0] / sum[2], sum[1] / sum[2]);
+        }
+
+        try {
+            DataOutputStream out = spill.begin(key);
+            PrimitiveCodec.writePrimitive(out, primitive);
+            spill.end();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not spill elements to disk.", e);
+        }
+    }
+
+    /**
+     * Gives the element and its members the IDs {@link OSMFile} would.
+     */
+    private static void assignIDs(Primitive primitive) {
+        if (primitive.getID() != 0) {
+            return;
+        }
+        if (primitive instanceof Node) {
+            primitive.setID(IDGenerator.get().nextNodeID());
+        } else if (primitive instanceof Way) {
+            primitive.setID(IDGenerator.get().nextWayID());
+            for (Node node : ((Way) primitive).getNodes()) {
+                assignIDs(node);
+            }
+        } else if (primitive instanceof Relation) {
+            primitive.setID(IDGenerator.get().nextRelationID());
+            for (Member member : ((Relation) primitive).getMembers()) {
+                assignIDs(member.getMember());
+            }
+        }
+    }
+
+    /**
+     * Adds up the latitudes, longitudes and number of the element's nodes.
+     * Relations that are members of each other are only followed a few
+     * levels down.
+     */
+    private static void addPositions(Primitive primitive, double[] sum, int depth) {
+        if (primitive instanceof Node) {
+            Node node = (Node) primitive;
+            sum[0] += node.getLat();
+            sum[1] += node.getLon();
+            sum[2]++;
+        } else if (primitive instanceof Way) {
+            for (Node node : ((Way) primitive).getNodes()) {
+                addPositions(node, sum, depth);
+            }
+        } else if (primitive instanceof Relation && depth < 4) {
+            for (Member member : ((Relation) primitive).getMembers()) {
+                addPositions(member.getMember(), sum, depth + 1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.yellowbkpk.osm.output;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.yellowbkpk.osm.util.PipelineMetrics;
+import com.yellowbkpk.osm.util.PipelineMetrics.Stage;
+
+/**
+ * Counts the bytes going through to the underlying stream and books the time
+ * spent in it as I/O in the {@link PipelineMetrics}. Put it under the
+ * buffering so that only real writes are timed. The metrics are those of
+ * the thread that opens the stream.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    private final Stage outer;
+    private final PipelineMetrics metrics = PipelineMetrics.get();
+
+    /**
+     * @param outer The stage the writes happen during, which the I/O time is
+     *            taken off of.
+     */
+    public MeteredOutputStream(OutputStream out, Stage outer) {
+        super(out);
+        this.outer = outer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long started = PipelineMetrics.start();
+        out.write(b);
+        metrics.stopWithin(Stage.io, outer, started);
+        metrics.addBytesWritten(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long started = PipelineMetrics.start();
+        out.write(b, off, len);
+        metrics.stopWithin(Stage.io, outer, started);
+        metrics.addBytesWritten(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long started = PipelineMetrics.start();
+        out.flush();
+        metrics.stopWithin(Stage.io, outer, started);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long started = PipelineMetrics.start();
+        out.close();
+        metrics.stopWithin(Stage.io, outer, started);
+    }
+
+}
@@ -1,21 +1,31 @@
 package com.yellowbkpk.osm.output;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.NumberFormat;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.yellowbkpk.osm.ElementStore;
 import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.primitive.ChangeType;
 import com.yellowbkpk.osm.primitive.Primitive;
 import com.yellowbkpk.osm.primitive.Tag;
 import com.yellowbkpk.osm.primitive.node.Node;
 import com.yellowbkpk.osm.primitive.way.Way;
 import com.yellowbkpk.osm.relation.Member;
 import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+import com.yellowbkpk.osm.util.PipelineMetrics;
+import com.yellowbkpk.osm.util.PipelineMetrics.Stage;
 
 
 public class OSMChangeOutputter extends AbstractOutputter {
@@ -30,8 +40,10 @@ public class OSMChangeOutputter extends AbstractOutputter {
     
     private File rootDir;
     private String filePre;
-    private int count = 0;
     private String generator;
+    private OutputStream stream;
+    private Writer streamWriter;
+    private LongIntHashMap written;
 
     public OSMChangeOutputter(File rootDirFile, String filePrefix, String generatorString) {
         rootDir = rootDirFile;
@@ -39,34 +51,97 @@ public class OSMChangeOutputter extends AbstractOutputter {
         generator = generatorString;
     }
 
+    /**
+     * Writes one document to the given stream, such as standard output,
+     * instead of numbered files. Each batch of elements is written as a
+     * create block of its own as soon as it is full. The IDs of the
+     * elements written so far are kept, so an element that two batches
+     * share is only written in the first. The stream is flushed but not
+     * closed.
+     */
+    public OSMChangeOutputter(OutputStream stream, String generatorString) {
+        this.stream = stream;
+        this.written = new LongIntHashMap(0);
+        generator = generatorString;
+    }
+
+    @Override
+    public void start() {
+        if (stream != null) {
+            streamWriter();
+        }
+    }
+
     public void write(OSMFile osmOut) {
-        File actualOutFile = new File(rootDir, filePre + count + ".osm");
+        writeElements(osmOut);
+    }
+
+    @Override
+    protected void writeElements(ElementStore osmOut) {
+        if (stream != null) {
+            long started = PipelineMetrics.start();
+            try {
+                writeBody(streamWriter(), osmOut);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to the output stream.", e);
+            }
+            PipelineMetrics.get().stop(Stage.serialize, started);
+            return;
+        }
+
+        File actualOutFile = new File(rootDir, filePre + nextFileNumber() + ".osm");
         saveOsmOut(osmOut, actualOutFile);
-        count++;
     }
 
-    private void saveOsmOut(OSMFile osmOut, File actualOutput) {
+    @Override
+    public void finish() {
+        super.finish();
+        if (stream != null) {
+            long started = PipelineMetrics.start();
+            try {
+                Writer out = streamWriter();
+                writeFooter(out);
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to the output stream.", e);
+            }
+            PipelineMetrics.get().stop(Stage.serialize, started);
+            PipelineMetrics.get().addFileWritten();
+            streamWriter = null;
+        }
+    }
+
+    /**
+     * @return The writer for the stream, opened with the start of the
+     *         document the first time.
+     */
+    private Writer streamWriter() {
+        if (streamWriter == null) {
+            try {
+                streamWriter = openWriter(stream);
+                writeHeader(streamWriter);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to the output stream.", e);
+            }
+        }
+        return streamWriter;
+    }
+
+    private static Writer openWriter(OutputStream out) throws IOException {
+        return new OutputStreamWriter(new BufferedOutputStream(new MeteredOutputStream(out, Stage.serialize)),
+                "UTF-8");
+    }
+
+    private void saveOsmOut(ElementStore osmOut, File actualOutput) {
+        long started = PipelineMetrics.start();
         log.log(Level.INFO, "Writing out to file " + actualOutput.getAbsolutePath() + ".");
     
         // Now write out the file
         try {
-            FileWriter bos = new FileWriter(actualOutput);
-    
-            bos.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-            bos.write("<osmChange version=\"0.6\" generator=\""+generator+"\">\n");
-            bos.write("  <create version=\"0.6\" generator=\""+generator+"\">\n");
-    
-            Iterator<Node> nodeIter = osmOut.getNodeIterator();
-            outputNodes(bos, nodeIter);
-    
-            Iterator<Way> wayIter = osmOut.getWayIterator();
-            outputWays(bos, wayIter);
-    
-            Iterator<Relation> relationIter = osmOut.getRelationIterator();
-            outputRelations(bos, relationIter);
-    
-            bos.write("  </create>\n");
-            bos.write("</osmChange>\n");
+            Writer bos = openWriter(new FileOutputStream(actualOutput));
+            writeHeader(bos);
+            writeBody(bos, osmOut);
+            writeFooter(bos);
     
             bos.flush();
             bos.close();
@@ -76,15 +151,81 @@ public class OSMChangeOutputter extends AbstractOutputter {
             e.printStackTrace();
         }
 
+        PipelineMetrics.get().stop(Stage.serialize, started);
+        PipelineMetrics.get().addFileWritten();
+
         log.log(Level.INFO, "Done.");
     }
 
-    private static void outputRelations(Writer out, Iterator<Relation> relationIter) throws IOException {
+    private void writeHeader(Writer bos) throws IOException {
+        bos.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        bos.write("<osmChange version=\"0.6\" generator=\""+generator+"\">\n");
+    }
+
+    private static void writeFooter(Writer bos) throws IOException {
+        bos.write("</osmChange>\n");
+    }
+
+    /**
+     * Writes the elements in create, modify and delete blocks.
+     */
+    private void writeBody(Writer bos, ElementStore osmOut) throws IOException {
+        bos.write("  <create version=\"0.6\" generator=\""+generator+"\">\n");
+
+        // Most files only create, so the other blocks are only looked
+        // for when the first pass came across something else.
+        EnumSet<ChangeType> others = EnumSet.noneOf(ChangeType.class);
+
+        Iterator<Node> nodeIter = osmOut.getNodeIterator();
+        outputNodes(bos, nodeIter, ChangeType.create, others);
+
+        Iterator<Way> wayIter = osmOut.getWayIterator();
+        outputWays(bos, wayIter, ChangeType.create, others);
+
+        Iterator<Relation> relationIter = osmOut.getRelationIterator();
+        outputRelations(bos, relationIter, ChangeType.create, others);
+
+        bos.write("  </create>\n");
+
+        if (others.contains(ChangeType.modify)) {
+            bos.write("  <modify version=\"0.6\" generator=\""+generator+"\">\n");
+            outputNodes(bos, osmOut.getNodeIterator(), ChangeType.modify, others);
+            outputWays(bos, osmOut.getWayIterator(), ChangeType.modify, others);
+            outputRelations(bos, osmOut.getRelationIterator(), ChangeType.modify, others);
+            bos.write("  </modify>\n");
+        }
+
+        if (others.contains(ChangeType.delete)) {
+            // Delete whatever refers to something before the thing itself
+            bos.write("  <delete version=\"0.6\" generator=\""+generator+"\">\n");
+            outputRelations(bos, osmOut.getRelationIterator(), ChangeType.delete, others);
+            outputWays(bos, osmOut.getWayIterator(), ChangeType.delete, others);
+            outputNodes(bos, osmOut.getNodeIterator(), ChangeType.delete, others);
+            bos.write("  </delete>\n");
+        }
+    }
+
+    /**
+     * Writes the elements of the given change type, and adds the types of
+     * the others to <code>others</code>.
+     */
+    private void outputRelations(Writer out, Iterator<Relation> relationIter, ChangeType changeType,
+            Set<ChangeType> others) throws IOException {
         while (relationIter.hasNext()) {
             Relation way = relationIter.next();
+            if (way.getChangeType() != changeType) {
+                others.add(way.getChangeType());
+                continue;
+            }
+            if (!firstTime(way)) {
+                continue;
+            }
     
             out.write("    <relation id=\"");
             out.write(Integer.toString(way.getID()));
+            if (outputVersion(out, way)) {
+                continue;
+            }
             out.write("\">\n");
     
             Iterator<Member> memberIter = way.getMemberIterator();
@@ -111,12 +252,23 @@ public class OSMChangeOutputter extends AbstractOutputter {
         }
     }
 
-    private static void outputWays(Writer out, Iterator<Way> wayIter) throws IOException {
+    private void outputWays(Writer out, Iterator<Way> wayIter, ChangeType changeType,
+            Set<ChangeType> others) throws IOException {
         while (wayIter.hasNext()) {
             Way way = (Way) wayIter.next();
+            if (way.getChangeType() != changeType) {
+                others.add(way.getChangeType());
+                continue;
+            }
+            if (!firstTime(way)) {
+                continue;
+            }
     
             out.write("    <way id=\"");
             out.write(Integer.toString(way.getID()));
+            if (outputVersion(out, way)) {
+                continue;
+            }
             out.write("\">\n");
     
             Iterator<Node> nodeIter = way.getNodeIterator();
@@ -139,12 +291,23 @@ public class OSMChangeOutputter extends AbstractOutputter {
         }
     }
 
-    private static void outputNodes(Writer out, Iterator<Node> nodeIter) throws IOException {
+    private void outputNodes(Writer out, Iterator<Node> nodeIter, ChangeType changeType,
+            Set<ChangeType> others) throws IOException {
         while (nodeIter.hasNext()) {
             Node node = nodeIter.next();
+            if (node.getChangeType() != changeType) {
+                others.add(node.getChangeType());
+                continue;
+            }
+            if (!firstTime(node)) {
+                continue;
+            }
     
             out.write("    <node id=\"");
             out.write(Integer.toString(node.getID()));
+            if (outputVersion(out, node)) {
+                continue;
+            }
             out.write("\" lat=\"");
             out.write(LAT_LON_FORMAT.format(node.getLat()));
             out.write("\" lon=\"");
@@ -165,6 +328,44 @@ public class OSMChangeOutputter extends AbstractOutputter {
         }
     }
 
+    /**
+     * @return False if the element already went out to the stream in an
+     *         earlier batch. Always true when writing files.
+     */
+    private boolean firstTime(Primitive primitive) {
+        if (written == null) {
+            return true;
+        }
+        long key = ((long) primitive.getType().ordinal() << 32) | (primitive.getID() & 0xffffffffL);
+        if (written.containsKey(key)) {
+            return false;
+        }
+        written.put(key, 1);
+        return true;
+    }
+
+    /**
+     * Writes the version of an element that is modified or deleted. The
+     * contents of a deleted element don't matter, so it is closed right
+     * away.
+     * 
+     * @return True if the element was closed.
+     */
+    private static boolean outputVersion(Writer out, Primitive primitive) throws IOException {
+        if (primitive.getChangeType() == ChangeType.create) {
+            return false;
+        }
+        if (primitive.getVersion() != null) {
+            out.write("\" version=\"");
+            out.write(primitive.getVersion().toString());
+        }
+        if (primitive.getChangeType() == ChangeType.delete) {
+            out.write("\"/>\n");
+            return true;
+        }
+        return false;
+    }
+
     private static void outputTags(Writer out, Iterator<Tag> tagIter) throws IOException {
         while (tagIter.hasNext()) {
             Tag tag = tagIter.next();
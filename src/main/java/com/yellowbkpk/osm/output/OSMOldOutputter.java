@@ -1,19 +1,26 @@
 package com.yellowbkpk.osm.output;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.Iterator;
 
+import com.yellowbkpk.osm.ElementStore;
 import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.primitive.ChangeType;
 import com.yellowbkpk.osm.primitive.Primitive;
 import com.yellowbkpk.osm.primitive.Tag;
 import com.yellowbkpk.osm.primitive.node.Node;
 import com.yellowbkpk.osm.primitive.way.Way;
 import com.yellowbkpk.osm.relation.Member;
 import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.PipelineMetrics;
+import com.yellowbkpk.osm.util.PipelineMetrics.Stage;
 
 
 public class OSMOldOutputter extends AbstractOutputter {
@@ -26,8 +33,9 @@ public class OSMOldOutputter extends AbstractOutputter {
 
     private File rootDir;
     private String filePre;
-    private int count = 0;
     private String generator;
+    private OutputStream stream;
+    private Writer streamWriter;
 
     public OSMOldOutputter(File rootDirFile, String filePrefix, String generatorString) {
         rootDir = rootDirFile;
@@ -35,32 +43,107 @@ public class OSMOldOutputter extends AbstractOutputter {
         generator = generatorString;
     }
 
+    /**
+     * Writes one document to the given stream, such as standard output,
+     * instead of numbered files. Everything is staged until this outputter
+     * finishes and then written in one go, so that each element is in the
+     * document once and nodes come before the ways that use them. This is a
+     * limitation of the osm format, where every node has to come before the
+     * first way; {@link OSMChangeOutputter} writes a stream batch by batch.
+     * The element, byte and heap limits don't apply, so use compact staging
+     * for big inputs. The stream is flushed but not closed.
+     */
+    public OSMOldOutputter(OutputStream stream, String generatorString) {
+        this.stream = stream;
+        generator = generatorString;
+    }
+
+    @Override
+    public void start() {
+        if (stream != null) {
+            streamWriter();
+        }
+    }
+
     public void write(OSMFile osmOut) {
-        File actualOutFile = new File(rootDir, filePre + count + ".xml");
+        if (stream != null) {
+            stage(osmOut);
+        } else {
+            writeElements(osmOut);
+        }
+    }
+
+    @Override
+    protected boolean checkChanges() {
+        return stream == null && super.checkChanges();
+    }
+
+    @Override
+    protected void writeElements(ElementStore osmOut) {
+        if (stream != null) {
+            long started = PipelineMetrics.start();
+            try {
+                writeBody(streamWriter(), osmOut);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to the output stream.", e);
+            }
+            PipelineMetrics.get().stop(Stage.serialize, started);
+            return;
+        }
+
+        File actualOutFile = new File(rootDir, filePre + nextFileNumber() + ".xml");
         saveOsmOut(osmOut, actualOutFile);
-        count++;
     }
 
-    private void saveOsmOut(OSMFile osmOut, File actualOutput) {
+    @Override
+    public void finish() {
+        super.finish();
+        if (stream != null) {
+            long started = PipelineMetrics.start();
+            try {
+                Writer out = streamWriter();
+                writeFooter(out);
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to the output stream.", e);
+            }
+            PipelineMetrics.get().stop(Stage.serialize, started);
+            PipelineMetrics.get().addFileWritten();
+            streamWriter = null;
+        }
+    }
+
+    /**
+     * @return The writer for the stream, opened with the start of the
+     *         document the first time.
+     */
+    private Writer streamWriter() {
+        if (streamWriter == null) {
+            try {
+                streamWriter = openWriter(stream);
+                writeHeader(streamWriter);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write to the output stream.", e);
+            }
+        }
+        return streamWriter;
+    }
+
+    private static Writer openWriter(OutputStream out) throws IOException {
+        return new OutputStreamWriter(new BufferedOutputStream(new MeteredOutputStream(out, Stage.serialize)),
+                "UTF-8");
+    }
+
+    private void saveOsmOut(ElementStore osmOut, File actualOutput) {
+        long started = PipelineMetrics.start();
         System.err.println("Writing out to file " + actualOutput.getAbsolutePath() + ".");
     
         // Now write out the file
         try {
-            FileWriter bos = new FileWriter(actualOutput);
-    
-            bos.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-            bos.write("<osm version=\"0.5\" generator=\""+generator+"\">\n");
-    
-            Iterator<Node> nodeIter = osmOut.getNodeIterator();
-            outputNodes(bos, nodeIter);
-    
-            Iterator<Way> wayIter = osmOut.getWayIterator();
-            outputWays(bos, wayIter);
-    
-            Iterator<Relation> relationIter = osmOut.getRelationIterator();
-            outputRelations(bos, relationIter);
-    
-            bos.write("</osm>\n");
+            Writer bos = openWriter(new FileOutputStream(actualOutput));
+            writeHeader(bos);
+            writeBody(bos, osmOut);
+            writeFooter(bos);
     
             bos.flush();
             bos.close();
@@ -70,9 +153,32 @@ public class OSMOldOutputter extends AbstractOutputter {
             e.printStackTrace();
         }
         
+        PipelineMetrics.get().stop(Stage.serialize, started);
+        PipelineMetrics.get().addFileWritten();
+
         System.err.println("Done.");
     }
 
+    private void writeHeader(Writer bos) throws IOException {
+        bos.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        bos.write("<osm version=\"0.5\" generator=\""+generator+"\">\n");
+    }
+
+    private static void writeFooter(Writer bos) throws IOException {
+        bos.write("</osm>\n");
+    }
+
+    private static void writeBody(Writer bos, ElementStore osmOut) throws IOException {
+        Iterator<Node> nodeIter = osmOut.getNodeIterator();
+        outputNodes(bos, nodeIter);
+
+        Iterator<Way> wayIter = osmOut.getWayIterator();
+        outputWays(bos, wayIter);
+
+        Iterator<Relation> relationIter = osmOut.getRelationIterator();
+        outputRelations(bos, relationIter);
+    }
+
     private static void outputRelations(Writer out, Iterator<Relation> relationIter) throws IOException {
         while (relationIter.hasNext()) {
             Relation relation = relationIter.next();
@@ -173,6 +279,11 @@ public class OSMOldOutputter extends AbstractOutputter {
         } else {
             writeAttr(out, "visible", "false");
         }
+
+        // The way JOSM marks changes in a plain OSM file
+        if (prim.getChangeType() != ChangeType.create) {
+            writeAttr(out, "action", prim.getChangeType().toString());
+        }
     }
     
     private static void writeAttr(Writer out, String key, String value) throws IOException {
@@ -1,12 +1,13 @@
 package com.yellowbkpk.osm.output;
 
-import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.ElementStore;
 
 public interface OutputFilter {
 
     /**
-     * @param out
+     * @param in The elements to filter, which are left as they are.
+     * @param out Where to add the filtered elements. It isn't finished.
      */
-    OSMFile apply(OSMFile out);
+    void apply(ElementStore in, OSMOutputter out);
 
 }
@@ -0,0 +1,241 @@
+package com.yellowbkpk.osm.output;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.util.ConversionEvents;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * Packs whole features into files that never go over the element limit, so
+ * that each file can be uploaded as one changeset. A feature is a node, a
+ * way with its nodes, or a relation with its members and their nodes, and
+ * is never split between files.
+ * <p>
+ * Features are held in a window of a fixed number of features. When the
+ * window is full, its features are packed first-fit decreasing: biggest
+ * first, each into the first file with room for it. Every file but the
+ * emptiest is then written, and the emptiest stays open for the next
+ * window. A feature's size is its number of distinct elements, and a file
+ * is full when its features' sizes add up to the limit, so an element that
+ * two features in a file share is counted twice and files can come out a
+ * little under the limit, but never over it. A feature bigger than the
+ * limit gets a file of its own.
+ * <p>
+ * Features that share a node, such as the pieces a long line is split
+ * into, are packed as one unit so that they end up in the same file. The
+ * unit holding the last feature added is carried over into the next window
+ * rather than packed, since the rest of its pieces may still be coming.
+ * <p>
+ * Files are handed to the final outputter's {@link OSMOutputter#write(OSMFile)}
+ * as they are packed, so its own limits don't apply. It is finished once the
+ * last file has been written.
+ */
+public class PackingOutputter implements OSMOutputter {
+
+    private static Logger log = Logger.getLogger(PackingOutputter.class.getName());
+
+    private static final Comparator<OSMFile> BIGGEST_FIRST = new Comparator<OSMFile>() {
+        public int compare(OSMFile o1, OSMFile o2) {
+            return o2.getChangeCount() - o1.getChangeCount();
+        }
+    };
+
+    private final OSMOutputter finalOutput;
+    private final int windowSize;
+    private int maxElements = 50000;
+
+    private static final int MISSING = -1;
+
+    private List<OSMFile> window = new ArrayList<OSMFile>();
+    private LongIntHashMap nodeUnits = new LongIntHashMap(MISSING);
+    private int held = 0;
+    private OSMFile open;
+    private int openSize;
+
+    private int fileCount = 0;
+    private int oversized = 0;
+
+    /**
+     * @param windowSize How many features to hold and pack at once.
+     */
+    public PackingOutputter(OSMOutputter finalOutput, int windowSize) {
+        this.finalOutput = finalOutput;
+        this.windowSize = windowSize;
+    }
+
+    public void addNode(Node node) {
+        OSMFile feature = new OSMFile();
+        feature.addNode(node);
+        hold(feature);
+    }
+
+    public void addWay(Way way) {
+        OSMFile feature = new OSMFile();
+        feature.addWay(way);
+        hold(feature);
+    }
+
+    public void addRelation(Relation relation) {
+        OSMFile feature = new OSMFile();
+        feature.addRelation(relation);
+        hold(feature);
+    }
+
+    public void finish() {
+        flush();
+        log.log(Level.INFO, "Packed features into " + fileCount + " files of at most " + maxElements
+                + " elements" + (oversized > 0 ? ", apart from " + oversized + " features bigger than that." : "."));
+        finalOutput.finish();
+    }
+
+    public void start() {
+        finalOutput.start();
+    }
+
+    /**
+     * @param maxPerFile The most elements to put in a file.
+     */
+    public void setMaxElementsPerFile(int maxPerFile) {
+        maxElements = maxPerFile;
+    }
+
+    /**
+     * Packs the features in a whole file, such as everything held back for
+     * glomming. Relations that aren't members of another relation, ways that
+     * aren't members of a relation and nodes that are in neither a way nor
+     * a relation each become a feature. They are all written before this
+     * returns, since whoever passes a whole file may not finish this
+     * outputter afterwards.
+     */
+    public void write(OSMFile out) {
+        Features.addAll(out, this);
+        flush();
+    }
+
+    private void hold(OSMFile feature) {
+        int unit = window.size();
+        window.add(feature);
+        held++;
+
+        List<Node> nodes = new ArrayList<Node>(feature.getNodeCount());
+        Iterator<Node> nodeIter = feature.getNodeIterator();
+        while (nodeIter.hasNext()) {
+            nodes.add(nodeIter.next());
+        }
+        for (Node node : nodes) {
+            int other = nodeUnits.get(node.getID());
+            if (other == MISSING) {
+                nodeUnits.put(node.getID(), unit);
+            } else if (other != unit) {
+                merge(unit, other);
+                unit = other;
+            }
+        }
+
+        if (held >= windowSize && held > 1) {
+            OSMFile carried = window.get(unit);
+            window.set(unit, null);
+            pack();
+            hold(carried);
+        }
+    }
+
+    /**
+     * Moves a unit's elements into another unit.
+     */
+    private void merge(int from, int to) {
+        OSMFile source = window.get(from);
+        window.get(to).appendTo(source);
+        Iterator<Node> nodeIter = source.getNodeIterator();
+        while (nodeIter.hasNext()) {
+            nodeUnits.put(nodeIter.next().getID(), to);
+        }
+        window.set(from, null);
+        held--;
+    }
+
+    private void flush() {
+        pack();
+        if (open != null) {
+            writeFile(open);
+            open = null;
+        }
+    }
+
+    private void pack() {
+        List<OSMFile> units = new ArrayList<OSMFile>(held);
+        for (OSMFile unit : window) {
+            if (unit != null) {
+                units.add(unit);
+            }
+        }
+        window.clear();
+        nodeUnits.clear();
+        held = 0;
+        Collections.sort(units, BIGGEST_FIRST);
+
+        List<OSMFile> files = new ArrayList<OSMFile>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        if (open != null) {
+            files.add(open);
+            sizes.add(openSize);
+        }
+        for (OSMFile feature : units) {
+            int size = feature.getChangeCount();
+            if (size > maxElements) {
+                oversized++;
+                writeFile(feature);
+                continue;
+            }
+
+            int fits = -1;
+            for (int i = 0; i < files.size() && fits < 0; i++) {
+                if (sizes.get(i) + size <= maxElements) {
+                    fits = i;
+                }
+            }
+            if (fits < 0) {
+                files.add(new OSMFile());
+                sizes.add(0);
+                fits = files.size() - 1;
+            }
+            files.get(fits).appendTo(feature);
+            sizes.set(fits, sizes.get(fits) + size);
+        }
+
+        int emptiest = -1;
+        for (int i = 0; i < files.size(); i++) {
+            if (emptiest < 0 || sizes.get(i) < sizes.get(emptiest)) {
+                emptiest = i;
+            }
+        }
+        open = null;
+        for (int i = 0; i < files.size(); i++) {
+            if (i == emptiest) {
+                open = files.get(i);
+                openSize = sizes.get(i);
+            } else {
+                writeFile(files.get(i));
+            }
+        }
+    }
+
+    private void writeFile(OSMFile file) {
+        ConversionEvents events = ConversionEvents.get();
+        Object event = events.beginChunkWrite();
+        finalOutput.write(file);
+        events.endChunkWrite(event, file.getChangeCount());
+        fileCount++;
+    }
+
+}
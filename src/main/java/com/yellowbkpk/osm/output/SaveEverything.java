@@ -1,31 +1,114 @@
 package com.yellowbkpk.osm.output;
 
 
+import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 
+import com.yellowbkpk.osm.ElementStore;
 import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.SpillingOSMFile;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Relation;
 
+/**
+ * Holds on to everything until the end, so that the filters see the whole
+ * dataset at once. Elements are kept in a {@link SpillingOSMFile}, which
+ * moves them to memory-mapped temporary files once they take up more than
+ * the heap budget, a quarter of the maximum heap unless
+ * {@link #setHeapBudget(long)} says otherwise.
+ * <p>
+ * At the end, the elements are read back one feature at a time and passed
+ * to the filters, which add what they make of them to the final outputter,
+ * or straight to the final outputter if there are no filters. Only the IDs
+ * of way nodes and relation members are held on the heap while doing so.
+ */
 public class SaveEverything extends AbstractOutputter {
 
     private List<OutputFilter> filters = new LinkedList<OutputFilter>();
     private OSMOutputter finalOutput;
+    private File tempDir;
+    private long heapBudget = Runtime.getRuntime().maxMemory() / 4;
     
     public SaveEverything(OSMOutputter finalOutput) {
+        this(finalOutput, null);
+    }
+
+    /**
+     * @param tempDir Where to spill to, or null for the default temporary
+     *            directory.
+     */
+    public SaveEverything(OSMOutputter finalOutput, File tempDir) {
         this.finalOutput = finalOutput;
+        this.tempDir = tempDir;
+        setStorage(new SpillingOSMFile(heapBudget, tempDir));
     }
     
-    private boolean checkChanges() {
+    @Override
+    protected boolean checkChanges() {
         // Never save the file.
         return false;
     }
+
+    /**
+     * @param heapBudget How many bytes of heap to keep elements in before
+     *            spilling the rest. Call before adding anything.
+     */
+    @Override
+    public void setHeapBudget(long heapBudget) {
+        this.heapBudget = heapBudget;
+        setStorage(new SpillingOSMFile(heapBudget, tempDir));
+    }
     
+    /**
+     * Passes everything through the filters to the final outputter.
+     */
+    @Override
+    protected void writeElements(ElementStore everything) {
+        applyFilters(everything);
+    }
+
+    /**
+     * Writes everything, then finishes the final outputter.
+     */
+    @Override
+    public void finish() {
+        super.finish();
+        finalOutput.finish();
+    }
+
     public void write(OSMFile out) {
-        for (OutputFilter filter : filters) {
-            out = filter.apply(out);
+        if (filters.isEmpty()) {
+            finalOutput.write(out);
+        } else {
+            applyFilters(out);
+        }
+    }
+
+    /**
+     * Each filter but the last adds its elements to a new
+     * {@link SpillingOSMFile} for the next one.
+     */
+    private void applyFilters(ElementStore in) {
+        if (filters.isEmpty()) {
+            Features.addAll(in, finalOutput);
+            return;
+        }
+
+        ElementStore stage = in;
+        for (int i = 0; i < filters.size() - 1; i++) {
+            ElementStore next = new SpillingOSMFile(heapBudget, tempDir);
+            filters.get(i).apply(stage, new StoreOutputter(next));
+            if (stage != in) {
+                stage.clear();
+            }
+            stage = next;
+        }
+        filters.get(filters.size() - 1).apply(stage, finalOutput);
+        if (stage != in) {
+            stage.clear();
         }
-        
-        finalOutput.write(out);
     }
 
     /**
@@ -37,4 +120,45 @@ public class SaveEverything extends AbstractOutputter {
         return this;
     }
 
+    /**
+     * Adds elements to a store, for the filters to read.
+     */
+    private static class StoreOutputter implements OSMOutputter {
+
+        private final ElementStore store;
+
+        StoreOutputter(ElementStore store) {
+            this.store = store;
+        }
+
+        public void setMaxElementsPerFile(int maxPerFile) {
+
+        }
+
+        public void start() {
+
+        }
+
+        public void addWay(Way way) {
+            store.addWay(way);
+        }
+
+        public void addRelation(Relation relation) {
+            store.addRelation(relation);
+        }
+
+        public void addNode(Node node) {
+            store.addNode(node);
+        }
+
+        public void finish() {
+
+        }
+
+        public void write(OSMFile out) {
+            Features.addAll(out, this);
+        }
+
+    }
+
 }
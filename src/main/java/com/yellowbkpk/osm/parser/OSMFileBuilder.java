@@ -0,0 +1,173 @@
+package com.yellowbkpk.osm.parser;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.yellowbkpk.osm.OSMFile;
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.User;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.node.NodeByRef;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.primitive.way.WayByRef;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+import com.yellowbkpk.osm.relation.RelationByRef;
+import com.yellowbkpk.osm.util.LongIntHashMap;
+
+/**
+ * Builds an {@link OSMFile} out of the elements of a stream. References are
+ * resolved through ID indexes as the elements arrive; anything referenced
+ * before it is read becomes a by-ref placeholder, just like anything that
+ * isn't in the file at all.
+ * <p>
+ * Tag keys and values (and user names) are stored XML-escaped, the same way
+ * the converter stores them, so that they can be written straight back out.
+ */
+public class OSMFileBuilder implements OSMStreamHandler {
+
+    private static final int MISSING = -1;
+
+    private final OSMFile file = new OSMFile();
+
+    private final LongIntHashMap nodeIndex = new LongIntHashMap(MISSING);
+    private final LongIntHashMap wayIndex = new LongIntHashMap(MISSING);
+    private final LongIntHashMap relationIndex = new LongIntHashMap(MISSING);
+    private Node[] nodes = new Node[1024];
+    private Way[] ways = new Way[256];
+    private Relation[] relations = new Relation[16];
+    private int nodeCount;
+    private int wayCount;
+    private int relationCount;
+
+    private Primitive currentPrimitive;
+    private Node currentNode;
+    private Way currentWay;
+    private Relation currentRelation;
+
+    public void startNode(int id, int version, double lat, double lon) {
+        currentNode = new Node(lat, lon);
+        startPrimitive(currentNode, id, version);
+    }
+
+    public void endNode() {
+        file.addNode(currentNode);
+        // A repeated ID replaces the earlier element in the index.
+        int index = nodeIndex.get(currentNode.getID());
+        if (index == MISSING) {
+            index = nodeCount++;
+            if (index == nodes.length) {
+                Node[] bigger = new Node[nodes.length * 2];
+                System.arraycopy(nodes, 0, bigger, 0, index);
+                nodes = bigger;
+            }
+            nodeIndex.put(currentNode.getID(), index);
+        }
+        nodes[index] = currentNode;
+        currentNode = null;
+    }
+
+    public void startWay(int id, int version) {
+        currentWay = new Way();
+        startPrimitive(currentWay, id, version);
+    }
+
+    public void wayNode(int ref) {
+        currentWay.addNode(findNode(ref));
+    }
+
+    public void endWay() {
+        file.addWay(currentWay);
+        int index = wayIndex.get(currentWay.getID());
+        if (index == MISSING) {
+            index = wayCount++;
+            if (index == ways.length) {
+                Way[] bigger = new Way[ways.length * 2];
+                System.arraycopy(ways, 0, bigger, 0, index);
+                ways = bigger;
+            }
+            wayIndex.put(currentWay.getID(), index);
+        }
+        ways[index] = currentWay;
+        currentWay = null;
+    }
+
+    public void startRelation(int id, int version) {
+        currentRelation = new Relation();
+        startPrimitive(currentRelation, id, version);
+    }
+
+    public void member(PrimitiveTypeEnum type, int ref, String role) {
+        Primitive member;
+        if (PrimitiveTypeEnum.node.equals(type)) {
+            member = findNode(ref);
+        } else if (PrimitiveTypeEnum.way.equals(type)) {
+            int index = wayIndex.get(ref);
+            member = index == MISSING ? new WayByRef(ref) : ways[index];
+        } else {
+            int index = relationIndex.get(ref);
+            member = index == MISSING ? new RelationByRef(ref) : relations[index];
+        }
+        currentRelation.addMember(new Member(member, role));
+    }
+
+    public void endRelation() {
+        file.addRelation(currentRelation);
+        int index = relationIndex.get(currentRelation.getID());
+        if (index == MISSING) {
+            index = relationCount++;
+            if (index == relations.length) {
+                Relation[] bigger = new Relation[relations.length * 2];
+                System.arraycopy(relations, 0, bigger, 0, index);
+                relations = bigger;
+            }
+            relationIndex.put(currentRelation.getID(), index);
+        }
+        relations[index] = currentRelation;
+        currentRelation = null;
+    }
+
+    public void user(int uid, String name) {
+        currentPrimitive.setUser(new User(uid, escape(name)));
+    }
+
+    public void tag(String key, String value) {
+        currentPrimitive.addTag(new Tag(escape(key), escape(value)));
+    }
+
+    /**
+     * @return The file built so far. Guaranteed to not be null.
+     */
+    public OSMFile getOSMFile() {
+        return file;
+    }
+
+    private void startPrimitive(Primitive primitive, int id, int version) {
+        primitive.setID(id);
+        if (version >= 0) {
+            primitive.setVersion(version);
+        }
+        currentPrimitive = primitive;
+    }
+
+    private Node findNode(int id) {
+        int index = nodeIndex.get(id);
+        return index == MISSING ? new NodeByRef(id) : nodes[index];
+    }
+
+    /**
+     * Escapes only when there's something to escape, which for almost every
+     * key and value there isn't. Keys come in interned, and stay shared.
+     */
+    private static String escape(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0x7f || c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') {
+                return StringEscapeUtils.escapeXml(s);
+            }
+        }
+        return s;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.yellowbkpk.osm.parser;
+
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+
+/**
+ * Receives the elements of an OSM file from an {@link OSMStreamReader} as
+ * they are read. Nothing is kept by the reader, so a handler that doesn't
+ * build anything can walk files of any size.
+ * <p>
+ * Calls come in document order: a start call, the element's tags, node refs
+ * or members, then the matching end call.
+ */
+public interface OSMStreamHandler {
+
+    /**
+     * @param version The version attribute, or -1 if there was none.
+     */
+    void startNode(int id, int version, double lat, double lon);
+
+    void endNode();
+
+    void startWay(int id, int version);
+
+    /**
+     * @param ref The ID of the next node of the current way.
+     */
+    void wayNode(int ref);
+
+    void endWay();
+
+    void startRelation(int id, int version);
+
+    void member(PrimitiveTypeEnum type, int ref, String role);
+
+    void endRelation();
+
+    /**
+     * The user that last edited the current node, way or relation, if the
+     * file says.
+     */
+    void user(int uid, String name);
+
+    /**
+     * A tag on the current node, way or relation. Keys are interned by the
+     * reader, so the same key is always the same String instance. Both key
+     * and value have had their XML entities decoded.
+     */
+    void tag(String key, String value);
+
+}
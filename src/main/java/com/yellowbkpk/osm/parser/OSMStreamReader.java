@@ -0,0 +1,634 @@
+package com.yellowbkpk.osm.parser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import com.yellowbkpk.osm.primitive.PrimitiveTypeEnum;
+
+/**
+ * Reads OSM XML (and osmChange) straight from bytes and hands every element
+ * to an {@link OSMStreamHandler}. There is no DOM, no SAX attribute objects
+ * and no intermediate Strings for numbers: IDs and coordinates are parsed
+ * directly out of the read buffer, and tag keys, member roles and user names come from a
+ * cache so each distinct one is only decoded once.
+ * <p>
+ * Only the parts of XML that OSM files use are understood: elements,
+ * attributes, the five predefined entities plus character references, and
+ * comments, processing instructions and doctype declarations (which are
+ * skipped). Wrapper elements such as <code>osm</code>, <code>bounds</code>
+ * or <code>create</code> are ignored.
+ */
+public class OSMStreamReader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] NODE = ascii("node");
+    private static final byte[] WAY = ascii("way");
+    private static final byte[] RELATION = ascii("relation");
+    private static final byte[] TAG = ascii("tag");
+    private static final byte[] ND = ascii("nd");
+    private static final byte[] MEMBER = ascii("member");
+
+    private static final byte[] ATTR_ID = ascii("id");
+    private static final byte[] ATTR_VERSION = ascii("version");
+    private static final byte[] ATTR_LAT = ascii("lat");
+    private static final byte[] ATTR_LON = ascii("lon");
+    private static final byte[] ATTR_REF = ascii("ref");
+    private static final byte[] ATTR_K = ascii("k");
+    private static final byte[] ATTR_V = ascii("v");
+    private static final byte[] ATTR_TYPE = ascii("type");
+    private static final byte[] ATTR_ROLE = ascii("role");
+    private static final byte[] ATTR_UID = ascii("uid");
+    private static final byte[] ATTR_USER = ascii("user");
+
+    private static final double[] POWERS_OF_TEN = new double[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private byte[] buf = new byte[1 << 16];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    // Name and value ranges in buf of the current element's attributes
+    private int attrCount;
+    private int[] nameStart = new int[16];
+    private int[] nameEnd = new int[16];
+    private int[] valueStart = new int[16];
+    private int[] valueEnd = new int[16];
+
+    private final StringCache cache = new StringCache();
+
+    public OSMStreamReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads a whole file into the handler and closes it again.
+     */
+    public static void read(File file, OSMStreamHandler handler) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            new OSMStreamReader(in).parse(handler);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads to the end of the stream, calling the handler for every element.
+     * The stream is not closed.
+     */
+    public void parse(OSMStreamHandler handler) throws IOException {
+        while (skipToMarkup()) {
+            if (startsWith("<!--")) {
+                skipPast("-->");
+                continue;
+            }
+
+            int end = tagEnd();
+            byte second = buf[pos + 1];
+            if (second == '?' || second == '!') {
+                // Declarations and processing instructions
+            } else if (second == '/') {
+                int nameStart = pos + 2;
+                int nameEnd = nameEnd(nameStart, end);
+                if (matches(NODE, nameStart, nameEnd)) {
+                    handler.endNode();
+                } else if (matches(WAY, nameStart, nameEnd)) {
+                    handler.endWay();
+                } else if (matches(RELATION, nameStart, nameEnd)) {
+                    handler.endRelation();
+                }
+            } else {
+                startElement(handler, end);
+            }
+            pos = end + 1;
+        }
+    }
+
+    private void startElement(OSMStreamHandler handler, int end) throws IOException {
+        int elementStart = pos + 1;
+        int elementEnd = nameEnd(elementStart, end);
+        boolean empty = buf[end - 1] == '/';
+        readAttributes(elementEnd, empty ? end - 1 : end);
+
+        if (matches(ND, elementStart, elementEnd)) {
+            handler.wayNode(intAttribute(ATTR_REF));
+        } else if (matches(TAG, elementStart, elementEnd)) {
+            handler.tag(cachedAttribute(ATTR_K), stringAttribute(ATTR_V));
+        } else if (matches(NODE, elementStart, elementEnd)) {
+            handler.startNode(intAttribute(ATTR_ID), versionAttribute(), doubleAttribute(ATTR_LAT),
+                    doubleAttribute(ATTR_LON));
+            user(handler);
+            if (empty) {
+                handler.endNode();
+            }
+        } else if (matches(WAY, elementStart, elementEnd)) {
+            handler.startWay(intAttribute(ATTR_ID), versionAttribute());
+            user(handler);
+            if (empty) {
+                handler.endWay();
+            }
+        } else if (matches(MEMBER, elementStart, elementEnd)) {
+            int type = attribute(ATTR_TYPE);
+            PrimitiveTypeEnum memberType;
+            if (type >= 0 && matches(NODE, valueStart[type], valueEnd[type])) {
+                memberType = PrimitiveTypeEnum.node;
+            } else if (type >= 0 && matches(WAY, valueStart[type], valueEnd[type])) {
+                memberType = PrimitiveTypeEnum.way;
+            } else if (type >= 0 && matches(RELATION, valueStart[type], valueEnd[type])) {
+                memberType = PrimitiveTypeEnum.relation;
+            } else {
+                throw malformed("Unknown member type");
+            }
+            String role = attribute(ATTR_ROLE) < 0 ? "" : cachedAttribute(ATTR_ROLE);
+            handler.member(memberType, intAttribute(ATTR_REF), role);
+        } else if (matches(RELATION, elementStart, elementEnd)) {
+            handler.startRelation(intAttribute(ATTR_ID), versionAttribute());
+            user(handler);
+            if (empty) {
+                handler.endRelation();
+            }
+        }
+    }
+
+    private void user(OSMStreamHandler handler) throws IOException {
+        if (attribute(ATTR_UID) >= 0 && attribute(ATTR_USER) >= 0) {
+            handler.user(intAttribute(ATTR_UID), cachedAttribute(ATTR_USER));
+        }
+    }
+
+    /**
+     * Moves pos to the next '<', reading more input as needed.
+     *
+     * @return False at the end of the input.
+     */
+    private boolean skipToMarkup() throws IOException {
+        while (true) {
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '<') {
+                    pos = i;
+                    return true;
+                }
+            }
+            pos = limit;
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Finds the '>' closing the tag that starts at pos, making sure the whole
+     * tag is in the buffer. Quoted attribute values may contain '>'.
+     *
+     * @return The index of the '>'.
+     */
+    private int tagEnd() throws IOException {
+        int i = pos + 1;
+        byte quote = 0;
+        while (true) {
+            if (i == limit) {
+                int scanned = i - pos;
+                if (!fill()) {
+                    throw malformed("Unexpected end of input inside a tag");
+                }
+                i = pos + scanned;
+                continue;
+            }
+
+            byte b = buf[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    private boolean startsWith(String prefix) throws IOException {
+        while (limit - pos < prefix.length()) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipPast(String terminator) throws IOException {
+        int length = terminator.length();
+        int i = pos;
+        while (true) {
+            if (i + length > limit) {
+                int scanned = i - pos;
+                if (!fill()) {
+                    throw malformed("Unexpected end of input looking for " + terminator);
+                }
+                i = pos + scanned;
+                continue;
+            }
+
+            boolean found = true;
+            for (int j = 0; j < length && found; j++) {
+                found = buf[i + j] == terminator.charAt(j);
+            }
+            if (found) {
+                pos = i + length;
+                return;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Reads more input, keeping everything from pos on. The data may move,
+     * in which case pos is updated.
+     *
+     * @return False if there was nothing left to read.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            byte[] bigger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, limit);
+            buf = bigger;
+        }
+
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private int nameEnd(int start, int end) {
+        int i = start;
+        while (i < end && !isWhitespace(buf[i]) && buf[i] != '/') {
+            i++;
+        }
+        return i;
+    }
+
+    private void readAttributes(int start, int end) throws IOException {
+        attrCount = 0;
+        int i = start;
+        while (true) {
+            while (i < end && isWhitespace(buf[i])) {
+                i++;
+            }
+            if (i >= end) {
+                return;
+            }
+
+            int nameBegin = i;
+            while (i < end && buf[i] != '=' && !isWhitespace(buf[i])) {
+                i++;
+            }
+            int nameFinish = i;
+            while (i < end && buf[i] != '"' && buf[i] != '\'') {
+                i++;
+            }
+            if (i >= end) {
+                throw malformed("Attribute without a value");
+            }
+            byte quote = buf[i++];
+            int valueBegin = i;
+            while (buf[i] != quote) {
+                i++;
+            }
+
+            if (attrCount == nameStart.length) {
+                nameStart = grow(nameStart);
+                nameEnd = grow(nameEnd);
+                valueStart = grow(valueStart);
+                valueEnd = grow(valueEnd);
+            }
+            nameStart[attrCount] = nameBegin;
+            nameEnd[attrCount] = nameFinish;
+            valueStart[attrCount] = valueBegin;
+            valueEnd[attrCount] = i;
+            attrCount++;
+            i++;
+        }
+    }
+
+    /**
+     * @return The index of the named attribute of the current element, or -1.
+     */
+    private int attribute(byte[] name) {
+        for (int a = 0; a < attrCount; a++) {
+            if (matches(name, nameStart[a], nameEnd[a])) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    private int requiredAttribute(byte[] name) throws IOException {
+        int a = attribute(name);
+        if (a < 0) {
+            throw malformed("Missing attribute " + new String(name, UTF8));
+        }
+        return a;
+    }
+
+    private int versionAttribute() throws IOException {
+        int a = attribute(ATTR_VERSION);
+        return a < 0 ? -1 : parseInt(valueStart[a], valueEnd[a]);
+    }
+
+    private int intAttribute(byte[] name) throws IOException {
+        int a = requiredAttribute(name);
+        return parseInt(valueStart[a], valueEnd[a]);
+    }
+
+    private double doubleAttribute(byte[] name) throws IOException {
+        int a = requiredAttribute(name);
+        return parseDouble(valueStart[a], valueEnd[a]);
+    }
+
+    private String stringAttribute(byte[] name) throws IOException {
+        int a = requiredAttribute(name);
+        try {
+            return decode(buf, valueStart[a], valueEnd[a]);
+        } catch (IllegalArgumentException e) {
+            throw malformed(e.getMessage());
+        }
+    }
+
+    private String cachedAttribute(byte[] name) throws IOException {
+        int a = requiredAttribute(name);
+        try {
+            return cache.get(buf, valueStart[a], valueEnd[a]);
+        } catch (IllegalArgumentException e) {
+            throw malformed(e.getMessage());
+        }
+    }
+
+    private int parseInt(int start, int end) throws IOException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            throw malformed("Empty number");
+        }
+
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw malformed("Bad integer \"" + new String(buf, start, end - start, UTF8) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw malformed("Integer out of range \"" + new String(buf, start, end - start, UTF8) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses plain decimals such as OSM coordinates without going through a
+     * String. Dividing an exactly representable integer by an exactly
+     * representable power of ten rounds correctly, so this gives the same
+     * result as Double.parseDouble; anything fancier falls back to it.
+     */
+    private double parseDouble(int start, int end) throws IOException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean inFraction = false;
+        boolean simple = i < end;
+        for (; i < end && simple; i++) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (inFraction) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                simple = false;
+            }
+        }
+
+        if (simple && digits <= 15 && fractionDigits < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+
+        try {
+            return Double.parseDouble(new String(buf, start, end - start, UTF8));
+        } catch (NumberFormatException e) {
+            throw malformed("Bad number \"" + new String(buf, start, end - start, UTF8) + "\"");
+        }
+    }
+
+    private boolean matches(byte[] expected, int start, int end) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private IOException malformed(String message) {
+        return new IOException(message + " near \""
+                + new String(buf, pos, Math.min(80, limit - pos), UTF8) + "\"");
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    /**
+     * Decodes UTF-8 and then any entity or character references.
+     * 
+     * @throws IllegalArgumentException If a character reference isn't a
+     *             number or not a Unicode code point.
+     */
+    static String decode(byte[] bytes, int start, int end) {
+        String raw = new String(bytes, start, end - start, UTF8);
+        int amp = raw.indexOf('&');
+        if (amp < 0) {
+            return raw;
+        }
+
+        StringBuilder out = new StringBuilder(raw.length());
+        out.append(raw, 0, amp);
+        int i = amp;
+        while (i < raw.length()) {
+            char c = raw.charAt(i);
+            int semi = c == '&' ? raw.indexOf(';', i) : -1;
+            if (semi < 0) {
+                out.append(c);
+                i++;
+                continue;
+            }
+
+            String entity = raw.substring(i + 1, semi);
+            if ("amp".equals(entity)) {
+                out.append('&');
+            } else if ("lt".equals(entity)) {
+                out.append('<');
+            } else if ("gt".equals(entity)) {
+                out.append('>');
+            } else if ("quot".equals(entity)) {
+                out.append('"');
+            } else if ("apos".equals(entity)) {
+                out.append('\'');
+            } else if (entity.startsWith("#")) {
+                try {
+                    if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                        out.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                    } else {
+                        out.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Not a number, or not a code point.
+                    throw new IllegalArgumentException("Bad character reference \"&" + entity + ";\"");
+                }
+            } else {
+                // Not something we know, so leave it alone.
+                out.append(raw, i, semi + 1);
+            }
+            i = semi + 1;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decoded Strings keyed by their raw bytes. Lookups hash and compare the
+     * bytes in place, so a hit allocates nothing.
+     */
+    private static class StringCache {
+        private static final int MAX_ENTRIES = 1 << 16;
+
+        private byte[][] keys = new byte[1024][];
+        private String[] values = new String[1024];
+        private int size = 0;
+
+        String get(byte[] bytes, int start, int end) {
+            int hash = 0x811c9dc5;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ bytes[i]) * 0x01000193;
+            }
+
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                if (same(keys[slot], bytes, start, end)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            String value = decode(bytes, start, end);
+            if (size < MAX_ENTRIES) {
+                byte[] key = new byte[end - start];
+                System.arraycopy(bytes, start, key, 0, key.length);
+                keys[slot] = key;
+                values[slot] = value;
+                if (++size * 2 > keys.length) {
+                    rehash();
+                }
+            }
+            return value;
+        }
+
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                byte[] key = oldKeys[i];
+                if (key != null) {
+                    int hash = 0x811c9dc5;
+                    for (byte b : key) {
+                        hash = (hash ^ b) * 0x01000193;
+                    }
+                    int slot = hash & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = key;
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static boolean same(byte[] key, byte[] bytes, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,10 @@
+package com.yellowbkpk.osm.primitive;
+
+/**
+ * What an osmChange file does with an element. Everything converted from a
+ * shapefile is created, unless an incremental run found it was there
+ * before.
+ */
+public enum ChangeType {
+    create, modify, delete;
+}
@@ -1,7 +1,6 @@
 package com.yellowbkpk.osm.primitive;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -16,6 +15,7 @@ public abstract class Primitive {
     private User user;
     private boolean visible = true;
     private Integer version = null;
+    private ChangeType changeType = ChangeType.create;
     private List<Tag> tagsList = new ArrayList<Tag>();
     
     public void setVersion(Integer ver) {
@@ -26,6 +26,14 @@ public abstract class Primitive {
         return this.version;
     }
     
+    public void setChangeType(ChangeType changeType) {
+        this.changeType = changeType;
+    }
+
+    public ChangeType getChangeType() {
+        return this.changeType;
+    }
+
     public void setVisible(boolean visible) {
         this.visible = visible;
     }
@@ -50,6 +58,10 @@ public abstract class Primitive {
         return (tagsList.size() > 0);
     }
 
+    public int getTagCount() {
+        return tagsList.size();
+    }
+
     public void addTag(Tag tag) {
         tagsList.add(tag);
     }
@@ -78,7 +90,16 @@ public abstract class Primitive {
     }
 
     public void copyTags(Primitive type) {
-        Collections.copy(this.tagsList, type.tagsList);
+        this.tagsList.clear();
+        this.tagsList.addAll(type.tagsList);
+    }
+
+    /**
+     * Replaces this primitive's tags with the given ones.
+     */
+    public void setTags(List<Tag> tags) {
+        this.tagsList.clear();
+        this.tagsList.addAll(tags);
     }
 
     /**
@@ -19,7 +19,7 @@ public class Way extends Primitive {
     
     public void addNode(Node node) {
         if (node.getID() == 0) {
-            node.setID(IDGenerator.nextNodeID());
+            node.setID(IDGenerator.get().nextNodeID());
         }
         
         nodeList.add(node);
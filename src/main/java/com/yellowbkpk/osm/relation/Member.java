@@ -17,6 +17,14 @@ public class Member {
         this.role = role;
     }
 
+    /**
+     * Swaps in another element with the same ID, such as the real element
+     * for a by-ref placeholder.
+     */
+    public void setMember(Primitive member) {
+        this.member = member;
+    }
+
     public Primitive getMember() {
         return member;
     }
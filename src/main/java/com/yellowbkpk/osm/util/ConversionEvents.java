@@ -0,0 +1,94 @@
+package com.yellowbkpk.osm.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hooks for profiling events around the expensive parts of a run: single
+ * features, chunk writes, rule batches and glom phases. Callers bracket the
+ * work with a begin call, which hands back a token, and an end call that
+ * takes the token and the details.
+ * <p>
+ * This class does nothing. When the JDK Flight Recorder is available and
+ * the recorder build (<code>-Pjfr</code>) is on the classpath, {@link #get()}
+ * returns an implementation that emits JFR events instead; otherwise the
+ * empty calls get inlined away.
+ */
+public class ConversionEvents {
+
+    private static Logger log = Logger.getLogger(ConversionEvents.class.getName());
+
+    private static final String RECORDER_CLASS = "com.yellowbkpk.osm.jfr.FlightRecorderEvents";
+
+    private static final ConversionEvents INSTANCE = load();
+
+    public static ConversionEvents get() {
+        return INSTANCE;
+    }
+
+    protected ConversionEvents() {
+    }
+
+    public Object beginFeature() {
+        return null;
+    }
+
+    /**
+     * @param featureId The shapefile's ID for the feature.
+     * @param vertices The number of vertices of its geometry.
+     * @param transformNanos The time spent reprojecting it.
+     */
+    public void endFeature(Object token, String featureId, int vertices, long transformNanos) {
+    }
+
+    public Object beginChunkWrite() {
+        return null;
+    }
+
+    /**
+     * @param elements The number of nodes, ways and relations written.
+     */
+    public void endChunkWrite(Object token, int elements) {
+    }
+
+    public Object beginRules() {
+        return null;
+    }
+
+    /**
+     * @param geometryType The type of the feature the rules were applied to.
+     * @param rules The number of rules evaluated for every attribute.
+     * @param primitives The number of primitives tagged.
+     */
+    public void endRules(Object token, String geometryType, int rules, int primitives) {
+    }
+
+    public Object beginGlomPhase() {
+        return null;
+    }
+
+    /**
+     * @param phase What the glommer was doing.
+     * @param ways The number of ways involved.
+     */
+    public void endGlomPhase(Object token, String phase, int ways) {
+    }
+
+    private static ConversionEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            Class<?> recorder = Class.forName(RECORDER_CLASS);
+            ConversionEvents events = (ConversionEvents) recorder.newInstance();
+            log.log(Level.CONFIG, "Emitting Flight Recorder events.");
+            return events;
+        } catch (ClassNotFoundException e) {
+            // No Flight Recorder, or built without it.
+        } catch (LinkageError e) {
+            log.log(Level.CONFIG, "Flight Recorder events are not available.", e);
+        } catch (Exception e) {
+            log.log(Level.CONFIG, "Flight Recorder events are not available.", e);
+        }
+        return new ConversionEvents();
+    }
+
+}
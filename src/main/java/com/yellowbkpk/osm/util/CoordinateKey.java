@@ -0,0 +1,39 @@
+package com.yellowbkpk.osm.util;
+
+/**
+ * Packs a lat/lon pair into a single <code>long</code> after quantizing both
+ * to 1e-7 degrees, the same precision the outputters write. Two nodes with
+ * the same key are indistinguishable in the output files.
+ */
+public class CoordinateKey {
+
+    public static final double SCALE = 1e7;
+
+    /**
+     * @return The value in units of 1e-7 degrees.
+     */
+    public static int quantize(double degrees) {
+        return (int) Math.round(degrees * SCALE);
+    }
+
+    public static double dequantize(int fixed) {
+        return fixed / SCALE;
+    }
+
+    public static long of(double lat, double lon) {
+        return of(quantize(lat), quantize(lon));
+    }
+
+    public static long of(int fixedLat, int fixedLon) {
+        return ((long) fixedLat << 32) | (fixedLon & 0xffffffffL);
+    }
+
+    public static int fixedLat(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int fixedLon(long key) {
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.yellowbkpk.osm.util;
+
+/**
+ * 64 bit FNV-1a hashing, a byte at a time. Start from {@link #OFFSET} and
+ * feed each value in turn:
+ * 
+ * <pre>
+ * long hash = FnvHash.hash(FnvHash.hash(FnvHash.OFFSET, length), name);
+ * </pre>
+ */
+public class FnvHash {
+
+    public static final long OFFSET = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Adds the value's eight bytes, lowest first.
+     */
+    public static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds the string's length, then both bytes of every character. A null
+     * string counts as the length -1.
+     */
+    public static long hash(long hash, String value) {
+        if (value == null) {
+            return hash(hash, -1);
+        }
+        hash = hash(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= PRIME;
+            hash ^= c >>> 8;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+}
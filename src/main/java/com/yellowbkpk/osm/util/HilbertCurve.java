@@ -0,0 +1,62 @@
+package com.yellowbkpk.osm.util;
+
+/**
+ * Positions along a Hilbert curve covering the whole globe. Locations that
+ * are close together on the map tend to have keys that are close together,
+ * so sorting by key groups data spatially.
+ */
+public class HilbertCurve {
+
+    private static final int ORDER = 31;
+    private static final long SIDE = 1L << ORDER;
+    private static final int LAT_OFFSET = 900000000;
+    private static final long LON_OFFSET = 1800000000L;
+
+    /**
+     * @return The Hilbert key of a location given in degrees.
+     */
+    public static long key(double lat, double lon) {
+        return key(CoordinateKey.quantize(lat), CoordinateKey.quantize(lon));
+    }
+
+    /**
+     * @return The Hilbert key of a location given in 1e-7 degrees, as used
+     *         by {@link CoordinateKey}.
+     */
+    public static long key(int fixedLat, int fixedLon) {
+        // Latitude fits in 31 bits as-is; longitude spans twice the range so
+        // it loses its last bit.
+        long x = (fixedLon + LON_OFFSET) >>> 1;
+        long y = fixedLat + LAT_OFFSET;
+        return xy2d(x, y);
+    }
+
+    /**
+     * @return The Hilbert key of a packed {@link CoordinateKey}.
+     */
+    public static long keyOf(long coordinateKey) {
+        return key(CoordinateKey.fixedLat(coordinateKey), CoordinateKey.fixedLon(coordinateKey));
+    }
+
+    private static long xy2d(long x, long y) {
+        long d = 0;
+        for (long s = 1L << (ORDER - 1); s > 0; s >>>= 1) {
+            long rx = (x & s) > 0 ? 1 : 0;
+            long ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+
+            // Rotate the quadrant so the curve stays continuous.
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = SIDE - 1 - x;
+                    y = SIDE - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+}
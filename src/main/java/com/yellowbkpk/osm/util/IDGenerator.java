@@ -3,6 +3,14 @@ package com.yellowbkpk.osm.util;
 import java.util.Iterator;
 
 /**
+ * Hands out the negative IDs of new nodes, ways and relations.
+ * <p>
+ * Every conversion can have its own sequences: {@link #bind(IDGenerator)}
+ * makes the calling thread, and the threads it starts from then on, use
+ * them. Code that isn't bound to any uses one shared by the whole JVM.
+ * Conversions whose output goes to the same place can share one generator,
+ * so that their IDs don't clash.
+ *
  * @author Ian Dees
  *
  */
@@ -23,32 +31,67 @@ public class IDGenerator {
         }
     }
 
-    private static final PeekableSqn nodeSqn = new PeekableSqn();
-    private static final PeekableSqn waySqn = new PeekableSqn();
-    private static final PeekableSqn relationSqn = new PeekableSqn();
-    
-    public static synchronized int nextNodeID() {
+    private static final IDGenerator SHARED = new IDGenerator();
+
+    private static final InheritableThreadLocal<IDGenerator> BOUND = new InheritableThreadLocal<IDGenerator>();
+
+    private final PeekableSqn nodeSqn = new PeekableSqn();
+    private final PeekableSqn waySqn = new PeekableSqn();
+    private final PeekableSqn relationSqn = new PeekableSqn();
+
+    /**
+     * @return The generator bound to the calling thread, or the shared one.
+     */
+    public static IDGenerator get() {
+        IDGenerator bound = BOUND.get();
+        return bound == null ? SHARED : bound;
+    }
+
+    /**
+     * Makes the calling thread use the given generator, or the shared one if
+     * it is null. Threads started afterwards by this one use it too.
+     * 
+     * @return The generator that was bound before, or null, to bind again
+     *         once done.
+     */
+    public static IDGenerator bind(IDGenerator generator) {
+        IDGenerator previous = BOUND.get();
+        BOUND.set(generator);
+        return previous;
+    }
+
+    public synchronized int nextNodeID() {
         return nodeSqn.next();
     }
     
-    public static synchronized int nextWayID() {
+    public synchronized int nextWayID() {
         return waySqn.next();
     }
 
-    public static synchronized Integer nextRelationID() {
+    public synchronized Integer nextRelationID() {
         return relationSqn.next();
     }
 
-    public static int currentNodeID() {
+    public synchronized int currentNodeID() {
         return nodeSqn.peek();
     }
 
-    public static int currentWayID() {
+    public synchronized int currentWayID() {
         return waySqn.peek();
     }
 
-    public static int currentRelationID() {
+    public synchronized int currentRelationID() {
         return relationSqn.peek();
     }
 
+    /**
+     * Makes the generators hand out the given IDs next, as returned by the
+     * current*ID() methods at some earlier point. Used to resume a run.
+     */
+    public synchronized void restore(int nodeID, int wayID, int relationID) {
+        nodeSqn.c = nodeID;
+        waySqn.c = wayID;
+        relationSqn.c = relationID;
+    }
+
 }
@@ -0,0 +1,243 @@
+package com.yellowbkpk.osm.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * Where a conversion run spends its time. The converter and the outputters
+ * add the time of each stage and a few counts as they go, and the totals are
+ * printed or written out as JSON at the end.
+ * <p>
+ * Timing is a pair of {@link System#nanoTime()} calls around each stage, so
+ * it is cheap enough to leave on. The conversion pipeline runs on a single
+ * thread and so do these counters; they are not meant to be updated from
+ * several threads at once.
+ * <p>
+ * Every conversion can have its own metrics: {@link #bind(PipelineMetrics)}
+ * makes the calling thread, and the threads it starts from then on, add to
+ * them. Code that isn't bound to any adds to one set shared by the whole
+ * JVM.
+ */
+public class PipelineMetrics {
+
+    public enum Stage {
+        read, reproject, split, rules, exclude, serialize, io
+    }
+
+    private static final PipelineMetrics SHARED = new PipelineMetrics();
+
+    private static final InheritableThreadLocal<PipelineMetrics> BOUND = new InheritableThreadLocal<PipelineMetrics>();
+
+    private final long[] stageNanos = new long[Stage.values().length];
+    private long runStarted = System.nanoTime();
+    private long runEnded = 0;
+    private long features = 0;
+    private long vertices = 0;
+    private long bytesWritten = 0;
+    private long filesWritten = 0;
+    private long duplicates = 0;
+
+    /**
+     * @return The metrics bound to the calling thread, or the shared ones.
+     */
+    public static PipelineMetrics get() {
+        PipelineMetrics bound = BOUND.get();
+        return bound == null ? SHARED : bound;
+    }
+
+    /**
+     * Makes the calling thread add to the given metrics, or to the shared
+     * ones if they are null. Threads started afterwards by this one add to
+     * them too.
+     * 
+     * @return The metrics that were bound before, or null, to bind again
+     *         once done.
+     */
+    public static PipelineMetrics bind(PipelineMetrics metrics) {
+        PipelineMetrics previous = BOUND.get();
+        BOUND.set(metrics);
+        return previous;
+    }
+
+    /**
+     * Clears everything and starts the run clock.
+     */
+    public void reset() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = 0;
+        }
+        features = 0;
+        vertices = 0;
+        bytesWritten = 0;
+        filesWritten = 0;
+        duplicates = 0;
+        runStarted = System.nanoTime();
+        runEnded = 0;
+    }
+
+    /**
+     * Stops the run clock, which otherwise keeps going until the report.
+     */
+    public void finishRun() {
+        runEnded = System.nanoTime();
+    }
+
+    /**
+     * @return A timestamp to pass to {@link #stop(Stage, long)}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since <code>started</code> to the stage.
+     */
+    public void stop(Stage stage, long started) {
+        stageNanos[stage.ordinal()] += System.nanoTime() - started;
+    }
+
+    /**
+     * Like {@link #stop(Stage, long)} for a stage that runs inside another
+     * one, such as I/O during serialization. The time is taken off of the
+     * outer stage so that every stage only counts its own time.
+     */
+    public void stopWithin(Stage stage, Stage outer, long started) {
+        long elapsed = System.nanoTime() - started;
+        stageNanos[stage.ordinal()] += elapsed;
+        stageNanos[outer.ordinal()] -= elapsed;
+    }
+
+    public void addFeature(int featureVertices) {
+        features++;
+        vertices += featureVertices;
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    public void addFileWritten() {
+        filesWritten++;
+    }
+
+    /**
+     * Counts a feature that was dropped because it repeats an earlier one.
+     */
+    public void addDuplicate() {
+        duplicates++;
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public long getFeatures() {
+        return features;
+    }
+
+    public long getVertices() {
+        return vertices;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getFilesWritten() {
+        return filesWritten;
+    }
+
+    public long getElapsedNanos() {
+        return (runEnded == 0 ? System.nanoTime() : runEnded) - runStarted;
+    }
+
+    /**
+     * @return The most heap the JVM has had in use at once so far, in bytes.
+     */
+    public static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Prints a table of the stages and the totals.
+     */
+    public void printSummary(PrintStream out) {
+        double elapsed = getElapsedNanos() / 1e9;
+
+        out.println("Stage         Seconds    Share");
+        for (Stage stage : Stage.values()) {
+            double seconds = stageNanos[stage.ordinal()] / 1e9;
+            out.println(String.format(Locale.US, "%-10s %10.3f %7.1f%%", stage, seconds,
+                    elapsed > 0 ? 100 * seconds / elapsed : 0));
+        }
+        out.println(String.format(Locale.US, "%-10s %10.3f", "total", elapsed));
+        out.println(String.format(Locale.US, "%d features (%.0f/s), %d vertices (%.0f/s)", features,
+                rate(features, elapsed), vertices, rate(vertices, elapsed)));
+        if (duplicates > 0) {
+            out.println(duplicates + " duplicate features dropped");
+        }
+        out.println(String.format(Locale.US, "%d bytes written in %d files, peak heap %.1f MB", bytesWritten,
+                filesWritten, getPeakHeapBytes() / (1024.0 * 1024.0)));
+    }
+
+    /**
+     * Writes the same numbers as {@link #printSummary(PrintStream)} as a JSON
+     * object.
+     */
+    public void writeJson(File file) throws IOException {
+        double elapsed = getElapsedNanos() / 1e9;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"elapsedSeconds\": ").append(format(elapsed)).append(",\n");
+        json.append("  \"stages\": {");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(stages[i]).append("\": ");
+            json.append(format(stageNanos[stages[i].ordinal()] / 1e9));
+        }
+        json.append("\n  },\n");
+        json.append("  \"features\": ").append(features).append(",\n");
+        json.append("  \"featuresPerSecond\": ").append(format(rate(features, elapsed))).append(",\n");
+        json.append("  \"vertices\": ").append(vertices).append(",\n");
+        json.append("  \"verticesPerSecond\": ").append(format(rate(vertices, elapsed))).append(",\n");
+        json.append("  \"duplicateFeatures\": ").append(duplicates).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+        json.append("  \"filesWritten\": ").append(filesWritten).append(",\n");
+        json.append("  \"peakHeapBytes\": ").append(getPeakHeapBytes()).append("\n");
+        json.append("}\n");
+
+        Writer out = new FileWriter(file);
+        try {
+            out.write(json.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static double rate(long count, double seconds) {
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+}
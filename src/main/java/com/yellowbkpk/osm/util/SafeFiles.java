@@ -0,0 +1,22 @@
+package com.yellowbkpk.osm.util;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writing a file next to the real one and then moving it into place, so that
+ * a run that dies part way never leaves a half-written file behind.
+ */
+public class SafeFiles {
+
+    /**
+     * Moves a finished temporary file over the real one.
+     */
+    public static void replace(File temp, File file) throws IOException {
+        // Windows won't rename over an existing file.
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Could not replace " + file + ".");
+        }
+    }
+
+}
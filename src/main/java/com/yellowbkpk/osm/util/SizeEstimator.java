@@ -0,0 +1,111 @@
+package com.yellowbkpk.osm.util;
+
+import java.util.Iterator;
+
+import com.yellowbkpk.osm.primitive.Primitive;
+import com.yellowbkpk.osm.primitive.Tag;
+import com.yellowbkpk.osm.primitive.node.Node;
+import com.yellowbkpk.osm.primitive.way.Way;
+import com.yellowbkpk.osm.relation.Member;
+import com.yellowbkpk.osm.relation.Relation;
+
+/**
+ * Rough sizes of single elements, both written out as osmChange XML and held
+ * on the heap, cheap enough to work out for every element as it is added.
+ * Neither counts the nodes of a way or the members of a relation themselves,
+ * since those are added and counted on their own.
+ * <p>
+ * The heap sizes assume a 64 bit JVM with compressed references. They are
+ * meant to keep memory use in a predictable range, not to be exact.
+ */
+public class SizeEstimator {
+
+    /**
+     * An ID as written, with its minus sign.
+     */
+    private static final int ID_CHARS = 8;
+
+    // <node id="" lat="" lon=""/>, with the coordinates at 7 decimal places
+    private static final int NODE_BYTES = 4 + 27 + ID_CHARS + 2 * 11 + 2;
+    // the "</node>" line when a node has tags
+    private static final int NODE_CLOSE_BYTES = 12;
+    // <tag k="" v=""/>
+    private static final int TAG_BYTES = 6 + 17 + 1;
+    // <way id=""> and </way>
+    private static final int WAY_BYTES = 4 + 12 + ID_CHARS + 2 + 11;
+    // <nd ref=""/>
+    private static final int WAY_NODE_BYTES = 6 + 13 + ID_CHARS + 1;
+    // <relation id=""> and </relation>
+    private static final int RELATION_BYTES = 4 + 17 + ID_CHARS + 2 + 16;
+    // <member type="" ref="" role=""/>, with "relation" as the longest type
+    private static final int MEMBER_BYTES = 6 + 32 + 8 + ID_CHARS + 1;
+
+    // The primitive's fields and an empty tag list
+    private static final int PRIMITIVE_HEAP = 40 + 24;
+    // The node's coordinates
+    private static final int NODE_HEAP = 32;
+    // A way's node list, without the references
+    private static final int WAY_HEAP = 24 + 16;
+    // A relation's member list, without the references
+    private static final int RELATION_HEAP = 24 + 16;
+    // A tag, its reference in the list and its value, without the characters.
+    // Keys usually come from the rules and are shared.
+    private static final int TAG_HEAP = 16 + 4 + 40;
+    private static final int MEMBER_HEAP = 24 + 4;
+    private static final int REFERENCE_HEAP = 4;
+    // The linked hash set entry the element is staged in
+    private static final int ENTRY_HEAP = 40 + 8;
+
+    private SizeEstimator() {
+    }
+
+    /**
+     * @return About how many bytes the element adds to an osmChange file.
+     */
+    public static int serializedBytes(Primitive primitive) {
+        int bytes = 0;
+        Iterator<Tag> tags = primitive.getTagIterator();
+        while (tags.hasNext()) {
+            Tag tag = tags.next();
+            bytes += TAG_BYTES + tag.getKey().length() + tag.getValue().length();
+        }
+
+        if (primitive instanceof Node) {
+            bytes += NODE_BYTES;
+            if (primitive.hasTags()) {
+                bytes += NODE_CLOSE_BYTES;
+            }
+        } else if (primitive instanceof Way) {
+            bytes += WAY_BYTES + WAY_NODE_BYTES * ((Way) primitive).getNodes().size();
+        } else if (primitive instanceof Relation) {
+            bytes += RELATION_BYTES;
+            Iterator<Member> members = ((Relation) primitive).getMemberIterator();
+            while (members.hasNext()) {
+                bytes += MEMBER_BYTES + members.next().getRole().length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return About how many bytes of heap the element takes up while it is
+     *         staged.
+     */
+    public static int retainedBytes(Primitive primitive) {
+        int bytes = PRIMITIVE_HEAP + ENTRY_HEAP;
+        Iterator<Tag> tags = primitive.getTagIterator();
+        while (tags.hasNext()) {
+            bytes += TAG_HEAP + tags.next().getValue().length();
+        }
+
+        if (primitive instanceof Node) {
+            bytes += NODE_HEAP;
+        } else if (primitive instanceof Way) {
+            bytes += WAY_HEAP + REFERENCE_HEAP * ((Way) primitive).getNodes().size();
+        } else if (primitive instanceof Relation) {
+            bytes += RELATION_HEAP + (MEMBER_HEAP + REFERENCE_HEAP) * ((Relation) primitive).getMembers().size();
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.yellowbkpk.geo.shp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yellowbkpk.geo.gen.ShapefileWriter;
+
+/**
+ * Runs the converter with <code>--glomMemory</code> over the test line cut
+ * into pieces.
+ */
+public class GlomMemoryTest {
+
+    private static final File LINE = new File("src/test/resources/shapefiles/line/line");
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("glom", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Every segment of the line becomes a way of its own, all with the same
+     * name, and they should be glommed back into one way with all of the
+     * line's nodes.
+     */
+    @Test
+    public void glomsSegmentsBackIntoOneWay() throws IOException {
+        double[][] line = readLine(new File(LINE.getPath() + ".shp"));
+        int vertices = line[0].length;
+
+        File segments = new File(dir, "segments");
+        ShapefileWriter writer = new ShapefileWriter(segments, ShapefileWriter.SHAPE_POLYLINE,
+                new ShapefileWriter.Field[] { new ShapefileWriter.Field("test", 'C', 80) },
+                readFile(new File(LINE.getPath() + ".prj")));
+        for (int i = 0; i + 1 < vertices; i++) {
+            writer.write(new double[] { line[0][i], line[0][i + 1] }, new double[] { line[1][i], line[1][i + 1] },
+                    2, new int[] { 0 }, 1, new String[] { "Foo" });
+        }
+        writer.close();
+
+        File rules = new File(dir, "rules.txt");
+        Writer rulesOut = new FileWriter(rules);
+        try {
+            rulesOut.write("line,test,,name,-\n");
+        } finally {
+            rulesOut.close();
+        }
+
+        Main.main(new String[] { "--shapefile", segments.getPath() + ".shp", "--rulesfile", rules.getPath(),
+                "--osmfile", "glommed", "--outdir", dir.getPath(), "--outputFormat", "osmc", "--glomKey", "name",
+                "--glomMemory", "1" });
+
+        String osm = readFile(new File(dir, "glommed0.osm"));
+        assertEquals(1, count(osm, "<way "));
+        assertEquals(vertices, count(osm, "<nd "));
+    }
+
+    /**
+     * @return The x and y coordinates of the first record of a polyline
+     *         shapefile.
+     */
+    private static double[][] readLine(File shp) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(readBytes(shp)).order(ByteOrder.LITTLE_ENDIAN);
+        // Skip the file header, the record header, the shape type and the
+        // bounding box.
+        buffer.position(100 + 8 + 4 + 32);
+        int parts = buffer.getInt();
+        int points = buffer.getInt();
+        buffer.position(buffer.position() + 4 * parts);
+
+        double[][] line = new double[2][points];
+        for (int i = 0; i < points; i++) {
+            line[0][i] = buffer.getDouble();
+            line[1][i] = buffer.getDouble();
+        }
+        return line;
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+}